@@ -0,0 +1,90 @@
+package hu.rycus.intellihome.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import hu.rycus.intellihome.network.Header;
+import hu.rycus.intellihome.network.Packet;
+import hu.rycus.intellihome.standin.Payloads;
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.FieldCursor;
+
+/**
+ * Parsing the response listing the devices in both wire formats,
+ * the same way the RemoteManager does (including decoding the text from the received bytes).
+ *
+ * Created by Viktor Adam on 2/7/14.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeviceListBenchmark {
+
+    /** The number of devices in the list. */
+    @Param({ "10", "500", "2000", "5000" })
+    public int devices;
+
+    /** The response in the text wire format. */
+    private byte[] text;
+    /** The response in the binary wire format. */
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        Payloads payloads = new Payloads(devices, 0);
+
+        // register the types in the lookup cache, like listing them does
+        String types = new String(payloads.types(false));
+        FieldCursor cursor = new FieldCursor(types, 1, types.length() - 1);
+        while(cursor.hasRemaining()) {
+            EntityType.deserialize(cursor);
+        }
+
+        text = payloads.devices(false);
+        binary = payloads.devices(true);
+    }
+
+    @Benchmark
+    public Entity[] parseText() {
+        String data = new Packet(Header.MSG_A_LIST_DEVICES, text).getData();
+
+        List<Entity> entities = new ArrayList<>();
+
+        FieldCursor cursor = new FieldCursor(data, 1, data.length() - 1);
+        while(cursor.hasRemaining()) {
+            entities.add(Entity.deserialize(cursor));
+        }
+
+        return entities.toArray(new Entity[entities.size()]);
+    }
+
+    @Benchmark
+    public Entity[] parseBinary() {
+        BinaryReader reader = new BinaryReader(new Packet(Header.MSG_A_LIST_DEVICES, binary).getBytes());
+
+        int count = reader.readVarint();
+        Entity[] listed = new Entity[count];
+        for(int idx = 0; idx < count; idx++) {
+            listed[idx] = Entity.deserialize(reader);
+        }
+
+        return listed;
+    }
+
+}
@@ -0,0 +1,77 @@
+package hu.rycus.intellihome.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import hu.rycus.intellihome.network.Header;
+import hu.rycus.intellihome.network.Packet;
+import hu.rycus.intellihome.standin.Payloads;
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.FieldCursor;
+
+/**
+ * Parsing the response listing the device types in both wire formats,
+ * the same way the RemoteManager does (including registering the types in the lookup cache).
+ *
+ * Created by Viktor Adam on 2/8/14.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityTypeBenchmark {
+
+    /** The response in the text wire format. */
+    private byte[] text;
+    /** The response in the binary wire format. */
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        Payloads payloads = new Payloads(0, 0);
+        text = payloads.types(false);
+        binary = payloads.types(true);
+    }
+
+    @Benchmark
+    public EntityType[] parseText() {
+        String data = new Packet(Header.MSG_A_LIST_DEVICE_TYPES, text).getData();
+
+        List<EntityType> types = new ArrayList<>();
+
+        FieldCursor cursor = new FieldCursor(data, 1, data.length() - 1);
+        while(cursor.hasRemaining()) {
+            types.add(EntityType.deserialize(cursor));
+        }
+
+        return types.toArray(new EntityType[types.size()]);
+    }
+
+    @Benchmark
+    public EntityType[] parseBinary() {
+        BinaryReader reader = new BinaryReader(new Packet(Header.MSG_A_LIST_DEVICE_TYPES, binary).getBytes());
+
+        int count = reader.readVarint();
+        EntityType[] listed = new EntityType[count];
+        for(int idx = 0; idx < count; idx++) {
+            listed[idx] = EntityType.deserialize(reader);
+        }
+
+        return listed;
+    }
+
+}
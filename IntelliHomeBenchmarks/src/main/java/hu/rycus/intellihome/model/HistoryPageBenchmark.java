@@ -0,0 +1,81 @@
+package hu.rycus.intellihome.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import hu.rycus.intellihome.network.Header;
+import hu.rycus.intellihome.network.Packet;
+import hu.rycus.intellihome.standin.Payloads;
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.FieldCursor;
+
+/**
+ * Parsing a page of history entries in both wire formats, the same way the RemoteManager does.
+ *
+ * Created by Viktor Adam on 2/7/14.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryPageBenchmark {
+
+    /** The number of entries on the page (the history list loads pages of 25 entries). */
+    @Param({ "25", "1000" })
+    public int entries;
+
+    /** The page in the text wire format. */
+    private byte[] text;
+    /** The page in the binary wire format. */
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        Payloads payloads = new Payloads(500, entries); // TODO magic number
+        text = payloads.history(entries, false);
+        binary = payloads.history(entries, true);
+    }
+
+    @Benchmark
+    public EntityHistory[] parseText() {
+        String data = new Packet(Header.MSG_A_LIST_HISTORY, text).getData();
+
+        ArrayList<EntityHistory> items = new ArrayList<>(entries);
+
+        FieldCursor cursor = new FieldCursor(data, 0);
+        cursor.skip('#');
+        while(cursor.hasRemaining()) {
+            items.add(EntityHistory.deserialize(cursor));
+        }
+
+        return items.toArray(new EntityHistory[items.size()]);
+    }
+
+    @Benchmark
+    public EntityHistory[] parseBinary() {
+        BinaryReader reader = new BinaryReader(new Packet(Header.MSG_A_LIST_HISTORY, binary).getBytes());
+
+        int count = reader.readVarint();
+        EntityHistory[] items = new EntityHistory[count];
+        for(int idx = 0; idx < count; idx++) {
+            items[idx] = EntityHistory.deserialize(reader);
+        }
+
+        return items;
+    }
+
+}
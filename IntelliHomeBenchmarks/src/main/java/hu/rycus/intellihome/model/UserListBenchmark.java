@@ -0,0 +1,68 @@
+package hu.rycus.intellihome.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import hu.rycus.intellihome.network.Header;
+import hu.rycus.intellihome.network.Packet;
+import hu.rycus.intellihome.standin.Payloads;
+
+/**
+ * Parsing the response listing the users with the splits and the regular expression
+ * the RemoteManager uses (the list only has a text format).
+ *
+ * Created by Viktor Adam on 2/8/14.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserListBenchmark {
+
+    /** The number of users in the list besides the default ones. */
+    @Param({ "10", "100", "1000" })
+    public int users;
+
+    /** The response listing the users. */
+    private byte[] response;
+
+    @Setup
+    public void setUp() {
+        response = new Payloads(0, 0, users).users();
+    }
+
+    @Benchmark
+    public User[] parse() {
+        String data = new Packet(Header.MSG_A_LIST_USERS, response).getData();
+        String[] dataArray = data.split(";");
+
+        User[] listed = new User[dataArray.length];
+
+        int index = 0;
+        for(String udata : dataArray) {
+            String[] parameters = udata.split("[\\*#]");
+
+            int userId = Integer.parseInt(parameters[0]);
+            String username = parameters[1];
+            boolean administrator = udata.matches("[0-9]+\\*.*");
+
+            listed[index++] = new User(userId, username, administrator);
+        }
+
+        return listed;
+    }
+
+}
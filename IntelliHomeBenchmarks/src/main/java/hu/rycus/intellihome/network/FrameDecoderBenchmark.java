@@ -0,0 +1,71 @@
+package hu.rycus.intellihome.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import hu.rycus.intellihome.standin.Payloads;
+
+/**
+ * Decoding a burst of TCP frames (a state change message for every device, in the text wire format)
+ * from a direct buffer like the one the NIO channel handler reads into.
+ *
+ * Created by Viktor Adam on 2/7/14.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameDecoderBenchmark {
+
+    /** The number of frames in the buffer. */
+    @Param({ "10", "500", "5000" })
+    public int devices;
+
+    /** The buffer of the received frames. */
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() {
+        List<byte[]> messages = new Payloads(devices, 0).stateChanges(false);
+
+        int capacity = 0;
+        for(byte[] message : messages) {
+            capacity += FrameDecoder.FRAME_HEADER_LENGTH + message.length;
+        }
+
+        buffer = ByteBuffer.allocateDirect(capacity);
+        for(byte[] message : messages) {
+            buffer.put((byte) Header.MSG_A_STATE_CHANGED);
+            buffer.put((byte) ((message.length & 0xFF00) >> 8));
+            buffer.put((byte) (message.length & 0x00FF));
+            buffer.put(message);
+        }
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        buffer.position(0);
+
+        Packet packet;
+        while((packet = FrameDecoder.decode(buffer)) != null) {
+            blackhole.consume(packet);
+        }
+    }
+
+}
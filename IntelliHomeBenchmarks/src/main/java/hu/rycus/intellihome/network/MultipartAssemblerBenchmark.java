@@ -0,0 +1,85 @@
+package hu.rycus.intellihome.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import hu.rycus.intellihome.standin.Payloads;
+
+/**
+ * Reassembling the device list (in the text wire format) from the datagrams of a multipart UDP message,
+ * with one assembler reused for every message like the UDP handler does.
+ *
+ * Created by Viktor Adam on 2/7/14.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MultipartAssemblerBenchmark {
+
+    /** The size of the datagrams (as sent by the server). */
+    private static final int DATAGRAM_SIZE = 1500;
+
+    /** The number of devices in the list. */
+    @Param({ "10", "500", "5000" })
+    public int devices;
+
+    /** The datagrams of the message (header and flags followed by the fragment). */
+    private final List<byte[]> datagrams = new ArrayList<>();
+    /** The lengths of the datagrams. */
+    private final List<Integer> lengths = new ArrayList<>();
+
+    /** The assembler reused for every message. */
+    private final MultipartAssembler assembler = new MultipartAssembler(4 * 1024 * 1024, 10000L);
+
+    @Setup
+    public void setUp() {
+        byte[] message = new Payloads(devices, 0).devices(false);
+
+        int maxSize = DATAGRAM_SIZE - 2;
+        for(int offset = 0; offset < message.length; offset += maxSize) {
+            int length = Math.min(maxSize, message.length - offset);
+            boolean last = offset + length == message.length;
+
+            byte[] datagram = new byte[DATAGRAM_SIZE];
+            datagram[0] = (byte) Header.MSG_A_LIST_DEVICES;
+            datagram[1] = (byte) (last ? 0 : Flags.MORE_FOLLOWS);
+            System.arraycopy(message, offset, datagram, 2, length);
+
+            datagrams.add(datagram);
+            lengths.add(2 + length);
+        }
+    }
+
+    @Benchmark
+    public Packet reassemble() {
+        Packet packet = null;
+
+        for(int idx = 0; idx < datagrams.size(); idx++) {
+            byte[] datagram = datagrams.get(idx);
+
+            int header = datagram[0] & 0xFF;
+            int flags  = datagram[1] & 0xFF;
+            boolean finish = (flags & Flags.MORE_FOLLOWS) != Flags.MORE_FOLLOWS;
+            packet = assembler.append(header, datagram, 2, lengths.get(idx) - 2, finish);
+        }
+
+        return packet;
+    }
+
+}
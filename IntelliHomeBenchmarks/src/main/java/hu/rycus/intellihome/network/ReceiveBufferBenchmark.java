@@ -0,0 +1,120 @@
+package hu.rycus.intellihome.network;
+
+import android.util.Log;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import hu.rycus.intellihome.standin.Payloads;
+
+/**
+ * Receiving single datagram state change messages over the loopback interface
+ * into a pooled buffer (the way the UDP handler receives them)
+ * or into a buffer allocated for every datagram (the way it did before, decoding the contents eagerly).
+ * The interesting numbers are the allocations per operation reported by the gc profiler.
+ *
+ * Created by Viktor Adam on 2/7/14.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveBufferBenchmark {
+
+    /** The buffer size used in communication. */
+    private static final int BUFFER_SIZE = 1500;
+
+    /** The socket the datagrams are sent from. */
+    private DatagramSocket sender;
+    /** The socket the datagrams are received with. */
+    private DatagramSocket receiver;
+    /** The datagram sent in every operation. */
+    private DatagramPacket outgoing;
+
+    /** Reusable buffer for incoming datagrams. */
+    private final byte[] receiveBuffer = new byte[BUFFER_SIZE];
+    /** Reusable datagram packet for incoming datagrams. */
+    private final DatagramPacket receivedPacket = new DatagramPacket(receiveBuffer, BUFFER_SIZE);
+    /** The assembler copying the contents of single datagram messages out of the pooled buffer. */
+    private final MultipartAssembler assembler = new MultipartAssembler(4 * 1024 * 1024, 10000L);
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] message = new Payloads(1, 0).stateChanges(false).get(0);
+
+        byte[] datagram = new byte[2 + message.length];
+        datagram[0] = (byte) Header.MSG_A_STATE_CHANGED;
+        System.arraycopy(message, 0, datagram, 2, message.length);
+
+        receiver = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sender = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        outgoing = new DatagramPacket(datagram, datagram.length, receiver.getLocalSocketAddress());
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public Packet pooled() throws IOException {
+        sender.send(outgoing);
+
+        DatagramPacket dp = receivedPacket;
+        dp.setLength(BUFFER_SIZE);
+        receiver.receive(dp);
+
+        byte[] buffer = dp.getData();
+        int header = buffer[0] & 0xFF;
+        int flags  = buffer[1] & 0xFF;
+        int length = dp.getLength() - 2;
+
+        boolean finish = (flags & Flags.MORE_FOLLOWS) != Flags.MORE_FOLLOWS;
+        Packet packet = assembler.append(header, buffer, 2, length, finish);
+
+        if(Log.isLoggable("IntelliHome|NET|UDP", Log.DEBUG)) {
+            Log.d("IntelliHome|NET|UDP", "UDP Packet received (H" + Integer.toHexString(header) + "), length: " + length);
+        }
+
+        return packet;
+    }
+
+    @Benchmark
+    public Packet allocating() throws IOException {
+        sender.send(outgoing);
+
+        DatagramPacket dp = new DatagramPacket(new byte[BUFFER_SIZE], BUFFER_SIZE);
+        receiver.receive(dp);
+
+        byte[] buffer = dp.getData();
+        int header = buffer[0] & 0xFF;
+        int flags  = buffer[1] & 0xFF;
+        String data = new String(buffer, 2, dp.getLength() - 2);
+
+        boolean finish = (flags & Flags.MORE_FOLLOWS) != Flags.MORE_FOLLOWS;
+        Log.d("IntelliHome|NET|UDP", "UDP Packet received (H" + Integer.toHexString(header) + "), length: " +
+                (dp.getLength() - 2) + " | " + (finish ? "Complete" : "INCOMPLETE"));
+
+        return new Packet(header, data);
+    }
+
+}
@@ -0,0 +1,82 @@
+package hu.rycus.intellihome.standin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic payloads for the benchmarks of the client:
+ * the messages the stand-in server sends for a generated home, in both wire formats.
+ * The home is generated with a fixed seed, so every run measures the same payloads.
+ *
+ * Created by Viktor Adam on 2/7/14.
+ */
+public class Payloads {
+
+    /** The generated home. */
+    private final Home home;
+
+    /** Encoder of the text wire format. */
+    private final Codec textCodec = new TextCodec();
+    /** Encoder of the binary wire format. */
+    private final Codec binaryCodec = new BinaryCodec();
+
+    /**
+     * Public constructor generating the home.
+     * @param deviceCount The number of devices to create
+     * @param historyRows The number of history entries to create
+     */
+    public Payloads(int deviceCount, int historyRows) {
+        this(deviceCount, historyRows, 0);
+    }
+
+    /**
+     * Public constructor generating the home.
+     * @param deviceCount The number of devices to create
+     * @param historyRows The number of history entries to create
+     * @param userCount The number of users to create besides the default ones
+     */
+    public Payloads(int deviceCount, int historyRows, int userCount) {
+        this.home = new Home(deviceCount, historyRows, 16, new Random(42L)); // TODO magic numbers
+        for(int idx = 0; idx < userCount; idx++) {
+            home.addUser("user" + idx, Home.md5("user" + idx));
+        }
+    }
+
+    /** Returns the response listing the device types. */
+    public byte[] types(boolean binary) {
+        return codec(binary).encodeTypes(home.getTypes());
+    }
+
+    /** Returns the response listing every device. */
+    public byte[] devices(boolean binary) {
+        return codec(binary).encodeDevices(home.getDevices(null));
+    }
+
+    /** Returns the response listing the first page of the history. */
+    public byte[] history(int limit, boolean binary) {
+        return codec(binary).encodeHistory(home.listHistory(null, null, null, limit, 0));
+    }
+
+    /** Returns the response listing the users (it only has a text format). */
+    public byte[] users() {
+        return RequestProcessor.usersResponse(home.getUsers());
+    }
+
+    /** Returns a state change message for every device. */
+    public List<byte[]> stateChanges(boolean binary) {
+        List<Home.Device> devices = home.getDevices(null);
+
+        List<byte[]> messages = new ArrayList<>(devices.size());
+        for(Home.Device device : devices) {
+            messages.add(codec(binary).encodeDevice(device));
+        }
+        return messages;
+    }
+
+    /** Returns the encoder of the wire format. */
+    private Codec codec(boolean binary) {
+        return binary ? binaryCodec : textCodec;
+    }
+
+}
@@ -0,0 +1,11 @@
+package android;
+
+/** The framework resource identifiers referred to by the model classes. */
+public final class R {
+
+    public static final class string {
+        public static final int ok = 0x01040000;
+        public static final int cancel = 0x01040001;
+    }
+
+}
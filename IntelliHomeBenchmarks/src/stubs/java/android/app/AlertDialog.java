@@ -0,0 +1,26 @@
+package android.app;
+
+import android.content.Context;
+import android.content.DialogInterface;
+import android.view.View;
+
+/** The alert dialog API used by the parameter input dialog of the commands (never shown in the benchmarks). */
+public class AlertDialog implements DialogInterface {
+
+    @Override
+    public void cancel() { }
+
+    public static class Builder {
+
+        public Builder(Context context) { }
+
+        public Builder setTitle(CharSequence title) { return this; }
+        public Builder setView(View view) { return this; }
+        public Builder setPositiveButton(int textId, OnClickListener listener) { return this; }
+        public Builder setNegativeButton(int textId, OnClickListener listener) { return this; }
+
+        public AlertDialog show() { return new AlertDialog(); }
+
+    }
+
+}
@@ -0,0 +1,5 @@
+package android.content;
+
+/** Placeholder of the context type (only needed by the dialog code of the model classes). */
+public abstract class Context {
+}
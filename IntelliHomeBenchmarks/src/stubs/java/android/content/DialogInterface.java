@@ -0,0 +1,14 @@
+package android.content;
+
+/** The dialog interface used by the parameter input dialog of the commands. */
+public interface DialogInterface {
+
+    void cancel();
+
+    interface OnClickListener {
+
+        void onClick(DialogInterface dialog, int which);
+
+    }
+
+}
@@ -0,0 +1,10 @@
+package android.content.res;
+
+import android.graphics.drawable.Drawable;
+
+/** Placeholder of the resources (the default type image is never requested in the benchmarks). */
+public class Resources {
+
+    public Drawable getDrawable(int id) { return null; }
+
+}
@@ -0,0 +1,8 @@
+package android.graphics;
+
+/** Placeholder of the bitmap type. */
+public final class Bitmap {
+
+    private Bitmap() { }
+
+}
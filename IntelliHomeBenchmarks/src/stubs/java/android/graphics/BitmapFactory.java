@@ -0,0 +1,5 @@
+package android.graphics;
+
+/** Placeholder of the bitmap decoder. */
+public class BitmapFactory {
+}
@@ -0,0 +1,5 @@
+package android.graphics.drawable;
+
+/** Placeholder of the drawable wrapping a bitmap. */
+public class BitmapDrawable extends Drawable {
+}
@@ -0,0 +1,5 @@
+package android.graphics.drawable;
+
+/** Placeholder of the drawable type holding the images of the device types. */
+public abstract class Drawable {
+}
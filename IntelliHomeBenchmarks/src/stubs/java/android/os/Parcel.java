@@ -0,0 +1,8 @@
+package android.os;
+
+/** Placeholder of the parcel type (the model classes do not write to it). */
+public final class Parcel {
+
+    private Parcel() { }
+
+}
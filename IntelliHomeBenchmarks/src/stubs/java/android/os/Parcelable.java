@@ -0,0 +1,18 @@
+package android.os;
+
+/** The parcelable interface implemented by the model classes. */
+public interface Parcelable {
+
+    int describeContents();
+
+    void writeToParcel(Parcel dest, int flags);
+
+    interface Creator<T> {
+
+        T createFromParcel(Parcel source);
+
+        T[] newArray(int size);
+
+    }
+
+}
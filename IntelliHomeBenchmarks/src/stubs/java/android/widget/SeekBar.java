@@ -0,0 +1,21 @@
+package android.widget;
+
+import android.view.View;
+
+/** The seek bar API used by the parameter input dialog of the commands. */
+public class SeekBar extends View {
+
+    public void setMax(int max) { }
+    public void setProgress(int progress) { }
+    public int getProgress() { return 0; }
+    public void setOnSeekBarChangeListener(OnSeekBarChangeListener listener) { }
+
+    public interface OnSeekBarChangeListener {
+
+        void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser);
+        void onStartTrackingTouch(SeekBar seekBar);
+        void onStopTrackingTouch(SeekBar seekBar);
+
+    }
+
+}
@@ -0,0 +1,10 @@
+package android.widget;
+
+import android.view.View;
+
+/** The text view API used by the parameter input dialog of the commands. */
+public class TextView extends View {
+
+    public void setText(CharSequence text) { }
+
+}
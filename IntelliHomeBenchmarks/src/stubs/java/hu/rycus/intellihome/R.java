@@ -0,0 +1,19 @@
+package hu.rycus.intellihome;
+
+/** The resource identifiers referred to by the model classes (generated by the Android build in the application). */
+public final class R {
+
+    public static final class drawable {
+        public static final int ic_unknown = 0x7f020000;
+    }
+
+    public static final class layout {
+        public static final int command_param_progress = 0x7f030000;
+    }
+
+    public static final class id {
+        public static final int command_param_range_seekbar = 0x7f050000;
+        public static final int command_param_range_value = 0x7f050001;
+    }
+
+}
@@ -0,0 +1,5 @@
+package hu.rycus.intellihome;
+
+/** Placeholder of the service (the model classes only refer to it in their imports). */
+public class RemoteService {
+}
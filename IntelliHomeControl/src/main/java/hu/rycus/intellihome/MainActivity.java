@@ -125,10 +125,18 @@ public class MainActivity extends ActionBarActivity
         return false;
     }
 
+    /** Returns true if the item is a device list and there are entities restored from the last snapshot. */
+    private boolean isDeviceListAvailableOffline(int navigationItemPosition) {
+        int deviceListEnd = mNavigationDrawerFragment.getStaticItemCountAtStart() + mNavigationDrawerFragment.getDynamicItemCount();
+        return navigationItemPosition < deviceListEnd
+                && rsc != null && rsc.isServiceBound()
+                && !rsc.getService().getEntityStore().isEmpty();
+    }
+
     public boolean allowsSelection(int navigationItemPosition) {
         if(mNavigationDrawerFragment == null) return true; // initialization
 
-        if(navigationItemPosition > 0 && !isConnected()) return false;
+        if(navigationItemPosition > 0 && !isConnected() && !isDeviceListAvailableOffline(navigationItemPosition)) return false;
 
         String item = mNavigationDrawerFragment.getItemAt(navigationItemPosition);
         if(item != null) {
@@ -8,11 +8,18 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 
+import java.io.File;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import hu.rycus.intellihome.model.EntityHistory;
+import hu.rycus.intellihome.model.HistoryOverview;
+import hu.rycus.intellihome.network.BroadcastAdapter;
+import hu.rycus.intellihome.network.Command;
+import hu.rycus.intellihome.network.EntityStore;
+import hu.rycus.intellihome.network.EventBus;
+import hu.rycus.intellihome.network.HistoryExporter;
 import hu.rycus.intellihome.network.RemoteManager;
 
 /**
@@ -35,6 +42,10 @@ public class RemoteService extends Service {
     private Lock startStopLock = new ReentrantLock();
     /** The current remote manager object. */
     private RemoteManager remoteManager = null;
+    /** The entities known by the client (kept up-to-date by the remote manager). */
+    private final EntityStore entityStore = new EntityStore();
+    /** The bus of the events posted by the remote manager. */
+    private final EventBus eventBus = new EventBus();
 
     /** Creates a persistent notification which brings the service to foreground. */
     private Notification createNotification() {
@@ -46,12 +57,21 @@ public class RemoteService extends Service {
         return builder.build();
     }
 
+    /** @see android.app.Service#onCreate() */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // keeps the broadcasts for the components not subscribed to the event bus
+        BroadcastAdapter.register(this, eventBus);
+    }
+
     /** Starts the remote manager. */
     private void start() {
         startStopLock.lock();
         try {
             if(remoteManager == null) {
-                remoteManager = RemoteManager.start(this);
+                remoteManager = RemoteManager.start(this, entityStore, eventBus);
 
                 startForeground(NOTIFICATION_ID, createNotification());
             }
@@ -95,6 +115,22 @@ public class RemoteService extends Service {
         return isConnected() && remoteManager.isAdministratorUser();
     }
 
+    /**
+     * Returns the store of the entities known by the client.
+     * UI components should subscribe to its differences instead of requesting full device lists.
+     */
+    public EntityStore getEntityStore() {
+        return entityStore;
+    }
+
+    /**
+     * Returns the bus of the events posted by the remote manager.
+     * Listeners subscribed here receive the results as typed objects instead of broadcast intents.
+     */
+    public EventBus getEventBus() {
+        return eventBus;
+    }
+
     /* Requests for protocol messages. */
 
     public void requestDeviceTypeList() {
@@ -121,6 +157,42 @@ public class RemoteService extends Service {
         return remoteManager.listHistory(tsFrom, tsTo, entityId, limit, offset);
     }
 
+    public Command requestHistory(Long tsFrom, Long tsTo, String entityId, int limit, int offset) {
+        return remoteManager.requestHistory(tsFrom, tsTo, entityId, limit, offset);
+    }
+
+    public Command requestHistoryAfter(Long tsFrom, Long tsTo, String entityId, int limit, int offset, EntityHistory after) {
+        return remoteManager.requestHistoryAfter(tsFrom, tsTo, entityId, limit, offset, after);
+    }
+
+    public EntityHistory[] awaitHistory(Command command, int limit) {
+        return remoteManager.awaitHistory(command, limit);
+    }
+
+    public HistoryOverview queryHistory(Long tsFrom, Long tsTo, String entityId, int limit) {
+        return remoteManager.queryHistory(tsFrom, tsTo, entityId, limit);
+    }
+
+    public HistoryOverview queryLocalHistory(Long tsFrom, Long tsTo, String entityId, int limit) {
+        return remoteManager.queryLocalHistory(tsFrom, tsTo, entityId, limit);
+    }
+
+    public EntityHistory[] listLocalHistory(Long tsFrom, Long tsTo, String entityId, int limit, int offset) {
+        return remoteManager.listLocalHistory(tsFrom, tsTo, entityId, limit, offset);
+    }
+
+    public void updateHistorySubscription() {
+        remoteManager.updateHistorySubscription();
+    }
+
+    public HistoryExporter exportHistory(Long tsFrom, Long tsTo, String entityId, File file) {
+        return remoteManager.exportHistory(tsFrom, tsTo, entityId, file);
+    }
+
+    public int getQueueDepth() {
+        return remoteManager.getQueueDepth();
+    }
+
     public void requestUserList() {
         remoteManager.requestUserList();
     }
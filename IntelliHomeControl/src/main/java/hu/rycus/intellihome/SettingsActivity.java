@@ -121,6 +121,11 @@ public class SettingsActivity extends PreferenceActivity {
         bindPreferenceSummaryToValue(findPreference(PreferenceKeys.Communication.MODE));
         bindPreferenceSummaryToValue(findPreference(PreferenceKeys.Communication.HOST));
         bindPreferenceSummaryToValue(findPreference(PreferenceKeys.Communication.PORT));
+        bindCommunicationRestart(findPreference(PreferenceKeys.Communication.PIPELINE));
+        bindCommunicationRestart(findPreference(PreferenceKeys.Communication.SEQUENCED));
+        bindCommunicationRestart(findPreference(PreferenceKeys.Communication.BINARY));
+        bindPreferenceSummaryToValue(findPreference(PreferenceKeys.Communication.BATCH_WINDOW));
+        bindPreferenceSummaryToValue(findPreference(PreferenceKeys.Communication.IMAGE_REQUESTS));
 
         handleCommunicationChanges = true;
     }
@@ -223,4 +228,21 @@ public class SettingsActivity extends PreferenceActivity {
                         .getString(preference.getKey(), ""));
     }
 
+    /**
+     * Restarts the communication when the value of a (non-string)
+     * communication related preference is changed.
+     */
+    private void bindCommunicationRestart(Preference preference) {
+        preference.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object o) {
+                if(handleCommunicationChanges && rsc.isServiceBound()) {
+                    rsc.getService().restartCommunication();
+                }
+
+                return true;
+            }
+        });
+    }
+
 }
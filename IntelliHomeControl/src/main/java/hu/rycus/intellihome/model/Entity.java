@@ -3,6 +3,10 @@ package hu.rycus.intellihome.model;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.BinaryWriter;
+import hu.rycus.intellihome.util.FieldCursor;
+
 /**
  * Data class representing an entity.
  *
@@ -55,73 +59,53 @@ public class Entity implements Parcelable {
     public long getLastCheckin() { return lastCheckin; }
 
     /**
-     * Deserializes the parameter values of an entity with
-     * data received from the server and instantiates one.
-     * @param data The string data received from the server
-     * @param offset The offset in the string holding the parameter values of the entity
-     * @param output An array used to store the output entity
-     * @return The number of characters used to process the values
+     * Deserializes the parameter values of an entity
+     * at the current position of the cursor and instantiates one.
+     * The ',' separator after the entity is consumed.
+     * @param cursor The cursor over the data received from the server
+     * @return The deserialized entity
      */
-    public static int deserialize(String data, int offset, Entity[] output) {
-        String id = null;
-        EntityType type = null;
-        String name = null;
-        EntityState state = null;
-        String stateValue = null;
-        long lastCheckin = 0L;
-
-        StringBuilder builder = new StringBuilder();
-
-        int var = 0;
-
-        int read = 0;
-        while(offset < data.length()) {
-            char c = data.charAt(offset++);
-            read++;
-
-            if(c == ',' && var == 5) {
-                break;
-            } else if(c == ';') {
-                if(var == 0) {
-                    id = builder.toString();
-                    builder.setLength(0);
-                    var++;
-                } else if(var == 1) {
-                    int eType = Integer.parseInt(builder.toString());
-                    type = EntityType.get(eType);
-                    builder.setLength(0);
-                    var ++;
-                } else if(var == 2) {
-                    name = builder.toString();
-                    builder.setLength(0);
-                    var++;
-
-                    // if (var == 3):
-                    EntityState[] sOutput = new EntityState[1];
-                    int rs = EntityState.deserialize(data, offset, sOutput);
-
-                    state = sOutput[0];
-                    read += rs;
-                    offset += rs;
-
-                    var++;
-                } else if(var == 4) {
-                    if(builder.length() > 0) {
-                        stateValue = builder.toString();
-                    }
-                    builder.setLength(0);
-                    var++;
-                }
-            } else {
-                builder.append(String.valueOf(c));
-            }
-        }
-
-        lastCheckin = (long) (Double.parseDouble(builder.toString()) * 1000L);
+    public static Entity deserialize(FieldCursor cursor) {
+        String id = cursor.readString(';');
+        EntityType type = EntityType.get(cursor.readInt());
+        String name = cursor.readString(';');
+        EntityState state = EntityState.deserialize(cursor);
+        String stateValue = cursor.readOptionalString(';');
+        long lastCheckin = cursor.readMillis();
+
+        return new Entity(id, type, name, state, stateValue, lastCheckin);
+    }
 
-        output[0] = new Entity(id, type, name, state, stateValue, lastCheckin);
+    /**
+     * Deserializes an entity from binary data received from the server.
+     * The fields are the identifier (string), the type identifier (varint), the name (string),
+     * the state, the state parameter value (string, empty if not set)
+     * and the timestamp of the last check-in (in milliseconds).
+     * @param reader The reader positioned at the entity
+     * @return The deserialized entity
+     */
+    public static Entity deserialize(BinaryReader reader) {
+        String id = reader.readString();
+        EntityType type = EntityType.get(reader.readVarint());
+        String name = reader.readString();
+        EntityState state = EntityState.deserialize(reader);
+        String stateValue = reader.readOptionalString();
+        long lastCheckin = reader.readTimestamp();
+
+        return new Entity(id, type, name, state, stateValue, lastCheckin);
+    }
 
-        return read;
+    /**
+     * Serializes the entity in the binary format read by {@link #deserialize(BinaryReader)}.
+     * @param writer The writer to append the entity to
+     */
+    public void serialize(BinaryWriter writer) {
+        writer.writeString(id);
+        writer.writeVarint(type.getId());
+        writer.writeString(name);
+        state.serialize(writer);
+        writer.writeString(stateValue);
+        writer.writeTimestamp(lastCheckin);
     }
 
     /**
@@ -10,6 +10,9 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 
 import hu.rycus.intellihome.R;
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.BinaryWriter;
+import hu.rycus.intellihome.util.FieldCursor;
 
 /**
  * Data class representing a command that
@@ -46,54 +49,41 @@ public class EntityCommand implements Parcelable {
     public String getParameterType() { return parameterType; }
 
     /**
-     * Deserializes the parameter values of a command with
-     * data received from the server and instantiates one.
-     * @param data The string data received from the server
-     * @param offset The offset in the string holding the parameter values of the command
-     * @param output An array used to store the output command
-     * @return The number of characters used to process the values
+     * Deserializes the parameter values of a command
+     * at the current position of the cursor and instantiates one.
+     * The closing delimiter (',' or ']') of the command is not consumed.
+     * @param cursor The cursor over the data received from the server
+     * @return The deserialized command
      */
-    public static int deserialize(String data, int offset, EntityCommand[] output) {
-        int id = -1;
-        String name = null;
-        String pType = null;
-
-        StringBuilder builder = new StringBuilder();
-
-        int read = 0;
-        int var = 0;
-
-        while(offset < data.length()) {
-            char c = data.charAt(offset++);
-            read++;
-
-            if(var == 2 && (c == ',' || c == ']')) {
-                pType = builder.toString();
-                if(pType.trim().isEmpty()) {
-                    pType = null;
-                }
-
-                read--;
-                break;
-            } else if(c == ';') {
-                if(var == 0) {
-                    id = Integer.parseInt(builder.toString());
-                    builder.setLength(0);
-                } else if(var == 1) {
-                    name = builder.toString();
-                    builder.setLength(0);
-                }
-                var++;
-            } else {
-                builder.append(c);
-            }
-        }
+    public static EntityCommand deserialize(FieldCursor cursor) {
+        int id = cursor.readInt();
+        String name = cursor.readShared(';');
+        String pType = cursor.readOptionalStringBefore(',', ']');
+        return new EntityCommand(id, name, pType);
+    }
 
-        if(read > 0) {
-            output[0] = new EntityCommand(id, name, pType);
-        }
+    /**
+     * Deserializes a command from binary data received from the server.
+     * The fields are the identifier (varint), the name (string)
+     * and the type of the optional parameter (string, empty if there is none).
+     * @param reader The reader positioned at the command
+     * @return The deserialized command
+     */
+    public static EntityCommand deserialize(BinaryReader reader) {
+        int id = reader.readVarint();
+        String name = reader.readString();
+        String pType = reader.readOptionalString();
+        return new EntityCommand(id, name, pType);
+    }
 
-        return read;
+    /**
+     * Serializes the command in the binary format read by {@link #deserialize(BinaryReader)}.
+     * @param writer The writer to append the command to
+     */
+    public void serialize(BinaryWriter writer) {
+        writer.writeVarint(id);
+        writer.writeString(name);
+        writer.writeString(parameterType);
     }
 
     /**
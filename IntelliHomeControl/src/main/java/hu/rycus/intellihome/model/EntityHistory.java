@@ -3,6 +3,9 @@ package hu.rycus.intellihome.model;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.FieldCursor;
+
 /**
  * Data class representing an entry in the history.
  *
@@ -49,60 +52,50 @@ public class EntityHistory implements Parcelable {
     public String getActionType() { return actionType; }
 
     /**
-     * Deserializes the parameter values of a history entry with
-     * data received from the server and instantiates one.
-     * @param data The string data received from the server
-     * @param offset The offset in the string holding the parameter values of the history entry
-     * @param output An array used to store the output history entry
-     * @return The number of characters used to process the values
+     * Deserializes the parameter values of a history entry
+     * at the current position of the cursor and instantiates one.
+     * The '#' separator after the entry is consumed.
+     * @param cursor The cursor over the data received from the server
+     * @return The deserialized history entry
      */
-    public static int deserialize(String data, int offset, EntityHistory[] output) {
-        long timestamp = -1;
-        String eId = null;
-        String eName = null;
-        String action = null;
-        String aType = null;
-
-        StringBuilder builder = new StringBuilder();
-
-        int read = 0;
-        int var = 0;
-
-        while(offset < data.length()) {
-            char c = data.charAt(offset++);
-            read++;
-
-            if(c == '#') {
-                break;
-            } else if(c == ';') {
-                if(var == 0) {
-                    timestamp = Math.round(Double.parseDouble(builder.toString())) * 1000L;
-                    builder.setLength(0);
-                } else if(var == 1) {
-                    eId = builder.toString();
-                    builder.setLength(0);
-                } else if(var == 2) {
-                    eName = builder.toString();
-                    builder.setLength(0);
-                } else if(var == 3) {
-                    action = builder.toString();
-                    builder.setLength(0);
-                }
-                var++;
-            } else {
-                builder.append(c);
-            }
-        }
-
-        if(read > 0 && var == 4) {
-            aType = builder.toString();
-        }
+    public static EntityHistory deserialize(FieldCursor cursor) {
+        long timestamp = cursor.readMillis(); // keep the milliseconds, the timestamp is a key of keyset requests
+        String eId = cursor.readShared(';');
+        String eName = cursor.readShared(';');
+        String action = cursor.readShared(';');
+        String aType = cursor.readShared('#');
+
+        return new EntityHistory(timestamp, eId, eName, action, aType);
+    }
 
-        if(read > 0) {
-            output[0] = new EntityHistory(timestamp, eId, eName, action, aType);
-        }
+    /**
+     * Deserializes a history entry from binary data received from the server.
+     * The fields are the timestamp (in milliseconds), the identifier and the name of the entity,
+     * the action and the type of the action (strings).
+     * @param reader The reader positioned at the history entry
+     * @return The deserialized history entry
+     */
+    public static EntityHistory deserialize(BinaryReader reader) {
+        long timestamp = reader.readTimestamp();
+        String eId = reader.readString();
+        String eName = reader.readString();
+        String action = reader.readString();
+        String aType = reader.readString();
+
+        return new EntityHistory(timestamp, eId, eName, action, aType);
+    }
 
-        return read;
+    /**
+     * Instantiates a history entry restored from the local history store.
+     * @param timestamp The timestamp of the history entry (in milliseconds)
+     * @param entityId The identifier of the entity related to the history entry
+     * @param entityName The name of the entity related to the history entry
+     * @param action The action related to the history entry as human-readable string
+     * @param actionType The type of the action related to the history entry
+     * @return The restored history entry
+     */
+    public static EntityHistory restore(long timestamp, String entityId, String entityName, String action, String actionType) {
+        return new EntityHistory(timestamp, entityId, entityName, action, actionType);
     }
 
     /**
@@ -3,6 +3,10 @@ package hu.rycus.intellihome.model;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.BinaryWriter;
+import hu.rycus.intellihome.util.FieldCursor;
+
 /**
  * Data class representing the state of an entity.
  *
@@ -31,45 +35,36 @@ public class EntityState implements Parcelable {
     public String getName() { return name; }
 
     /**
-     * Deserializes the parameter values of a state object with
-     * data received from the server and instantiates one.
-     * @param data The string data received from the server
-     * @param offset The offset in the string holding the parameter values of the state object
-     * @param output An array used to store the output state object
-     * @return The number of characters used to process the values
+     * Deserializes the parameter values of a state object
+     * at the current position of the cursor and instantiates one.
+     * @param cursor The cursor over the data received from the server
+     * @return The deserialized state object
      */
-    public static int deserialize(String data, int offset, EntityState[] output) {
-        int id = -1;
-        String name = null;
-
-        StringBuilder builder = new StringBuilder();
-
-        int read = 0;
-        int var = 0;
-
-        while(offset < data.length()) {
-            char c = data.charAt(offset++);
-            read++;
-
-            if(c == ';') {
-                if(var == 0) {
-                    id = Integer.parseInt(builder.toString());
-                    builder.setLength(0);
-                    var++;
-                } else if(var == 1) {
-                    name = builder.toString();
-                    break;
-                }
-            } else {
-                builder.append(c);
-            }
-        }
+    public static EntityState deserialize(FieldCursor cursor) {
+        int id = cursor.readInt();
+        String name = cursor.readShared(';');
+        return new EntityState(id, name);
+    }
 
-        if(read > 0) {
-            output[0] = new EntityState(id, name);
-        }
+    /**
+     * Deserializes a state object from binary data received from the server.
+     * The fields are the identifier (varint) and the name (string).
+     * @param reader The reader positioned at the state object
+     * @return The deserialized state object
+     */
+    public static EntityState deserialize(BinaryReader reader) {
+        int id = reader.readVarint();
+        String name = reader.readString();
+        return new EntityState(id, name);
+    }
 
-        return read;
+    /**
+     * Serializes the state in the binary format read by {@link #deserialize(BinaryReader)}.
+     * @param writer The writer to append the state to
+     */
+    public void serialize(BinaryWriter writer) {
+        writer.writeVarint(id);
+        writer.writeString(name);
     }
 
     /**
@@ -8,15 +8,18 @@ import android.graphics.drawable.Drawable;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 
 import hu.rycus.intellihome.R;
 import hu.rycus.intellihome.RemoteService;
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.BinaryWriter;
+import hu.rycus.intellihome.util.FieldCursor;
 
 /**
  * Data class representing an entity type.
@@ -88,74 +91,88 @@ public class EntityType implements Parcelable {
     public static Collection<EntityType> list() { return cache.values(); }
 
     /**
-     * Deserializes the parameter values of an entity type with
-     * data received from the server and instantiates one
+     * Deserializes the parameter values of an entity type
+     * at the current position of the cursor and instantiates one
      * then registers it in the local lookup cache.
-     * @param data The string data received from the server
-     * @param offset The offset in the string holding the parameter values of the entity type
-     * @return The number of characters used to process the values
+     * The ',' separator after the entity type is consumed.
+     * @param cursor The cursor over the data received from the server
+     * @return The deserialized entity type
      */
-    public static int deserialize(String data, int offset) {
-        int id = 0;
-        String name = null;
-        String color = null;
-        String image = null;
-        List<EntityCommand> commands = new LinkedList<>();
-
-        StringBuilder builder = new StringBuilder();
-
-        int read = 0;
-        int var = 0;
-
-        while(offset < data.length()) {
-            char c = data.charAt(offset++);
-            read++;
-
-            if(c == ';') {
-                if(var == 0) {
-                    id = Integer.parseInt(builder.toString());
-                    builder.setLength(0);
-                } else if(var == 1) {
-                    name = builder.toString();
-                    builder.setLength(0);
-                } else if(var == 2) {
-                    color = builder.toString();
-                    if(color.trim().isEmpty()) {
-                        color = null;
-                    }
-                    builder.setLength(0);
-                } else if(var == 3) {
-                    image = builder.toString();
-                    if(image.trim().isEmpty()) {
-                        image = null;
-                    }
-                    builder.setLength(0);
-                }
-                var++;
-            } else if(var == 4) {
-                // if(c == '[' || c == ',') continue;
-                if(c == ']') {
-                    read++;
-                    offset++;
-                    break;
-                }
-
-                EntityCommand[] cOutput = new EntityCommand[1];
-                int rc = EntityCommand.deserialize(data, offset, cOutput);
-                if(rc > 0) {
-                    commands.add(cOutput[0]);
-                    read += rc;
-                    offset += rc;
-                }
-            } else {
-                builder.append(c);
-            }
+    public static EntityType deserialize(FieldCursor cursor) {
+        int id = cursor.readInt();
+        String name = cursor.readString(';');
+        String color = cursor.readOptionalString(';');
+        String image = cursor.readOptionalString(';');
+
+        List<EntityCommand> commands = new ArrayList<>();
+
+        cursor.skip('[');
+        while(cursor.hasRemaining()) {
+            if(cursor.skip(']')) break;
+
+            commands.add(EntityCommand.deserialize(cursor));
+            cursor.skip(',');
+        }
+        cursor.skip(',');
+
+        EntityType type = new EntityType(id, name, color, image, commands.toArray(new EntityCommand[commands.size()]));
+        register(type);
+
+        return type;
+    }
+
+    /**
+     * Deserializes an entity type from binary data received from the server
+     * then registers it in the local lookup cache.
+     * The fields are the identifier (varint), the name (string), the color code and
+     * the image filename (strings, empty if not set), then the number of commands (varint)
+     * followed by the commands.
+     * @param reader The reader positioned at the entity type
+     * @return The deserialized entity type
+     */
+    public static EntityType deserialize(BinaryReader reader) {
+        int id = reader.readVarint();
+        String name = reader.readString();
+        String color = reader.readOptionalString();
+        String image = reader.readOptionalString();
+
+        EntityCommand[] commands = new EntityCommand[reader.readVarint()];
+        for(int idx = 0; idx < commands.length; idx++) {
+            commands[idx] = EntityCommand.deserialize(reader);
         }
 
-        EntityType type = new EntityType(id, name, color, image, commands.toArray(new EntityCommand[0]));
-        cache.put(id, type);
+        EntityType type = new EntityType(id, name, color, image, commands);
+        register(type);
 
-        return read;
+        return type;
+    }
+
+    /**
+     * Serializes the type in the binary format read by {@link #deserialize(BinaryReader)}.
+     * @param writer The writer to append the type to
+     */
+    public void serialize(BinaryWriter writer) {
+        writer.writeVarint(id);
+        writer.writeString(name);
+        writer.writeString(colorCode);
+        writer.writeString(imageFilename);
+
+        writer.writeVarint(commands.length);
+        for(EntityCommand command : commands) {
+            command.serialize(writer);
+        }
+    }
+
+    /**
+     * Registers a type in the local lookup cache keeping the image
+     * of the previously registered instance if it refers to the same file.
+     */
+    private static void register(EntityType type) {
+        EntityType previous = cache.put(type.id, type);
+        if(previous != null && previous.image != null && previous.imageFilename != null
+                && previous.imageFilename.equals(type.imageFilename)) {
+            type.image = previous.image;
+        }
     }
 
     /**
@@ -0,0 +1,161 @@
+package hu.rycus.intellihome.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.FieldCursor;
+
+/**
+ * Data class representing the overview of the history entries matching a filter:
+ * the number of entries in total and by day, with the first page of the entries.
+ * Since the entries are listed the most recent first, the days are in the same order,
+ * so the day (section) of any position in the list can be found without loading its entry.
+ *
+ * Created by Viktor Adam on 2/5/14.
+ */
+public class HistoryOverview {
+
+    /** The length of a day in milliseconds. */
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+
+    /** The number of matching entries. */
+    private final int count;
+    /** The start of the days having matching entries (in milliseconds), the most recent first. */
+    private final long[] days;
+    /** The number of matching entries on each day. */
+    private final int[] dayCounts;
+    /** The position of the first entry of each day in the list. */
+    private final int[] dayOffsets;
+    /** The first page of the matching entries. */
+    private final EntityHistory[] entries;
+
+    /**
+     * Public constructor.
+     * @param count The number of matching entries
+     * @param days The start of the days having matching entries (in milliseconds), the most recent first
+     * @param dayCounts The number of matching entries on each day
+     * @param entries The first page of the matching entries
+     */
+    public HistoryOverview(int count, long[] days, int[] dayCounts, EntityHistory[] entries) {
+        this.count = count;
+        this.days = days;
+        this.dayCounts = dayCounts;
+        this.entries = entries;
+
+        this.dayOffsets = new int[dayCounts.length];
+        for(int idx = 1; idx < dayCounts.length; idx++) {
+            dayOffsets[idx] = dayOffsets[idx - 1] + dayCounts[idx - 1];
+        }
+    }
+
+    /** Returns the number of matching entries. */
+    public int getCount() { return count; }
+    /** Returns the first page of the matching entries. */
+    public EntityHistory[] getEntries() { return entries; }
+    /** Returns the number of days having matching entries (zero if the server did not count them). */
+    public int getDayCount() { return days.length; }
+    /** Returns the start of a day (in milliseconds). */
+    public long getDay(int dayIndex) { return days[dayIndex]; }
+    /** Returns the number of matching entries on a day. */
+    public int getEntryCount(int dayIndex) { return dayCounts[dayIndex]; }
+
+    /**
+     * Returns the index of the day containing the entry at the given position in the list.
+     * @return The index of the day or -1 if the days are not known
+     */
+    public int getDayIndex(int position) {
+        int index = Arrays.binarySearch(dayOffsets, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /** Returns true if the entry at the given position is the first (most recent) one of its day. */
+    public boolean isFirstOfDay(int position) {
+        return Arrays.binarySearch(dayOffsets, position) >= 0;
+    }
+
+    /**
+     * Returns the start of the day containing a timestamp (in milliseconds, like the days of the overview).
+     * @param timestamp The timestamp (in milliseconds)
+     * @param zoneOffset The offset of the time zone from UTC in milliseconds
+     */
+    public static long getDayStart(long timestamp, long zoneOffset) {
+        return (timestamp + zoneOffset) / DAY * DAY - zoneOffset;
+    }
+
+    /**
+     * Creates an overview without the per-day counts (for servers not supporting the combined query).
+     * @param count The number of matching entries
+     * @param entries The first page of the matching entries (or null if not loaded)
+     */
+    public static HistoryOverview of(int count, EntityHistory[] entries) {
+        return new HistoryOverview(count, new long[0], new int[0], entries);
+    }
+
+    /**
+     * Deserializes an overview from text data received from the server
+     * in the count;day:count,day:count#entry#entry... form
+     * (the days are given as the number of days since the epoch in the client's time zone).
+     * @param data The string data received from the server
+     * @param zoneOffset The offset of the client's time zone from UTC in milliseconds (sent with the request)
+     * @param limit The number of entries requested (the expected size of the first page)
+     */
+    public static HistoryOverview deserialize(String data, long zoneOffset, int limit) {
+        int entriesStart = data.indexOf('#');
+        if(entriesStart < 0) entriesStart = data.length();
+
+        FieldCursor header = new FieldCursor(data, 0, entriesStart);
+        int count = header.readInt();
+
+        ArrayList<long[]> dayList = new ArrayList<>();
+        while(header.hasRemaining()) {
+            long day = header.readInt();
+            long dayCount = header.readInt();
+            dayList.add(new long[] { day, dayCount });
+        }
+
+        long[] days = new long[dayList.size()];
+        int[] dayCounts = new int[dayList.size()];
+        for(int idx = 0; idx < days.length; idx++) {
+            days[idx] = dayList.get(idx)[0] * DAY - zoneOffset;
+            dayCounts[idx] = (int) dayList.get(idx)[1];
+        }
+
+        ArrayList<EntityHistory> entries = new ArrayList<>(Math.min(limit, count));
+        FieldCursor cursor = new FieldCursor(data, entriesStart);
+        cursor.skip('#');
+        while(cursor.hasRemaining()) {
+            entries.add(EntityHistory.deserialize(cursor));
+        }
+
+        return new HistoryOverview(count, days, dayCounts, entries.toArray(new EntityHistory[entries.size()]));
+    }
+
+    /**
+     * Deserializes an overview from binary data received from the server:
+     * the count, the number of days followed by the day (days since the epoch in the client's time zone)
+     * and count pairs, then the entries as a list.
+     * @param reader The reader positioned at the overview
+     * @param zoneOffset The offset of the client's time zone from UTC in milliseconds (sent with the request)
+     */
+    public static HistoryOverview deserialize(BinaryReader reader, long zoneOffset) {
+        int count = reader.readVarint();
+
+        int dayNumber = reader.readVarint();
+        long[] days = new long[dayNumber];
+        int[] dayCounts = new int[dayNumber];
+        for(int idx = 0; idx < dayNumber; idx++) {
+            days[idx] = reader.readVarint() * DAY - zoneOffset;
+            dayCounts[idx] = reader.readVarint();
+        }
+
+        int entryNumber = reader.readVarint();
+        EntityHistory[] entries = new EntityHistory[entryNumber];
+        for(int idx = 0; idx < entryNumber; idx++) {
+            entries[idx] = EntityHistory.deserialize(reader);
+        }
+
+        return new HistoryOverview(count, days, dayCounts, entries);
+    }
+
+}
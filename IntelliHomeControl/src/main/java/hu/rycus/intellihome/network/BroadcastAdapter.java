@@ -0,0 +1,107 @@
+package hu.rycus.intellihome.network;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
+
+import hu.rycus.intellihome.util.Intents;
+
+/**
+ * Compatibility adapter translating the events of the {@link EventBus}
+ * to the local broadcasts (with the actions and extras in {@link Intents})
+ * for the components still listening to those:
+ * <ul>
+ *     <li>connection changes and server errors for the MainActivity and the StatusFragment</li>
+ *     <li>device type list results for the MainActivity</li>
+ *     <li>user lists and changes for the UserListFragment</li>
+ * </ul>
+ * The device lists and state changes are only delivered on the bus
+ * (their receivers subscribe to it directly).
+ *
+ * Created by Viktor Adam on 1/28/14.
+ */
+public class BroadcastAdapter {
+
+    /** The context to send the broadcasts with. */
+    private final Context context;
+
+    /**
+     * Private constructor.
+     * @param context The context to send the broadcasts with
+     */
+    private BroadcastAdapter(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Subscribes an adapter to the events of the bus (delivered on the posting thread,
+     * since the local broadcasts are delivered on the main thread anyway).
+     * @param context The context to send the broadcasts with
+     * @param bus The bus to translate the events of
+     */
+    public static void register(Context context, EventBus bus) {
+        BroadcastAdapter adapter = new BroadcastAdapter(context);
+
+        bus.subscribe(Events.ConnectionChanged.class, adapter.connectionChanged, EventBus.Delivery.POSTING_THREAD);
+        bus.subscribe(Events.ServerError.class, adapter.serverError, EventBus.Delivery.POSTING_THREAD);
+        bus.subscribe(Events.DeviceTypesListed.class, adapter.deviceTypesListed, EventBus.Delivery.POSTING_THREAD);
+        bus.subscribe(Events.UsersListed.class, adapter.usersListed, EventBus.Delivery.POSTING_THREAD);
+        bus.subscribe(Events.UsersChanged.class, adapter.usersChanged, EventBus.Delivery.POSTING_THREAD);
+    }
+
+    /** Sends a local broadcast. */
+    private void send(Intent intent) {
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+
+    /** Creates an intent with the error message of the event (if it has one). */
+    private Intent createIntent(String action, Events.Result event) {
+        Intent intent = new Intent(action);
+        if(event.isError()) {
+            intent.putExtra(Intents.EXTRA_ERROR, event.getError());
+        }
+        return intent;
+    }
+
+    private final EventBus.Listener<Events.ConnectionChanged> connectionChanged = new EventBus.Listener<Events.ConnectionChanged>() {
+        @Override
+        public void onEvent(Events.ConnectionChanged event) {
+            Intent intent = new Intent(Intents.ACTION_CALLBACK);
+            intent.putExtra(Intents.EXTRA_CONNECTION_STATE, event.isConnected());
+            send(intent);
+        }
+    };
+
+    private final EventBus.Listener<Events.ServerError> serverError = new EventBus.Listener<Events.ServerError>() {
+        @Override
+        public void onEvent(Events.ServerError event) {
+            send(createIntent(Intents.ACTION_CALLBACK, event));
+        }
+    };
+
+    private final EventBus.Listener<Events.DeviceTypesListed> deviceTypesListed = new EventBus.Listener<Events.DeviceTypesListed>() {
+        @Override
+        public void onEvent(Events.DeviceTypesListed event) {
+            send(createIntent(Intents.ACTION_DEVICE_TYPES_LISTED, event));
+        }
+    };
+
+    private final EventBus.Listener<Events.UsersListed> usersListed = new EventBus.Listener<Events.UsersListed>() {
+        @Override
+        public void onEvent(Events.UsersListed event) {
+            Intent intent = new Intent(Intents.ACTION_USER_LIST);
+            if(event.getUsers() != null) {
+                intent.putExtra(Intents.EXTRA_USER_LIST, event.getUsers());
+            }
+            send(intent);
+        }
+    };
+
+    private final EventBus.Listener<Events.UsersChanged> usersChanged = new EventBus.Listener<Events.UsersChanged>() {
+        @Override
+        public void onEvent(Events.UsersChanged event) {
+            send(new Intent(Intents.ACTION_USERS_CHANGED));
+        }
+    };
+
+}
@@ -0,0 +1,149 @@
+package hu.rycus.intellihome.network;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Write-side batching layer for framed TCP output.
+ * Frames are collected in a buffer and written to the stream in one call
+ * when the buffer is full, the oldest buffered frame is older than the
+ * latency threshold (checked when a frame is added and when the owner polls it
+ * with {@link #flushIfDue(long)}) or when the owner requests a flush explicitly.
+ *
+ * Created by Viktor Adam on 1/16/14.
+ */
+class CoalescingWriter {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|Batch";
+
+    /** The length of the frame header (header byte and two bytes of data length). */
+    private static final int FRAME_HEADER_LENGTH = 3;
+
+    /** The output stream to write the frames to. */
+    private final OutputStream output;
+    /** The buffer collecting the frames. */
+    private final byte[] buffer;
+    /** The maximum time in milliseconds a frame can wait in the buffer. */
+    private final long maxDelay;
+
+    /** The number of bytes in the buffer. */
+    private int length = 0;
+    /** The number of frames in the buffer. */
+    private int frames = 0;
+    /** The time when the oldest frame in the buffer was added. */
+    private long firstFrameTime = 0L;
+
+    /** The number of flushes so far. */
+    private long flushCount = 0L;
+    /** The number of frames written so far. */
+    private long frameCount = 0L;
+    /** The number of bytes written so far. */
+    private long byteCount = 0L;
+    /** The maximum number of frames written in one flush. */
+    private int maxFramesPerFlush = 0;
+
+    /**
+     * Package-private constructor.
+     * @param output The output stream to write the frames to
+     * @param size The size of the buffer (the buffer is flushed when it is full)
+     * @param maxDelay The maximum time in milliseconds a frame can wait in the buffer
+     */
+    CoalescingWriter(OutputStream output, int size, long maxDelay) {
+        this.output = output;
+        this.buffer = new byte[size];
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Adds a frame to the buffer, flushing the buffer if a threshold is reached.
+     * @param header The header of the frame
+     * @param data The contents of the frame
+     */
+    synchronized void writeFrame(int header, byte[] data) throws IOException {
+        int frameLength = FRAME_HEADER_LENGTH + data.length;
+
+        if(length + frameLength > buffer.length) {
+            flush();
+        }
+
+        if(frameLength > buffer.length) {
+            // too large to buffer, send it on its own
+            output.write(frameHeader(header, data.length));
+            output.write(data);
+            output.flush();
+
+            recordFlush(1, frameLength);
+            return;
+        }
+
+        buffer[length++] = (byte) header;
+        buffer[length++] = (byte) ((data.length & 0xFF00) >> 8);
+        buffer[length++] = (byte) ( data.length & 0x00FF);
+        System.arraycopy(data, 0, buffer, length, data.length);
+        length += data.length;
+
+        long now = System.currentTimeMillis();
+        if(frames++ == 0) {
+            firstFrameTime = now;
+        }
+
+        if(length == buffer.length) {
+            flush();
+        } else {
+            flushIfDue(now);
+        }
+    }
+
+    /**
+     * Writes the buffered frames to the output stream if the oldest of them
+     * is waiting longer than the latency threshold.
+     * @param now The current time in milliseconds
+     */
+    synchronized void flushIfDue(long now) throws IOException {
+        if(frames > 0 && now - firstFrameTime >= maxDelay) {
+            flush();
+        }
+    }
+
+    /** Writes the buffered frames to the output stream. */
+    synchronized void flush() throws IOException {
+        if(frames == 0) return;
+
+        try {
+            output.write(buffer, 0, length);
+            output.flush();
+
+            recordFlush(frames, length);
+        } finally {
+            length = 0;
+            frames = 0;
+        }
+    }
+
+    /** Updates the statistics after a flush. */
+    private void recordFlush(int flushedFrames, int flushedBytes) {
+        flushCount++;
+        frameCount += flushedFrames;
+        byteCount  += flushedBytes;
+        maxFramesPerFlush = Math.max(maxFramesPerFlush, flushedFrames);
+
+        Log.v(LOG_TAG, "Flushed " + flushedFrames + " frame(s), " + flushedBytes + " bytes");
+    }
+
+    /** Returns a frame header for the given header and data length. */
+    private static byte[] frameHeader(int header, int dataLength) {
+        return new byte[] { (byte) header, (byte) ((dataLength & 0xFF00) >> 8), (byte) (dataLength & 0x00FF) };
+    }
+
+    @Override
+    public synchronized String toString() {
+        double average = flushCount > 0 ? (double) frameCount / flushCount : 0.0;
+        return getClass().getSimpleName() + " flushes: " + flushCount + ", frames: " + frameCount +
+                ", bytes: " + byteCount + ", frames/flush: " + String.format(Locale.US, "%.2f", average) + " (max " + maxFramesPerFlush + ")";
+    }
+
+}
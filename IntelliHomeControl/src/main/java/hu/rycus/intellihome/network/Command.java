@@ -1,6 +1,7 @@
 package hu.rycus.intellihome.network;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -12,6 +13,12 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class Command {
 
+    /** Generator for the locally unique command identifiers. */
+    private static final AtomicInteger idSequence = new AtomicInteger(0);
+
+    /** The locally unique identifier of the command (it is not sent to the server). */
+    private final int id = idSequence.incrementAndGet();
+
     /** The header of the command. */
     private final int header;
     /** The contents of the command as byte array. */
@@ -19,6 +26,20 @@ public class Command {
 
     /** The packet received in response to the command. */
     private Packet response;
+    /** True if the command is completed (with or without a response). */
+    private boolean completed = false;
+    /** True if the command was taken from the queue to be sent to the server. */
+    private boolean sent = false;
+    /** True if the command was cancelled before it was sent. */
+    private boolean cancelled = false;
+    /** Optional callback to execute when the command is completed. */
+    private ResponseCallback callback;
+    /** The time (in milliseconds) until the response is expected to arrive. */
+    private long deadline = Long.MAX_VALUE;
+    /** The time (in milliseconds) until the command has to be sent (it is dropped from the queue afterwards). */
+    private long sendDeadline = Long.MAX_VALUE;
+    /** The time (from System.nanoTime()) the command was enqueued. */
+    private long enqueued = 0L;
     /** Lock object to wait for the response. */
     private final Lock responseLock = new ReentrantLock();
     /** Condition object to wait for the response. */
@@ -53,6 +74,9 @@ public class Command {
         this.data = data != null ? data.getBytes() : new byte[0];
     }
 
+    /** Returns the locally unique identifier of the command (it is not sent to the server). */
+    public int getId() { return id; }
+
     /** Returns the header of the command. */
     public int getHeader() { return header; }
 
@@ -65,6 +89,85 @@ public class Command {
      */
     public String getStringData() { return new String(data); }
 
+    /** Sets the callback to execute when the command is completed. */
+    public Command setCallback(ResponseCallback callback) {
+        this.callback = callback;
+        return this;
+    }
+
+    /** Returns the time (in milliseconds) until the response is expected to arrive. */
+    long getDeadline() { return deadline; }
+    /** Sets the time (in milliseconds) until the response is expected to arrive. */
+    void setDeadline(long deadline) { this.deadline = deadline; }
+    /** Returns the time (in milliseconds) until the command has to be sent. */
+    long getSendDeadline() { return sendDeadline; }
+    /** Sets the time (in milliseconds) until the command has to be sent. */
+    void setSendDeadline(long sendDeadline) { this.sendDeadline = sendDeadline; }
+    /** Returns the time (from System.nanoTime()) the command was enqueued. */
+    long getEnqueued() { return enqueued; }
+    /** Sets the time (from System.nanoTime()) the command was enqueued. */
+    void setEnqueued(long enqueued) { this.enqueued = enqueued; }
+
+    /**
+     * Marks the command as being sent unless it was cancelled.
+     * @return True if the command should be sent, false if it was cancelled
+     */
+    boolean markSent() {
+        responseLock.lock();
+        try {
+            if(cancelled) {
+                return false;
+            }
+
+            sent = true;
+            return true;
+        } finally {
+            responseLock.unlock();
+        }
+    }
+
+    /**
+     * Cancels the command if it was not sent yet
+     * (completing it without a response, so the waiting thread is released).
+     * Commands already sent are not cancelled, since their response has to be consumed anyway.
+     * @return True if the command was cancelled
+     */
+    public boolean cancel() {
+        responseLock.lock();
+        try {
+            if(sent || completed) {
+                return false;
+            }
+
+            cancelled = true;
+        } finally {
+            responseLock.unlock();
+        }
+
+        setResponse(null);
+        return true;
+    }
+
+    /** Returns true if the command was cancelled before it was sent. */
+    public boolean isCancelled() {
+        responseLock.lock();
+        try {
+            return cancelled;
+        } finally {
+            responseLock.unlock();
+        }
+    }
+
+    /** Returns true if the command was sent and its response was not received yet. */
+    boolean isAwaitingResponse() {
+        responseLock.lock();
+        try {
+            return sent && !completed;
+        } finally {
+            responseLock.unlock();
+        }
+    }
+
     /**
      * This method blocks for at most 'timeout' milliseconds
      * then returns the response packet if it was received.
@@ -74,7 +177,7 @@ public class Command {
     public Packet waitForResponse(long timeout) throws InterruptedException {
         responseLock.lock();
         try {
-            if(response == null) {
+            if(!completed) {
                 responseCondition.await(timeout, TimeUnit.MILLISECONDS);
             }
         } finally {
@@ -86,21 +189,38 @@ public class Command {
 
     /**
      * Sets the received response packet and
-     * notifies the waiting thread.
-     * @param response The received response packet
+     * notifies the waiting thread and the callback.
+     * @param response The received response packet (or null if none was received)
      */
     public void setResponse(Packet response) {
         responseLock.lock();
         try {
             this.response = response;
-            responseCondition.signal();
+            this.completed = true;
+            responseCondition.signalAll();
         } finally {
             responseLock.unlock();
         }
+
+        if(callback != null) {
+            callback.onResponse(this, response);
+        }
     }
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + " H" + Integer.toHexString(getHeader()) + " '" + getStringData() + "'";
+        return getClass().getSimpleName() + " #" + id + " H" + Integer.toHexString(getHeader()) + " '" + getStringData() + "'";
+    }
+
+    /** Callback interface to process the response of a command. */
+    public interface ResponseCallback {
+
+        /**
+         * Processes the response of a command.
+         * @param command The completed command
+         * @param response The received response packet (or null if none was received in time)
+         */
+        void onResponse(Command command, Packet response);
+
     }
 }
@@ -0,0 +1,354 @@
+package hu.rycus.intellihome.network;
+
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of the commands waiting to be sent to the server.
+ * Every command type has a policy deciding what happens to it while it is waiting:
+ * repeated list requests are coalesced into the one already waiting,
+ * only the last command is kept for an entity (a toggle queued while the server
+ * was unreachable is replaced by the next one instead of being replayed),
+ * and commands not sent before their deadline are dropped (completing them without a response).
+ * When the queue is full, the new command is rejected the same way.
+ * The commands are taken by priority: interactive commands (like switching a device)
+ * are sent before the waiting list requests, and those before the bulk traffic
+ * (history pages and type images). A command waiting longer than the limit of its priority
+ * is taken first, so the bulk traffic is delayed but not starved by a stream of interactive commands.
+ * The time the commands spend waiting is recorded in the statistics by priority.
+ *
+ * Created by Viktor Adam on 2/6/14.
+ */
+class CommandQueue {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|Queue";
+
+    /** The maximal number of commands waiting to be sent. */
+    private static final int CAPACITY = 128; // TODO magic number
+
+    /** The statistics to record the time the commands spend waiting in. */
+    private final ProtocolStatistics statistics;
+
+    /** The commands waiting to be sent in order of arrival by priority. */
+    private final Map<Priority, LinkedList<Command>> commands = new EnumMap<>(Priority.class);
+
+    /** The number of commands waiting to be sent. */
+    private int size = 0;
+
+    /** True if the last command was taken ahead of the higher priority ones (the next one is taken by priority). */
+    private boolean starvedLast = false;
+
+    /** The number of commands dropped since they were already waiting. */
+    private int coalesced = 0;
+    /** The number of commands replaced by a newer one for the same entity. */
+    private int replaced = 0;
+    /** The number of commands dropped since they were not sent before their deadline. */
+    private int expired = 0;
+    /** The number of commands rejected since the queue was full. */
+    private int rejected = 0;
+
+    /**
+     * Package-private constructor.
+     * @param statistics The statistics to record the time the commands spend waiting in
+     */
+    CommandQueue(ProtocolStatistics statistics) {
+        this.statistics = statistics;
+
+        for(Priority priority : Priority.values()) {
+            commands.put(priority, new LinkedList<Command>());
+        }
+    }
+
+    /**
+     * Adds a command to the queue according to the policy of its type.
+     * @return False if the command was dropped (it is completed without a response)
+     */
+    boolean offer(Command command) {
+        Policy policy = Policy.of(command.getHeader());
+        LinkedList<Command> waitingCommands = commands.get(Priority.of(command.getHeader()));
+
+        List<Command> dropped = new LinkedList<>();
+        try {
+            synchronized (this) {
+                if(policy.timeToLive > 0L) {
+                    command.setSendDeadline(System.currentTimeMillis() + policy.timeToLive);
+                }
+
+                Iterator<Command> iterator = waitingCommands.iterator();
+                while(iterator.hasNext()) {
+                    Command waiting = iterator.next();
+                    if(waiting.getHeader() != command.getHeader()) {
+                        continue;
+                    }
+
+                    if(policy.coalesce && waiting.getStringData().equals(command.getStringData())) {
+                        waiting.setSendDeadline(command.getSendDeadline()); // the request is as fresh as the new one
+                        coalesced++;
+                        return drop(command, "already waiting", dropped);
+                    } else if(policy.keyed && policy.getKey(waiting).equals(policy.getKey(command))) {
+                        iterator.remove();
+                        size--;
+                        replaced++;
+                        drop(waiting, "replaced", dropped);
+                    }
+                }
+
+                if(size >= CAPACITY && !purge(System.currentTimeMillis(), dropped) && command.getHeader() != Header.MSG_A_EXIT) {
+                    rejected++;
+                    return drop(command, "queue is full", dropped);
+                }
+
+                command.setEnqueued(System.nanoTime());
+                waitingCommands.addLast(command);
+                size++;
+                notifyAll();
+                return true;
+            }
+        } finally {
+            cancel(dropped);
+        }
+    }
+
+    /**
+     * Takes the next command (dropping the ones past their deadline),
+     * waiting at most 'timeout' for one to arrive.
+     * This is the oldest command of the highest priority,
+     * unless a command of a lower priority is waiting longer than the limit of its priority.
+     * @return The command or null if none arrived in time
+     */
+    Command poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        List<Command> dropped = new LinkedList<>();
+        while(true) {
+            Command command = null;
+            long remaining;
+
+            synchronized (this) {
+                purge(System.currentTimeMillis(), dropped);
+
+                Priority next = select(System.nanoTime());
+                if(next != null) {
+                    command = commands.get(next).removeFirst();
+                    size--;
+
+                    statistics.record(next.metric, System.nanoTime() - command.getEnqueued(), 0, 1);
+                }
+
+                remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if(command == null && remaining > 0L && dropped.isEmpty()) {
+                    wait(remaining);
+                }
+            }
+
+            cancel(dropped);
+
+            if(command != null) {
+                return command;
+            } else if(remaining <= 0L) {
+                return null;
+            }
+        }
+    }
+
+    /** Returns the number of commands waiting to be sent. */
+    synchronized int size() { return size; }
+
+    /** Returns true if there are no commands waiting to be sent. */
+    synchronized boolean isEmpty() { return size == 0; }
+
+    /**
+     * Selects the priority to take the next command of.
+     * @return The priority or null if there are no commands waiting
+     */
+    private Priority select(long now) {
+        // the command waiting the longest beyond the limit of its priority
+        // (alternating with the higher priority ones, so those are not starved by a backlog of old commands)
+        Priority starved = null;
+        long starvedSince = Long.MAX_VALUE;
+        for(Priority priority : Priority.values()) {
+            Command oldest = commands.get(priority).peekFirst();
+            if(!starvedLast && oldest != null && priority.maxWait > 0L && now - oldest.getEnqueued() > priority.maxWait &&
+                    oldest.getEnqueued() < starvedSince) {
+                starved = priority;
+                starvedSince = oldest.getEnqueued();
+            }
+        }
+
+        starvedLast = starved != null;
+        if(starved != null) {
+            return starved;
+        }
+
+        for(Priority priority : Priority.values()) {
+            if(!commands.get(priority).isEmpty()) {
+                return priority;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Drops the commands past their deadline.
+     * @param dropped The list to collect the dropped commands in (to cancel them outside of the lock)
+     * @return True if at least one command was dropped
+     */
+    private boolean purge(long now, List<Command> dropped) {
+        boolean purged = false;
+
+        for(LinkedList<Command> waitingCommands : commands.values()) {
+            Iterator<Command> iterator = waitingCommands.iterator();
+            while(iterator.hasNext()) {
+                Command command = iterator.next();
+                if(command.getSendDeadline() < now) {
+                    iterator.remove();
+                    size--;
+                    expired++;
+                    purged = true;
+                    drop(command, "expired", dropped);
+                }
+            }
+        }
+
+        return purged;
+    }
+
+    /** Collects a dropped command to be cancelled after leaving the lock of the queue. */
+    private static boolean drop(Command command, String reason, List<Command> dropped) {
+        Log.d(LOG_TAG, "Dropping command (" + reason + "): " + command);
+        dropped.add(command);
+        return false;
+    }
+
+    /**
+     * Cancels the dropped commands, so the threads waiting for their response are released
+     * (outside of the lock of the queue, since the callbacks of the commands may enqueue new ones).
+     */
+    private static void cancel(List<Command> dropped) {
+        for(Command command : dropped) {
+            command.cancel();
+        }
+        dropped.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CommandQueue[waiting: " + size + ", coalesced: " + coalesced + ", replaced: " + replaced +
+                ", expired: " + expired + ", rejected: " + rejected + "]";
+    }
+
+    /** The order the commands are sent in (the highest priority first). */
+    private enum Priority {
+
+        /** Commands the user is waiting for to see their effect (switching or renaming a device, logging off). */
+        INTERACTIVE(0L, "queue.interactive"),
+        /** Requests refreshing the displayed lists. */
+        NORMAL(1000L, "queue.normal"), // TODO magic number
+        /** History pages and type images (there can be many of them at once). */
+        BULK(2000L, "queue.bulk"); // TODO magic number
+
+        /** The time in nanoseconds a command waits at most for the higher priority ones (0 if it does not wait for any). */
+        private final long maxWait;
+        /** The name of the statistics of the time the commands spend waiting. */
+        private final String metric;
+
+        /** Private constructor. */
+        Priority(long maxWait, String metric) {
+            this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+            this.metric = metric;
+        }
+
+        /** Returns the priority of a command type. */
+        private static Priority of(int header) {
+            switch (header) {
+                case Header.MSG_A_SEND_COMMAND:
+                case Header.MSG_A_RENAME_DEVICE:
+                case Header.MSG_A_USER_CREATE:
+                case Header.MSG_A_USER_EDIT:
+                case Header.MSG_A_USER_DELETE:
+                case Header.MSG_A_EXIT:
+                    return INTERACTIVE;
+                case Header.MSG_A_COUNT_HISTORY:
+                case Header.MSG_A_LIST_HISTORY:
+                case Header.MSG_A_QUERY_HISTORY:
+                case Header.MSG_A_LOAD_TYPE_IMAGE:
+                    return BULK;
+                default:
+                    return NORMAL;
+            }
+        }
+
+    }
+
+    /** The handling of the commands of a type while they are waiting to be sent. */
+    private enum Policy {
+
+        /** List requests: a request equal to one already waiting is dropped. */
+        LIST(true, false, 30000L), // TODO magic number
+        /** Commands of an entity: only the last one is kept. */
+        PER_ENTITY(false, true, 10000L), // TODO magic number
+        /** History requests: dropped when the thread waiting for the response gives up. */
+        HISTORY(false, false, 7500L), // TODO magic number
+        /** Subscription changes: only the last one is kept. */
+        LAST(false, true, 0L),
+        /** Everything else is kept until it is sent. */
+        KEEP(false, false, 0L);
+
+        /** True if a command equal to one already waiting is dropped. */
+        private final boolean coalesce;
+        /** True if a command replaces the one already waiting with the same key. */
+        private final boolean keyed;
+        /** The time in milliseconds the commands are kept for (0 if they do not expire). */
+        private final long timeToLive;
+
+        /** Private constructor. */
+        Policy(boolean coalesce, boolean keyed, long timeToLive) {
+            this.coalesce = coalesce;
+            this.keyed = keyed;
+            this.timeToLive = timeToLive;
+        }
+
+        /** Returns the key of a command (the commands with the same key replace each other). */
+        private String getKey(Command command) {
+            if(this != PER_ENTITY) {
+                return "";
+            }
+
+            // entityId#command for commands, entityId;name for renames
+            String data = command.getStringData();
+            int end = command.getHeader() == Header.MSG_A_SEND_COMMAND ? data.indexOf('#') : data.indexOf(';');
+            return end >= 0 ? data.substring(0, end) : data;
+        }
+
+        /** Returns the policy of a command type. */
+        private static Policy of(int header) {
+            switch (header) {
+                case Header.MSG_A_LIST_DEVICE_TYPES:
+                case Header.MSG_A_LIST_DEVICES:
+                case Header.MSG_A_LIST_USERS:
+                    return LIST;
+                case Header.MSG_A_SEND_COMMAND:
+                case Header.MSG_A_RENAME_DEVICE:
+                    return PER_ENTITY;
+                case Header.MSG_A_COUNT_HISTORY:
+                case Header.MSG_A_LIST_HISTORY:
+                case Header.MSG_A_QUERY_HISTORY:
+                    return HISTORY;
+                case Header.MSG_A_SUBSCRIBE_HISTORY:
+                    return LAST;
+                default:
+                    return KEEP;
+            }
+        }
+
+    }
+
+}
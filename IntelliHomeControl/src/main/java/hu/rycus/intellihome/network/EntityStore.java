@@ -0,0 +1,211 @@
+package hu.rycus.intellihome.network;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import hu.rycus.intellihome.model.Entity;
+
+/**
+ * Service-side store of the entities known by the client indexed by their identifiers.
+ * Device lists received from the server replace the stored entities (of the listed type),
+ * state changes are applied in batches, and every modification increments the version of the store.
+ * Subscribers receive the differences on the main thread instead of the full list,
+ * and can compare the versions to detect if they missed any of them.
+ *
+ * Created by Viktor Adam on 1/26/14.
+ */
+public class EntityStore {
+
+    /** The entities by identifier (in the order the server listed them). */
+    private final Map<String, Entity> entities = new LinkedHashMap<>();
+
+    /** The version of the store incremented on every modification. */
+    private long version = 0L;
+
+    /** The subscribed listeners. */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    /** Handler to notify the listeners on the main thread. */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Returns the current version of the store. */
+    public synchronized long getVersion() { return version; }
+
+    /** Returns true if there are no stored entities. */
+    public synchronized boolean isEmpty() { return entities.isEmpty(); }
+
+    /** Returns the entity with the given identifier (or null if it is unknown). */
+    public synchronized Entity get(String id) { return entities.get(id); }
+
+    /**
+     * Returns the stored entities.
+     * @param typeFilter The identifier of the type to return (or null for all entities)
+     */
+    public synchronized Entity[] snapshot(Integer typeFilter) {
+        List<Entity> result = new ArrayList<>(entities.size());
+        for(Entity entity : entities.values()) {
+            if(matches(entity, typeFilter)) {
+                result.add(entity);
+            }
+        }
+        return result.toArray(new Entity[result.size()]);
+    }
+
+    /**
+     * Replaces the stored entities with the contents of a device list.
+     * @param listed The entities received from the server
+     * @param typeFilter The identifier of the listed type (or null if all entities were listed)
+     */
+    void replaceAll(Entity[] listed, Integer typeFilter) {
+        Diff diff;
+
+        synchronized (this) {
+            if(typeFilter == null) {
+                entities.clear();
+            } else {
+                for(Iterator<Entity> it = entities.values().iterator(); it.hasNext(); ) {
+                    if(matches(it.next(), typeFilter)) {
+                        it.remove();
+                    }
+                }
+            }
+
+            for(Entity entity : listed) {
+                entities.put(entity.getId(), entity);
+            }
+
+            diff = new Diff(version, ++version, typeFilter, true, null, null);
+        }
+
+        notifyListeners(diff);
+    }
+
+    /**
+     * Applies the new states of a batch of entities as a single modification.
+     * @param changed The entities received in state change messages (at most one state per entity)
+     */
+    void applyAll(Entity[] changed) {
+        Diff diff;
+
+        synchronized (this) {
+            List<Entity> updated = new ArrayList<>(changed.length);
+            List<Entity> added = new ArrayList<>();
+
+            for(Entity entity : changed) {
+                if(entities.put(entity.getId(), entity) != null) {
+                    updated.add(entity);
+                } else {
+                    added.add(entity);
+                }
+            }
+
+            diff = new Diff(version, ++version, null, false,
+                    updated.toArray(new Entity[updated.size()]),
+                    added.toArray(new Entity[added.size()]));
+        }
+
+        notifyListeners(diff);
+    }
+
+    /** Removes every stored entity (when the connection is restarted). */
+    void clear() {
+        Diff diff;
+
+        synchronized (this) {
+            entities.clear();
+            diff = new Diff(version, ++version, null, true, null, null);
+        }
+
+        notifyListeners(diff);
+    }
+
+    /** Subscribes a listener to receive the differences on the main thread. */
+    public void subscribe(Listener listener) {
+        if(!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /** Unsubscribes a listener. */
+    public void unsubscribe(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Posts a difference to the subscribed listeners. */
+    private void notifyListeners(final Diff diff) {
+        for(final Listener listener : listeners) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(listeners.contains(listener)) {
+                        listener.onEntitiesChanged(diff);
+                    }
+                }
+            });
+        }
+    }
+
+    /** Returns true if the entity has the given type (or the filter is null). */
+    private static boolean matches(Entity entity, Integer typeFilter) {
+        return typeFilter == null || (entity.getType() != null && entity.getType().getId() == typeFilter);
+    }
+
+    /** Listener interface to receive the differences of the store. */
+    public interface Listener {
+
+        /**
+         * Called on the main thread when the store was modified.
+         * @param diff The difference between the previous and the new version of the store
+         */
+        void onEntitiesChanged(Diff diff);
+
+    }
+
+    /** The difference between two consecutive versions of the store. */
+    public static class Diff {
+
+        /** The version of the store before the modification. */
+        private final long previousVersion;
+        /** The version of the store after the modification. */
+        private final long version;
+        /** The identifier of the replaced type (null if every type was affected). */
+        private final Integer typeFilter;
+        /** True if the stored entities were replaced (so the subscribers should take a new snapshot). */
+        private final boolean reset;
+        /** The entities whose state changed. */
+        private final Entity[] updated;
+        /** The entities that were not stored before. */
+        private final Entity[] added;
+
+        /** Private constructor. */
+        private Diff(long previousVersion, long version, Integer typeFilter, boolean reset, Entity[] updated, Entity[] added) {
+            this.previousVersion = previousVersion;
+            this.version = version;
+            this.typeFilter = typeFilter;
+            this.reset = reset;
+            this.updated = updated != null ? updated : new Entity[0];
+            this.added = added != null ? added : new Entity[0];
+        }
+
+        /** Returns the version of the store before the modification. */
+        public long getPreviousVersion() { return previousVersion; }
+        /** Returns the version of the store after the modification. */
+        public long getVersion() { return version; }
+        /** Returns the identifier of the replaced type (null if every type was affected). */
+        public Integer getTypeFilter() { return typeFilter; }
+        /** Returns true if the stored entities were replaced (so the subscribers should take a new snapshot). */
+        public boolean isReset() { return reset; }
+        /** Returns the entities whose state changed. */
+        public Entity[] getUpdated() { return updated; }
+        /** Returns the entities that were not stored before. */
+        public Entity[] getAdded() { return added; }
+
+    }
+
+}
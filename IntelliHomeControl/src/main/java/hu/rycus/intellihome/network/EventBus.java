@@ -0,0 +1,149 @@
+package hu.rycus.intellihome.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process registry of typed event listeners.
+ * Events posted by the remote manager (see {@link Events}) are delivered
+ * to the listeners subscribed for their exact class, either on the posting thread
+ * or on the main thread, without packing them into Intent Bundles.
+ * The subscriber lists are copy-on-write, so posting never blocks on (un)subscriptions.
+ *
+ * Created by Viktor Adam on 1/28/14.
+ */
+public class EventBus {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|Bus";
+
+    /** The thread to deliver the events on. */
+    public enum Delivery {
+        /** Deliver on the thread posting the event (listeners have to return quickly). */
+        POSTING_THREAD,
+        /** Deliver on the main (UI) thread. */
+        MAIN_THREAD
+    }
+
+    /** The subscriptions by event type. */
+    private final ConcurrentMap<Class<?>, List<Subscription<?>>> subscriptions = new ConcurrentHashMap<>();
+
+    /** Handler to deliver the events on the main thread. */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Subscribes a listener for an event type.
+     * @param type The class of the events to receive
+     * @param listener The listener to notify
+     * @param delivery The thread to deliver the events on
+     */
+    public <E> void subscribe(Class<E> type, Listener<? super E> listener, Delivery delivery) {
+        List<Subscription<?>> list = subscriptions.get(type);
+        if(list == null) {
+            List<Subscription<?>> created = new CopyOnWriteArrayList<>();
+            list = subscriptions.putIfAbsent(type, created);
+            if(list == null) {
+                list = created;
+            }
+        }
+
+        list.add(new Subscription<>(listener, delivery));
+    }
+
+    /**
+     * Unsubscribes a listener from an event type.
+     * @param type The class of the events received by the listener
+     * @param listener The listener to remove
+     */
+    public <E> void unsubscribe(Class<E> type, Listener<? super E> listener) {
+        List<Subscription<?>> list = subscriptions.get(type);
+        if(list != null) {
+            for(Subscription<?> subscription : list) {
+                if(subscription.listener == listener) {
+                    subscription.active = false;
+                    list.remove(subscription);
+                }
+            }
+        }
+    }
+
+    /** Returns true if there is at least one listener subscribed for the given event type. */
+    public boolean hasSubscribers(Class<?> type) {
+        List<Subscription<?>> list = subscriptions.get(type);
+        return list != null && !list.isEmpty();
+    }
+
+    /**
+     * Posts an event to the listeners subscribed for its class.
+     * @param event The event to deliver
+     */
+    @SuppressWarnings("unchecked")
+    public void post(Object event) {
+        List<Subscription<?>> list = subscriptions.get(event.getClass());
+        if(list == null) {
+            return;
+        }
+
+        for(Subscription<?> subscription : list) {
+            ((Subscription<Object>) subscription).deliver(event);
+        }
+    }
+
+    /** Listener interface to receive events of a given type. */
+    public interface Listener<E> {
+
+        /** Called (on the thread selected at subscription) when an event is posted. */
+        void onEvent(E event);
+
+    }
+
+    /** A listener subscribed with its delivery thread. */
+    private class Subscription<E> {
+
+        /** The subscribed listener. */
+        private final Listener<? super E> listener;
+        /** The thread to deliver the events on. */
+        private final Delivery delivery;
+        /** False after unsubscribing (events already posted to the main thread are dropped). */
+        private volatile boolean active = true;
+
+        /** Private constructor. */
+        private Subscription(Listener<? super E> listener, Delivery delivery) {
+            this.listener = listener;
+            this.delivery = delivery;
+        }
+
+        /** Delivers an event on the selected thread. */
+        private void deliver(final E event) {
+            if(delivery == Delivery.MAIN_THREAD && Looper.myLooper() != Looper.getMainLooper()) {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        invoke(event);
+                    }
+                });
+            } else {
+                invoke(event);
+            }
+        }
+
+        /** Invokes the listener if it is still subscribed. */
+        private void invoke(E event) {
+            if(!active) return;
+
+            try {
+                listener.onEvent(event);
+            } catch(RuntimeException ex) {
+                Log.e(LOG_TAG, "Listener failed to process " + event.getClass().getSimpleName(), ex);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,198 @@
+package hu.rycus.intellihome.network;
+
+import java.io.File;
+
+import hu.rycus.intellihome.model.Entity;
+import hu.rycus.intellihome.model.EntityHistory;
+import hu.rycus.intellihome.model.User;
+
+/**
+ * The events posted by the remote manager on the {@link EventBus}.
+ * Each event carries either its result or an error message.
+ *
+ * Created by Viktor Adam on 1/28/14.
+ */
+public final class Events {
+
+    /** Private constructor (event classes only). */
+    private Events() { }
+
+    /** Base class of the events that can carry an error message. */
+    public static abstract class Result {
+
+        /** The error message (or null on success). */
+        private final String error;
+
+        /** Protected constructor. */
+        protected Result(String error) {
+            this.error = error;
+        }
+
+        /** Returns the error message (or null on success). */
+        public String getError() { return error; }
+        /** Returns true if the event carries an error message. */
+        public boolean isError() { return error != null; }
+
+    }
+
+    /** Posted when the manager connects to or disconnects from the server. */
+    public static class ConnectionChanged {
+
+        /** True if the manager has an active session to the server. */
+        private final boolean connected;
+
+        /** Package-private constructor. */
+        ConnectionChanged(boolean connected) {
+            this.connected = connected;
+        }
+
+        /** Returns true if the manager has an active session to the server. */
+        public boolean isConnected() { return connected; }
+
+    }
+
+    /** Posted when the server reports an error not related to a request. */
+    public static class ServerError extends Result {
+
+        /** Package-private constructor. */
+        ServerError(String error) {
+            super(error);
+        }
+
+    }
+
+    /** Posted when the device types are listed (the types are available from EntityType.list()). */
+    public static class DeviceTypesListed extends Result {
+
+        /** Package-private constructor. */
+        DeviceTypesListed(String error) {
+            super(error);
+        }
+
+    }
+
+    /** Posted when a device list is received. */
+    public static class DevicesListed extends Result {
+
+        /** The listed entities. */
+        private final Entity[] entities;
+        /** The identifier of the listed type (or null if all entities were listed). */
+        private final Integer typeFilter;
+
+        /** Package-private constructor. */
+        DevicesListed(Entity[] entities, Integer typeFilter, String error) {
+            super(error);
+            this.entities = entities;
+            this.typeFilter = typeFilter;
+        }
+
+        /** Returns the listed entities (or null on error). */
+        public Entity[] getEntities() { return entities; }
+        /** Returns the identifier of the listed type (or null if all entities were listed). */
+        public Integer getTypeFilter() { return typeFilter; }
+
+    }
+
+    /** Posted when a batch of state changes is received (or a state change could not be processed). */
+    public static class StatesChanged extends Result {
+
+        /** The entities with their new states. */
+        private final Entity[] entities;
+
+        /** Package-private constructor. */
+        StatesChanged(Entity[] entities, String error) {
+            super(error);
+            this.entities = entities;
+        }
+
+        /** Returns the entities with their new states (or null on error). */
+        public Entity[] getEntities() { return entities; }
+
+    }
+
+    /** Posted when the user list is received. */
+    public static class UsersListed extends Result {
+
+        /** The listed users. */
+        private final User[] users;
+
+        /** Package-private constructor. */
+        UsersListed(User[] users, String error) {
+            super(error);
+            this.users = users;
+        }
+
+        /** Returns the listed users (or null on error). */
+        public User[] getUsers() { return users; }
+
+    }
+
+    /** Posted when the server reports that the users were modified. */
+    public static class UsersChanged { }
+
+    /** Posted when the server pushes newly recorded history entries (while the history is subscribed to). */
+    public static class HistoryAppended extends Result {
+
+        /** The new entries in the order they were recorded (or null on error). */
+        private final EntityHistory[] entries;
+
+        /** Package-private constructor. */
+        HistoryAppended(EntityHistory[] entries, String error) {
+            super(error);
+            this.entries = entries;
+        }
+
+        /** Returns the new entries in the order they were recorded (or null on error). */
+        public EntityHistory[] getEntries() { return entries; }
+
+    }
+
+    /** Posted periodically while the history is being exported and once more when the export is finished. */
+    public static class HistoryExportProgress extends Result {
+
+        /** The file the entries are exported to. */
+        private final File file;
+        /** The number of entries exported so far. */
+        private final int exported;
+        /** The number of entries to export (or -1 if it is not known). */
+        private final int total;
+        /** The number of (compressed) bytes written so far. */
+        private final long bytes;
+        /** The average number of entries exported per second. */
+        private final float rate;
+        /** True if the export is finished (successfully, with an error or cancelled). */
+        private final boolean finished;
+        /** True if the export was cancelled. */
+        private final boolean cancelled;
+
+        /** Package-private constructor. */
+        HistoryExportProgress(File file, int exported, int total, long bytes, float rate,
+                              boolean finished, boolean cancelled, String error) {
+            super(error);
+            this.file = file;
+            this.exported = exported;
+            this.total = total;
+            this.bytes = bytes;
+            this.rate = rate;
+            this.finished = finished;
+            this.cancelled = cancelled;
+        }
+
+        /** Returns the file the entries are exported to. */
+        public File getFile() { return file; }
+        /** Returns the number of entries exported so far. */
+        public int getExported() { return exported; }
+        /** Returns the number of entries to export (or -1 if it is not known). */
+        public int getTotal() { return total; }
+        /** Returns the number of (compressed) bytes written so far. */
+        public long getBytes() { return bytes; }
+        /** Returns the average number of entries exported per second. */
+        public float getRate() { return rate; }
+        /** Returns true if the export is finished (successfully, with an error or cancelled). */
+        public boolean isFinished() { return finished; }
+        /** Returns true if the export was cancelled. */
+        public boolean isCancelled() { return cancelled; }
+
+    }
+
+}
@@ -11,5 +11,11 @@ public interface Flags {
     int MORE_FOLLOWS        = 0x01 << 0;
     /** This flag is set when an outgoing packet shouldn't be prefixed with session ID. */
     int WITHOUT_SESSION_ID  = 0x01 << 1;
+    /**
+     * This flag is set when an incoming packet carries a sequence header
+     * (message ID, fragment index and fragment count) before its contents.
+     * On an outgoing login packet it signals that the client accepts this framing.
+     */
+    int SEQUENCED           = 0x01 << 2;
 
 }
@@ -0,0 +1,50 @@
+package hu.rycus.intellihome.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the frames of the TCP wire format (a header byte, two bytes of data length and the data)
+ * from a buffer of received bytes.
+ *
+ * Created by Viktor Adam on 2/7/14.
+ */
+class FrameDecoder {
+
+    /** The length of the frame header (header byte and two bytes of data length). */
+    static final int FRAME_HEADER_LENGTH = 3;
+
+    /** Private constructor. */
+    private FrameDecoder() { }
+
+    /**
+     * Decodes the next complete frame from the buffer (in read mode).
+     * The position of the buffer is moved after the frame if it was complete, left unchanged otherwise.
+     * @param buffer The buffer of the received bytes
+     * @return The decoded packet or null if the buffer does not contain a complete frame
+     */
+    static Packet decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        if(buffer.remaining() < FRAME_HEADER_LENGTH) {
+            return null;
+        }
+
+        int header = buffer.get(start) & 0xFF;
+        int length = ((buffer.get(start + 1) & 0xFF) << 8) | (buffer.get(start + 2) & 0xFF);
+
+        if(buffer.remaining() < FRAME_HEADER_LENGTH + length) {
+            return null;
+        }
+
+        buffer.position(start + FRAME_HEADER_LENGTH);
+        if(length == 0) {
+            return new Packet(header, Packet.EMPTY);
+        }
+
+        // the contents are copied once, straight into the array of the packet
+        byte[] data = new byte[length];
+        buffer.get(data);
+
+        return new Packet(header, data);
+    }
+
+}
@@ -18,6 +18,9 @@ public interface Header {
     int MSG_A_RENAME_DEVICE         = 0xA7;
     int MSG_A_COUNT_HISTORY         = 0xB1;
     int MSG_A_LIST_HISTORY          = 0xB2;
+    int MSG_A_QUERY_HISTORY         = 0xB3;
+    int MSG_A_SUBSCRIBE_HISTORY     = 0xB4;
+    int MSG_A_HISTORY_APPENDED      = 0xB5;
     int MSG_A_LIST_USERS            = 0xC1;
     int MSG_A_USER_CREATE           = 0xC2;
     int MSG_A_USER_EDIT             = 0xC3;
@@ -29,4 +32,8 @@ public interface Header {
 
     int MSG_A_ERROR_INVALID_SESSION = 0xF1;
 
+    /* These headers are extensions used by the sequenced UDP framing mode. */
+
+    int MSG_A_RETRANSMIT            = 0xE1;
+
 }
@@ -0,0 +1,284 @@
+package hu.rycus.intellihome.network;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import hu.rycus.intellihome.R;
+import hu.rycus.intellihome.model.EntityHistory;
+
+/**
+ * Background thread exporting the history entries matching a filter to a gzip compressed CSV file.
+ * The entries are streamed page by page: the request of the next page is sent
+ * (after the last entry of the current one) before the current page is written,
+ * so the server prepares the next page while the previous one is being compressed.
+ * Only the page being written and the one in flight are kept in memory.
+ * The progress is posted on the event bus as {@link Events.HistoryExportProgress} events.
+ *
+ * Created by Viktor Adam on 2/3/14.
+ */
+public class HistoryExporter extends Thread {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|Export";
+
+    /** The number of entries requested in a page. */
+    private static final int PAGE_SIZE = 500; // TODO magic number
+    /** The minimal time in milliseconds between two progress events. */
+    private static final long PROGRESS_INTERVAL = 500L; // TODO magic number
+    /** The size of the buffers in front of the compressor and the file. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** The header line of the exported file. */
+    private static final String CSV_HEADER = "timestamp,time,entity_id,entity_name,action,action_type";
+
+    /** The manager to send the requests with. */
+    private final RemoteManager manager;
+    /** The bus to post the progress events to. */
+    private final EventBus eventBus;
+    /** The resources to load the error messages from. */
+    private final Resources resources;
+    /** The statistics to record the throughput of the export in. */
+    private final ProtocolStatistics statistics;
+
+    /** The start of the exported interval (or null for no lower bound). */
+    private final Long tsFrom;
+    /** The end of the exported interval (fixed when the export is created, so new entries do not shift the pages). */
+    private final Long tsTo;
+    /** The identifier of the entity to export the history of (or null for all entities). */
+    private final String entityId;
+
+    /** The file to export the entries to. */
+    private final File file;
+
+    /** Formats the timestamps in human-readable form. */
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    /** The request of the page in flight (or null if there is none). */
+    private volatile Command current;
+    /** True if the export was cancelled. */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Package-private constructor.
+     * @param manager The manager to send the requests with
+     * @param eventBus The bus to post the progress events to
+     * @param resources The resources to load the error messages from
+     * @param statistics The statistics to record the throughput of the export in
+     * @param tsFrom The start of the exported interval (or null for no lower bound)
+     * @param tsTo The end of the exported interval (or null for the current time)
+     * @param entityId The identifier of the entity to export the history of (or null for all entities)
+     * @param file The file to export the entries to
+     */
+    HistoryExporter(RemoteManager manager, EventBus eventBus, Resources resources, ProtocolStatistics statistics,
+                    Long tsFrom, Long tsTo, String entityId, File file) {
+        super("HistoryExporter");
+        this.manager = manager;
+        this.eventBus = eventBus;
+        this.resources = resources;
+        this.statistics = statistics;
+        this.tsFrom = tsFrom;
+        this.tsTo = tsTo != null ? tsTo : System.currentTimeMillis();
+        this.entityId = entityId;
+        this.file = file;
+    }
+
+    /** Returns the file the entries are exported to. */
+    public File getFile() { return file; }
+
+    /** Returns true if the export was cancelled. */
+    public boolean isCancelled() { return cancelled; }
+
+    /**
+     * Cancels the export (the partially written file is deleted).
+     * The request in flight is cancelled if it was not sent yet,
+     * otherwise the export stops when its response arrives.
+     */
+    public void cancel() {
+        cancelled = true;
+
+        Command command = current;
+        if(command != null) {
+            command.cancel();
+        }
+    }
+
+    @Override
+    public void run() {
+        File partial = new File(file.getPath() + ".part");
+
+        long begin = System.nanoTime();
+        long lastProgress = 0L;
+
+        int total = manager.countHistory(tsFrom, tsTo, entityId);
+        int exported = 0;
+
+        CountingOutputStream counter = null;
+        String error = null;
+
+        Writer writer = null;
+        try {
+            counter = new CountingOutputStream(new FileOutputStream(partial));
+            writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(counter, BUFFER_SIZE), "UTF-8"), BUFFER_SIZE);
+
+            writer.write(CSV_HEADER);
+            writer.write('\n');
+
+            boolean retried = false;
+
+            current = manager.requestHistory(tsFrom, tsTo, entityId, PAGE_SIZE, 0);
+            while(current != null && !cancelled) {
+                EntityHistory[] items = manager.awaitHistory(current, PAGE_SIZE);
+                if(items == null && !cancelled && !retried) {
+                    // the page is requested once more by offset (the server may not support keyset requests)
+                    retried = true;
+                    current = manager.requestHistory(tsFrom, tsTo, entityId, PAGE_SIZE, exported);
+                    continue;
+                } else if(items == null) {
+                    if(!cancelled) {
+                        error = resources.getString(R.string.error_list_history);
+                    }
+                    break;
+                }
+
+                retried = false;
+
+                // keep the next page in flight while this one is written
+                if(items.length == PAGE_SIZE && !cancelled) {
+                    current = manager.requestHistoryAfter(tsFrom, tsTo, entityId, PAGE_SIZE,
+                            exported + items.length, items[items.length - 1]);
+                } else {
+                    current = null;
+                }
+
+                for(EntityHistory item : items) {
+                    writeRow(writer, item);
+                }
+                exported += items.length;
+
+                long now = System.currentTimeMillis();
+                if(now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    postProgress(exported, total, counter.getCount(), begin, false, null);
+                }
+            }
+
+            writer.close();
+            writer = null;
+        } catch(IOException ex) {
+            Log.e(LOG_TAG, "Failed to write the exported history to " + partial, ex);
+            error = resources.getString(R.string.error_export_history) + " | " + ex;
+        } finally {
+            try {
+                if(writer != null) writer.close();
+                if(counter != null) counter.close(); // no-op unless opening the compressor failed
+            } catch(IOException ex) { /* NO-OP */ }
+        }
+
+        Command pending = current;
+        if(pending != null) {
+            pending.cancel(); // the response of a request already sent is dropped when it arrives
+        }
+
+        long bytes = counter != null ? counter.getCount() : 0L;
+
+        if(cancelled || error != null) {
+            if(!partial.delete()) {
+                Log.w(LOG_TAG, "Failed to delete the partially exported file " + partial);
+            }
+        } else if(!partial.renameTo(file)) {
+            error = resources.getString(R.string.error_export_history);
+        }
+
+        statistics.record("history.export", System.nanoTime() - begin, (int) Math.min(bytes, Integer.MAX_VALUE), exported);
+
+        Log.d(LOG_TAG, "History export " + (cancelled ? "cancelled" : error != null ? "failed" : "finished") +
+                ": " + exported + " entries, " + bytes + " bytes in " + ((System.nanoTime() - begin) / 1000000L) + " ms");
+
+        postProgress(exported, total, bytes, begin, true, error);
+    }
+
+    /** Writes an entry as a CSV line. */
+    private void writeRow(Writer writer, EntityHistory item) throws IOException {
+        writer.write(Long.toString(item.getTimestamp()));
+        writer.write(',');
+        writer.write(timeFormat.format(new Date(item.getTimestamp())));
+        writer.write(',');
+        writeField(writer, item.getEntityId());
+        writer.write(',');
+        writeField(writer, item.getEntityName());
+        writer.write(',');
+        writeField(writer, item.getAction());
+        writer.write(',');
+        writeField(writer, item.getActionType());
+        writer.write('\n');
+    }
+
+    /** Writes a CSV field (quoted if it contains a separator, a quote or a line break). */
+    private static void writeField(Writer writer, String value) throws IOException {
+        if(value == null) return;
+
+        boolean quoted = false;
+        for(int idx = 0; idx < value.length() && !quoted; idx++) {
+            char ch = value.charAt(idx);
+            quoted = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+
+        if(quoted) {
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        } else {
+            writer.write(value);
+        }
+    }
+
+    /** Posts the progress of the export on the event bus. */
+    private void postProgress(int exported, int total, long bytes, long begin, boolean finished, String error) {
+        long elapsed = Math.max(1L, (System.nanoTime() - begin) / 1000000L);
+        float rate = exported * 1000f / elapsed;
+
+        eventBus.post(new Events.HistoryExportProgress(
+                file, exported, total, bytes, rate, finished, finished && cancelled, error));
+    }
+
+    /** Output stream counting the bytes written to the file. */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        /** The number of bytes written. */
+        private volatile long count = 0L;
+
+        /** Private constructor. */
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        /** Returns the number of bytes written. */
+        private long getCount() { return count; }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+
+    }
+
+}
@@ -0,0 +1,324 @@
+package hu.rycus.intellihome.network;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import hu.rycus.intellihome.model.EntityHistory;
+import hu.rycus.intellihome.model.HistoryOverview;
+import hu.rycus.intellihome.util.MD5Util;
+
+/**
+ * On-device copy of the recent history of a server and user combination,
+ * indexed by timestamp and by entity, so the history screen can count and list entries locally.
+ * The store mirrors the entries of a contiguous time range (the synced range),
+ * which is extended to the current time by incremental synchronizations requesting
+ * only the entries since the last synchronization, and trimmed to the retention window.
+ * Queries reaching outside of the synced range have to be sent to the server.
+ *
+ * Created by Viktor Adam on 2/4/14.
+ */
+class HistoryStore extends SQLiteOpenHelper {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|HistoryStore";
+
+    /** The version of the database schema. */
+    private static final int DATABASE_VERSION = 1;
+
+    /** The time in milliseconds the entries are kept for (and synchronized for the first time). */
+    private static final long RETENTION = 31L * 24L * 60L * 60L * 1000L; // TODO magic number
+    /** The time in milliseconds the synced range is considered up-to-date for after a synchronization. */
+    private static final long FRESHNESS = 30L * 1000L; // TODO magic number
+    /** The largest gap in milliseconds synchronized while a query is waiting (larger ones are synced in the background). */
+    private static final long FOREGROUND_GAP = 24L * 60L * 60L * 1000L; // TODO magic number
+    /** The time in milliseconds requested again before the end of the synced range (entries stamped late by the server). */
+    private static final long OVERLAP = 60L * 1000L; // TODO magic number
+    /** The length of a day in milliseconds. */
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+    /** The number of entries requested in a page while synchronizing. */
+    private static final int PAGE_SIZE = 500; // TODO magic number
+
+    /** Lock held while synchronizing (only one synchronization runs at a time). */
+    private final Lock syncLock = new ReentrantLock();
+
+    /** The start of the synced range (or 0 if nothing was synced yet). */
+    private volatile long syncedFrom = 0L;
+    /** The end of the synced range (or 0 if nothing was synced yet). */
+    private volatile long syncedTo = 0L;
+
+    /** True if the database was closed (the running synchronization stops). */
+    private volatile boolean closed = false;
+
+    /**
+     * Package-private constructor.
+     * @param context The context to open the database with
+     * @param server The identifier of the server (network mode, address and port)
+     * @param username The name of the authenticated user
+     */
+    HistoryStore(Context context, String server, String username) {
+        super(context, "history-" + MD5Util.toMD5(server + "|" + username) + ".db", null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE history (" +
+                "timestamp INTEGER NOT NULL, entity_id TEXT NOT NULL, " +
+                "entity_name TEXT, action TEXT, action_type TEXT, " +
+                "PRIMARY KEY (timestamp, entity_id))");
+        db.execSQL("CREATE INDEX history_entity ON history (entity_id, timestamp)");
+        db.execSQL("CREATE TABLE sync_state (id INTEGER PRIMARY KEY, synced_from INTEGER, synced_to INTEGER)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // the store is a cache of the server, it is simply synchronized again
+        db.execSQL("DROP TABLE IF EXISTS history");
+        db.execSQL("DROP TABLE IF EXISTS sync_state");
+        onCreate(db);
+    }
+
+    /** Loads the synced range stored by the last synchronization. */
+    void open() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT synced_from, synced_to FROM sync_state WHERE id = 1", null);
+        try {
+            if(cursor.moveToFirst()) {
+                syncedFrom = cursor.getLong(0);
+                syncedTo = cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Log.d(LOG_TAG, "History store opened, synced range: " + syncedFrom + " - " + syncedTo);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        super.close();
+    }
+
+    /** Returns true if the store was synchronized at least once. */
+    boolean isSynced() { return syncedTo > 0L; }
+
+    /**
+     * Returns true if the entries of the given interval are all stored locally.
+     * An open ended (or future) interval is covered only if the store was synchronized recently.
+     * @param tsFrom The start of the interval (null if unbounded)
+     * @param tsTo The end of the interval (null if unbounded)
+     */
+    boolean covers(Long tsFrom, Long tsTo) {
+        if(!isSynced() || tsFrom == null || tsFrom < syncedFrom) {
+            return false;
+        }
+
+        return tsTo != null && tsTo <= syncedTo || syncedTo >= System.currentTimeMillis() - FRESHNESS;
+    }
+
+    /**
+     * Returns true if the store can be brought up-to-date while a query is waiting for it
+     * (it was synchronized before and the entries since then are probably few).
+     */
+    boolean canSyncInForeground() {
+        return isSynced() && syncedTo >= System.currentTimeMillis() - FOREGROUND_GAP;
+    }
+
+    /**
+     * Counts the stored entries matching the filters (in total and by day) and lists the first page of them.
+     * @param tsFrom The start of the interval (inclusive)
+     * @param tsTo The end of the interval (inclusive, null if unbounded)
+     * @param entityId The identifier of the entity (null for all entities)
+     * @param limit The maximal number of entries to list
+     * @param zoneOffset The offset of the time zone to count the days in from UTC (in milliseconds)
+     */
+    HistoryOverview query(Long tsFrom, Long tsTo, String entityId, int limit, long zoneOffset) {
+        List<String> arguments = new ArrayList<>(3);
+        String where = buildFilter(tsFrom, tsTo, entityId, arguments);
+
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT (timestamp + " + zoneOffset + ") / " + DAY + " AS day, COUNT(*) FROM history" + where +
+                " GROUP BY day ORDER BY day DESC",
+                arguments.toArray(new String[arguments.size()]));
+        try {
+            int count = 0;
+            long[] days = new long[cursor.getCount()];
+            int[] dayCounts = new int[cursor.getCount()];
+            for(int idx = 0; cursor.moveToNext(); idx++) {
+                days[idx] = cursor.getLong(0) * DAY - zoneOffset;
+                dayCounts[idx] = cursor.getInt(1);
+                count += dayCounts[idx];
+            }
+
+            return new HistoryOverview(count, days, dayCounts, list(tsFrom, tsTo, entityId, limit, 0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Lists the stored entries matching the filters, the most recent ones first.
+     * @param tsFrom The start of the interval (inclusive)
+     * @param tsTo The end of the interval (inclusive, null if unbounded)
+     * @param entityId The identifier of the entity (null for all entities)
+     * @param limit The maximal number of entries to return
+     * @param offset The number of matching entries to skip
+     */
+    EntityHistory[] list(Long tsFrom, Long tsTo, String entityId, int limit, int offset) {
+        List<String> arguments = new ArrayList<>(3);
+        String where = buildFilter(tsFrom, tsTo, entityId, arguments);
+
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT timestamp, entity_id, entity_name, action, action_type FROM history" + where +
+                " ORDER BY timestamp DESC, entity_id DESC LIMIT " + limit + " OFFSET " + offset,
+                arguments.toArray(new String[arguments.size()]));
+        try {
+            EntityHistory[] items = new EntityHistory[cursor.getCount()];
+            for(int idx = 0; cursor.moveToNext(); idx++) {
+                items[idx] = EntityHistory.restore(cursor.getLong(0), cursor.getString(1),
+                        cursor.getString(2), cursor.getString(3), cursor.getString(4));
+            }
+            return items;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Requests the entries stamped since the last synchronization from the server
+     * (or the ones in the retention window at the first time) and stores them.
+     * The next page is requested after the last entry of the current one before the current one is stored.
+     * The synced range is extended only if all pages were received.
+     * @param manager The manager to send the requests with
+     * @return True if the store was synchronized, false if it failed or an other synchronization was running
+     */
+    boolean synchronize(RemoteManager manager) {
+        if(!syncLock.tryLock()) {
+            return false;
+        }
+
+        try {
+            long begin = System.currentTimeMillis();
+            long cutoff = begin - RETENTION;
+            long from = isSynced() ? Math.max(cutoff, syncedTo - OVERLAP) : cutoff;
+
+            int received = 0;
+
+            // no upper bound: entries stamped by a server clock ahead of ours are stored as well
+            Command command = manager.requestHistory(from, null, null, PAGE_SIZE, 0);
+            while(command != null) {
+                EntityHistory[] items = manager.awaitHistory(command, PAGE_SIZE);
+                if(items == null || closed) {
+                    Log.w(LOG_TAG, "History synchronization failed after " + received + " entries");
+                    return false;
+                }
+
+                command = items.length == PAGE_SIZE ?
+                        manager.requestHistoryAfter(from, null, null, PAGE_SIZE, received + items.length, items[items.length - 1]) :
+                        null;
+
+                store(items);
+                received += items.length;
+            }
+
+            long trimmedFrom = isSynced() ? Math.max(syncedFrom, cutoff) : from;
+            finish(trimmedFrom, begin);
+
+            Log.d(LOG_TAG, "History synchronized: " + received + " entries in " +
+                    (System.currentTimeMillis() - begin) + " ms");
+            return true;
+        } catch(Exception ex) {
+            Log.e(LOG_TAG, "Failed to synchronize the history", ex);
+            return false;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /** Stores a page of received entries (replacing the ones already stored). */
+    private synchronized void store(EntityHistory[] items) {
+        if(closed) return;
+
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO history " +
+                "(timestamp, entity_id, entity_name, action, action_type) VALUES (?, ?, ?, ?, ?)");
+
+        db.beginTransaction();
+        try {
+            for(EntityHistory item : items) {
+                insert.bindLong(1, item.getTimestamp());
+                insert.bindString(2, item.getEntityId());
+                bindNullable(insert, 3, item.getEntityName());
+                bindNullable(insert, 4, item.getAction());
+                bindNullable(insert, 5, item.getActionType());
+                insert.executeInsert();
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    /** Drops the entries outside of the retention window and saves the new synced range. */
+    private synchronized void finish(long from, long to) {
+        if(closed) return;
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete("history", "timestamp < ?", new String[] { Long.toString(from) });
+
+            ContentValues values = new ContentValues();
+            values.put("id", 1);
+            values.put("synced_from", from);
+            values.put("synced_to", to);
+            db.replace("sync_state", null, values);
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        syncedFrom = from;
+        syncedTo = to;
+    }
+
+    /** Builds the WHERE clause of a query (collecting its arguments). */
+    private static String buildFilter(Long tsFrom, Long tsTo, String entityId, List<String> arguments) {
+        StringBuilder where = new StringBuilder(" WHERE timestamp >= ?");
+        arguments.add(Long.toString(tsFrom));
+
+        if(tsTo != null) {
+            where.append(" AND timestamp <= ?");
+            arguments.add(Long.toString(tsTo));
+        }
+
+        if(entityId != null) {
+            where.append(" AND entity_id = ?");
+            arguments.add(entityId);
+        }
+
+        return where.toString();
+    }
+
+    /** Binds a string parameter of a statement that can be null. */
+    private static void bindNullable(SQLiteStatement statement, int index, String value) {
+        if(value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+}
@@ -0,0 +1,366 @@
+package hu.rycus.intellihome.network;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import hu.rycus.intellihome.R;
+import hu.rycus.intellihome.util.MD5Util;
+
+/**
+ * Content-addressed cache of the type images.
+ * The decoded image data is stored on disk in files named by the MD5 hash of the contents,
+ * an index maps the filenames on the server to the hash of their last known contents,
+ * and the decoded bitmaps are kept in a memory cache bounded by their size in bytes
+ * (they are subsampled to the size the images are displayed at, so large images do not waste memory).
+ * The hashes are sent with the image requests, so the server only has to transfer
+ * the images that changed since they were cached.
+ * The files of replaced images are deleted, the files not in the index are deleted on start
+ * and the least recently stored files are evicted when the files exceed the size limit.
+ *
+ * Created by Viktor Adam on 1/30/14.
+ */
+class ImageCache {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|Images";
+
+    /** The name of the file mapping the filenames to content hashes. */
+    private static final String INDEX_FILE = "index.txt";
+
+    /** The maximum total size of the image files in bytes. */
+    private static final long MAX_DISK_BYTES = 4L * 1024L * 1024L; // TODO magic number
+
+    /** The shared instance of the cache. */
+    private static ImageCache INSTANCE = null;
+
+    /** The directory of the cached image data. */
+    private final File directory;
+
+    /** The content hashes by filename. */
+    private final Map<String, String> index = new HashMap<>();
+
+    /** The total size of the image files in the index in bytes. */
+    private long diskBytes = 0L;
+
+    /** The size (in pixels) the images are displayed at. */
+    private final int targetSize;
+
+    /** The decoded bitmaps by content hash. */
+    private final LruCache<String, Bitmap> memory;
+
+    /**
+     * Private constructor loading the index.
+     * @param context The context to get the storage directory from
+     */
+    private ImageCache(Context context) {
+        this.directory = new File(context.getFilesDir(), "images");
+        this.targetSize = context.getResources().getDimensionPixelSize(R.dimen.type_image_size);
+
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 32, Integer.MAX_VALUE); // TODO magic number
+        this.memory = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+
+        loadIndex();
+        sweep();
+    }
+
+    /** Returns the shared instance of the cache. */
+    static synchronized ImageCache getInstance(Context context) {
+        if(INSTANCE == null) {
+            INSTANCE = new ImageCache(context.getApplicationContext());
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the hash of the last known contents of an image.
+     * @param filename The filename of the image on the server
+     * @return The hash of the cached contents or null if the image is not cached
+     */
+    synchronized String getHash(String filename) {
+        return index.get(filename);
+    }
+
+    /**
+     * Returns the cached bitmap of an image (decoding it from disk if it is not in memory).
+     * @param filename The filename of the image on the server
+     * @return The bitmap or null if the image is not cached
+     */
+    Bitmap get(String filename) {
+        String hash = getHash(filename);
+        if(hash == null) {
+            return null;
+        }
+
+        Bitmap bitmap = memory.get(hash);
+        if(bitmap == null) {
+            File file = new File(directory, hash);
+            if(file.exists()) {
+                bitmap = decode(file);
+            }
+
+            if(bitmap != null) {
+                memory.put(hash, bitmap);
+            } else {
+                forget(filename);
+            }
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Stores the contents of an image received from the server.
+     * @param filename The filename of the image on the server
+     * @param data The decoded image data
+     * @return The decoded bitmap or null if the data is not a valid image
+     */
+    Bitmap put(String filename, byte[] data) {
+        Bitmap bitmap = decode(data);
+        if(bitmap == null) {
+            return null;
+        }
+
+        String hash = MD5Util.toMD5(data);
+        memory.put(hash, bitmap);
+
+        File file = new File(directory, hash);
+        if(file.exists() || write(file, data)) {
+            synchronized (this) {
+                if(!index.containsValue(hash)) {
+                    diskBytes += data.length;
+                }
+
+                String previous = index.put(filename, hash);
+                if(previous != null && !previous.equals(hash)) {
+                    release(previous);
+                }
+
+                trim(hash);
+                saveIndex();
+            }
+        }
+
+        return bitmap;
+    }
+
+    /** Deletes the file of a content hash if no image in the index refers to it anymore. */
+    private void release(String hash) {
+        if(index.containsValue(hash)) {
+            return;
+        }
+
+        File file = new File(directory, hash);
+        diskBytes -= file.length();
+        if(!file.delete()) {
+            Log.w(LOG_TAG, "Failed to delete the image file " + file);
+        }
+
+        memory.remove(hash);
+    }
+
+    /**
+     * Evicts the least recently stored image files (except the one just stored)
+     * while the files exceed the size limit.
+     */
+    private void trim(String keep) {
+        while(diskBytes > MAX_DISK_BYTES) {
+            String oldest = null;
+            long oldestModified = Long.MAX_VALUE;
+            for(String hash : index.values()) {
+                long modified = new File(directory, hash).lastModified();
+                if(!hash.equals(keep) && modified < oldestModified) {
+                    oldest = hash;
+                    oldestModified = modified;
+                }
+            }
+
+            if(oldest == null) {
+                return;
+            }
+
+            Log.d(LOG_TAG, "Evicting image file " + oldest + " (size limit exceeded)");
+            index.values().removeAll(Collections.singleton(oldest));
+            release(oldest);
+        }
+    }
+
+    /**
+     * Deletes the files not referred to by the index (replaced images and interrupted writes)
+     * and removes the images with missing files from the index, then calculates the size of the files.
+     */
+    private synchronized void sweep() {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        Set<String> hashes = new HashSet<>(index.values());
+        for(File file : files) {
+            String name = file.getName();
+            if(!name.equals(INDEX_FILE) && !hashes.contains(name) && !file.delete()) {
+                Log.w(LOG_TAG, "Failed to delete the stale image file " + file);
+            }
+        }
+
+        int indexed = index.size();
+
+        diskBytes = 0L;
+        for(String hash : hashes) {
+            File file = new File(directory, hash);
+            if(file.exists()) {
+                diskBytes += file.length();
+            } else {
+                index.values().removeAll(Collections.singleton(hash));
+            }
+        }
+
+        trim(null);
+
+        if(index.size() != indexed) {
+            saveIndex();
+        }
+    }
+
+    /** Decodes an image file subsampled to the display size. */
+    private Bitmap decode(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    }
+
+    /** Decodes image data subsampled to the display size. */
+    private Bitmap decode(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * Returns the largest power of two sample size that keeps
+     * both dimensions of the decoded image at least as large as the display size.
+     */
+    private int calculateSampleSize(int width, int height) {
+        int sampleSize = 1;
+        if(targetSize > 0) {
+            while(width / (sampleSize * 2) >= targetSize && height / (sampleSize * 2) >= targetSize) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
+
+    /** Removes an image from the index (when its data is missing or invalid). */
+    private synchronized void forget(String filename) {
+        String hash = index.remove(filename);
+        if(hash != null) {
+            release(hash);
+        }
+        saveIndex();
+    }
+
+    /** Loads the index file. */
+    private synchronized void loadIndex() {
+        File file = new File(directory, INDEX_FILE);
+        if(!file.exists()) return;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    int separator = line.indexOf('\t');
+                    if(separator > 0) {
+                        index.put(line.substring(separator + 1), line.substring(0, separator));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch(IOException ex) {
+            Log.w(LOG_TAG, "Failed to load the image index", ex);
+            index.clear();
+        }
+    }
+
+    /**
+     * Writes the index file (lines of hash and filename separated by a tab).
+     * Only called while holding the lock of the cache, so the index is written by one thread at a time.
+     */
+    private void saveIndex() {
+        StringBuilder builder = new StringBuilder();
+        for(Map.Entry<String, String> entry : index.entrySet()) {
+            builder.append(entry.getValue()).append('\t').append(entry.getKey()).append('\n');
+        }
+
+        try {
+            write(new File(directory, INDEX_FILE), builder.toString().getBytes("UTF-8"));
+        } catch(IOException ex) {
+            Log.w(LOG_TAG, "Failed to encode the image index", ex);
+        }
+    }
+
+    /**
+     * Replaces the contents of a file through a temporary file, returns true on success.
+     * The temporary file is unique, so concurrent writes of the same file do not interfere.
+     */
+    private boolean write(File file, byte[] data) {
+        if(!directory.exists() && !directory.mkdirs()) {
+            Log.w(LOG_TAG, "Failed to create the image directory " + directory);
+            return false;
+        }
+
+        File temporary = null;
+        try {
+            temporary = File.createTempFile(file.getName(), ".tmp", directory);
+
+            FileOutputStream output = new FileOutputStream(temporary);
+            try {
+                output.write(data);
+            } finally {
+                output.close();
+            }
+
+            if(temporary.renameTo(file)) {
+                return true;
+            }
+
+            Log.w(LOG_TAG, "Failed to rename " + temporary + " to " + file);
+        } catch(IOException ex) {
+            Log.w(LOG_TAG, "Failed to write the image file " + file, ex);
+        }
+
+        if(temporary != null) {
+            temporary.delete();
+        }
+        return false;
+    }
+
+}
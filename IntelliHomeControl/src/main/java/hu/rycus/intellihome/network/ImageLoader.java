@@ -0,0 +1,310 @@
+package hu.rycus.intellihome.network;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.util.Base64;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import hu.rycus.intellihome.model.EntityType;
+
+/**
+ * Pipeline loading the images of the entity types.
+ * The image requests are sent concurrently (up to a configurable limit),
+ * the responses are matched to the requests by the filename echoed in them
+ * (in filename:contents form, the contents are empty if the cached image is up-to-date),
+ * and the received images are decoded on background threads.
+ * Responses of servers not echoing the filename are matched to the oldest pending request,
+ * and if such a response to a conditional request is empty, the image is requested again unconditionally.
+ *
+ * Created by Viktor Adam on 1/31/14.
+ */
+class ImageLoader {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|ImageLoader";
+
+    /** The time in milliseconds to wait for the response of an image request at most. */
+    private static final long TIMEOUT = 5000L; // TODO magic number
+
+    /** The manager to send the requests with. */
+    private final RemoteManager manager;
+    /** The cache of the type images. */
+    private final ImageCache imageCache;
+    /** The resources to create the image drawables with. */
+    private final Resources resources;
+    /** The statistics to record the latency of the image loads in. */
+    private final ProtocolStatistics statistics;
+
+    /** The maximal number of requests waiting for a response at the same time. */
+    private final int maxPending;
+
+    /** The filenames of the images scheduled for loading but not completed yet. */
+    private final Set<String> scheduled = new HashSet<>();
+    /** The requests not sent yet. */
+    private final LinkedList<Request> waiting = new LinkedList<>();
+    /** The requests waiting for a response by filename (in order of sending). */
+    private final Map<String, Request> pending = new LinkedHashMap<>();
+    /** The filenames of the images loaded or revalidated by this loader. */
+    private final Set<String> validated = new HashSet<>();
+
+    /** Executor looking up the cached images and decoding the received ones. */
+    private final ExecutorService decoder;
+
+    /**
+     * Package-private constructor.
+     * @param manager The manager to send the requests with
+     * @param resources The resources to create the image drawables with
+     * @param imageCache The cache of the type images
+     * @param statistics The statistics to record the latency of the image loads in
+     * @param maxPending The maximal number of requests waiting for a response at the same time
+     */
+    ImageLoader(RemoteManager manager, Resources resources, ImageCache imageCache,
+                ProtocolStatistics statistics, int maxPending) {
+        this.manager = manager;
+        this.resources = resources;
+        this.imageCache = imageCache;
+        this.statistics = statistics;
+        this.maxPending = Math.max(1, maxPending);
+
+        int threads = Math.min(this.maxPending, Runtime.getRuntime().availableProcessors());
+        this.decoder = Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+    /**
+     * Schedules loading the image of an entity type.
+     * If the image is cached, it is displayed immediately and
+     * its hash is sent with the request, so it is only transferred if it changed.
+     */
+    void load(final EntityType type) {
+        String filename = type.getImageFilename();
+
+        synchronized (this) {
+            if(filename == null || scheduled.contains(filename)) return;
+            if(type.isImageSet() && validated.contains(filename)) return;
+
+            scheduled.add(filename);
+        }
+
+        try {
+            decoder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    prepare(type);
+                }
+            });
+        } catch(Exception ex) {
+            Log.d(LOG_TAG, "Image load scheduled after closing the loader: " + filename);
+        }
+    }
+
+    /** Processes a received image response. */
+    void onResponse(Packet packet) {
+        String data = packet.getData();
+
+        // base64 contents never contain a colon, so the last one separates the echoed filename
+        int separator = data.lastIndexOf(':');
+        final String contents = separator >= 0 ? data.substring(separator + 1) : data;
+
+        final Request request;
+        final boolean retry;
+        synchronized (this) {
+            if(separator >= 0) {
+                request = pending.remove(data.substring(0, separator));
+            } else {
+                Iterator<Request> iterator = pending.values().iterator();
+                request = iterator.hasNext() ? iterator.next() : null;
+                if(request != null) iterator.remove();
+            }
+
+            // only the echoed 'filename:' form means the cached image is up-to-date,
+            // a server not echoing the filename may not support the conditional requests at all
+            retry = request != null && separator < 0 && contents.isEmpty() && request.hash != null;
+            if(retry) {
+                waiting.addLast(new Request(request.type, null));
+            } else if(request != null) {
+                scheduled.remove(request.filename);
+            }
+        }
+
+        if(request == null) {
+            Log.w(LOG_TAG, "Unexpected image response received (" + data.length() + " bytes)");
+            return;
+        } else if(retry) {
+            Log.d(LOG_TAG, "Empty response to a conditional image request, requesting it again: " + request.filename);
+            sendWaiting();
+            return;
+        }
+
+        sendWaiting();
+
+        try {
+            decoder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    complete(request, contents);
+                }
+            });
+        } catch(Exception ex) {
+            Log.d(LOG_TAG, "Image response received after closing the loader: " + request.filename);
+        }
+    }
+
+    /** Completes the requests (without a response) whose deadline has passed. */
+    void expire(long now) {
+        List<Request> expired = new LinkedList<>();
+
+        synchronized (this) {
+            Iterator<Request> iterator = pending.values().iterator();
+            while(iterator.hasNext()) {
+                Request request = iterator.next();
+                if(request.deadline <= now) {
+                    expired.add(request);
+                    scheduled.remove(request.filename);
+                    iterator.remove();
+                }
+            }
+        }
+
+        for(Request request : expired) {
+            // keep the cached image (if there is one) until the next attempt
+            Log.w(LOG_TAG, "Image request timed out: " + request.filename);
+        }
+
+        if(!expired.isEmpty()) {
+            sendWaiting();
+        }
+    }
+
+    /** Returns the earliest deadline of the pending requests or Long.MAX_VALUE if there is none. */
+    synchronized long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for(Request request : pending.values()) {
+            deadline = Math.min(deadline, request.deadline);
+        }
+        return deadline;
+    }
+
+    /** Drops the waiting and pending requests and stops the decoder threads. */
+    void close() {
+        synchronized (this) {
+            scheduled.clear();
+            waiting.clear();
+            pending.clear();
+        }
+
+        decoder.shutdown();
+    }
+
+    /** Displays the cached image of a type (if there is one) and queues its request (on a decoder thread). */
+    private void prepare(EntityType type) {
+        String filename = type.getImageFilename();
+
+        String hash = imageCache.getHash(filename);
+        Bitmap cached = hash != null ? imageCache.get(filename) : null;
+        if(cached != null && !type.isImageSet()) {
+            type.setImage(new BitmapDrawable(resources, cached));
+        }
+
+        synchronized (this) {
+            if(!scheduled.contains(filename)) return; // closed in the meantime
+
+            waiting.addLast(new Request(type, cached != null ? hash : null));
+        }
+
+        sendWaiting();
+    }
+
+    /** Sends the waiting requests while the number of pending requests is below the limit. */
+    private void sendWaiting() {
+        List<Request> requests = new LinkedList<>();
+
+        synchronized (this) {
+            while(pending.size() < maxPending && !waiting.isEmpty()) {
+                Request request = waiting.removeFirst();
+                request.begin = System.nanoTime();
+                request.deadline = System.currentTimeMillis() + TIMEOUT;
+
+                pending.put(request.filename, request);
+                requests.add(request);
+            }
+        }
+
+        for(Request request : requests) {
+            String parameter = request.hash != null ? request.filename + ":" + request.hash : request.filename;
+            manager.enqueue(new Command(Header.MSG_A_LOAD_TYPE_IMAGE, parameter));
+        }
+    }
+
+    /** Decodes the contents of a response and sets the image of the requested type (on a decoder thread). */
+    private void complete(Request request, String contents) {
+        long elapsed = System.nanoTime() - request.begin;
+        statistics.record("image.load", elapsed, contents.length(), 1);
+
+        if(contents.isEmpty()) {
+            if(request.hash != null) {
+                Log.d(LOG_TAG, "Cached image is up-to-date: " + request.filename + " in " + (elapsed / 1000000L) + " ms");
+                markValidated(request.filename);
+            } else {
+                Log.w(LOG_TAG, "Empty image received for " + request.filename);
+            }
+            return;
+        }
+
+        long begin = statistics.begin();
+
+        byte[] decoded = Base64.decode(contents, Base64.DEFAULT);
+        Bitmap bitmap = imageCache.put(request.filename, decoded);
+
+        statistics.end("image.decode", begin, decoded.length, 1);
+
+        if(bitmap != null) {
+            request.type.setImage(new BitmapDrawable(resources, bitmap));
+            markValidated(request.filename);
+
+            Log.d(LOG_TAG, "Image loaded: " + request.filename + " (" + decoded.length + " bytes, " +
+                    bitmap.getWidth() + "x" + bitmap.getHeight() + ") in " + (elapsed / 1000000L) + " ms");
+        } else {
+            Log.w(LOG_TAG, "Invalid image received for " + request.filename);
+        }
+    }
+
+    /** Marks an image as loaded or revalidated. */
+    private synchronized void markValidated(String filename) {
+        validated.add(filename);
+    }
+
+    /** An image request waiting for its response. */
+    private static class Request {
+
+        /** The type whose image is requested. */
+        private final EntityType type;
+        /** The filename of the requested image. */
+        private final String filename;
+        /** The hash of the cached contents sent with the request (or null if the image is not cached). */
+        private final String hash;
+        /** The time (from System.nanoTime()) the request was sent at. */
+        private long begin;
+        /** The time (in milliseconds) until the response is expected to arrive. */
+        private long deadline = Long.MAX_VALUE;
+
+        /** Private constructor. */
+        private Request(EntityType type, String hash) {
+            this.type = type;
+            this.filename = type.getImageFilename();
+            this.hash = hash;
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+package hu.rycus.intellihome.network;
+
+import android.util.SparseArray;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of commands that are sent to the server but not answered yet.
+ * The wire format of the server does not identify the request a response belongs to,
+ * it answers the requests with the same header in order, so a response is matched
+ * to the oldest pending command with its header.
+ * A command whose request or response was lost is completed without a response at its deadline;
+ * if the response was only delayed instead, it is matched to the next pending command
+ * with the same header (or handled as an unsolicited message if there is none).
+ *
+ * Created by Viktor Adam on 1/12/14.
+ */
+class InFlightRequests {
+
+    /** Pending commands in order of sending by header. */
+    private final SparseArray<LinkedList<Command>> pendingByHeader = new SparseArray<>();
+
+    /** Pending commands by their local identifier. */
+    private final Map<Integer, Command> pendingById = new LinkedHashMap<>();
+
+    /**
+     * Registers a command that is about to be sent.
+     * @param command The command to wait a response for
+     * @param timeout The time in milliseconds to wait for the response at most
+     */
+    synchronized void register(Command command, long timeout) {
+        command.setDeadline(System.currentTimeMillis() + timeout);
+
+        LinkedList<Command> pending = pendingByHeader.get(command.getHeader());
+        if(pending == null) {
+            pending = new LinkedList<>();
+            pendingByHeader.put(command.getHeader(), pending);
+        }
+
+        pending.addLast(command);
+        pendingById.put(command.getId(), command);
+    }
+
+    /**
+     * Removes a registered command without completing it.
+     * @return True if the command was still pending
+     */
+    synchronized boolean cancel(Command command) {
+        if(pendingById.remove(command.getId()) != null) {
+            pendingByHeader.get(command.getHeader()).remove(command);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Completes the oldest pending command with the header of the received packet.
+     * @param packet The received response packet
+     * @return True if a pending command was found for the packet
+     */
+    boolean complete(Packet packet) {
+        Command command;
+
+        synchronized (this) {
+            LinkedList<Command> pending = pendingByHeader.get(packet.getHeader());
+            if(pending == null || pending.isEmpty()) {
+                return false;
+            }
+
+            command = pending.removeFirst();
+            pendingById.remove(command.getId());
+        }
+
+        command.setResponse(packet);
+        return true;
+    }
+
+    /**
+     * Completes the commands (without a response) whose deadline has passed.
+     * @param now The current time in milliseconds
+     */
+    void expire(long now) {
+        List<Command> expired = new LinkedList<>();
+
+        synchronized (this) {
+            for(Command command : pendingById.values()) {
+                if(command.getDeadline() <= now) {
+                    expired.add(command);
+                }
+            }
+
+            for(Command command : expired) {
+                pendingById.remove(command.getId());
+                pendingByHeader.get(command.getHeader()).remove(command);
+            }
+        }
+
+        for(Command command : expired) {
+            command.setResponse(null);
+        }
+    }
+
+    /** Completes every pending command without a response (the connection is closed). */
+    void clear() {
+        expire(Long.MAX_VALUE);
+    }
+
+    /** Returns the number of pending commands. */
+    synchronized int size() { return pendingById.size(); }
+
+    /** Returns the earliest deadline of the pending commands or Long.MAX_VALUE if there is none. */
+    synchronized long nextDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for(Command command : pendingById.values()) {
+            deadline = Math.min(deadline, command.getDeadline());
+        }
+        return deadline;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "InFlightRequests[pending: " + pendingById.size() + "]";
+    }
+
+}
@@ -0,0 +1,185 @@
+package hu.rycus.intellihome.network;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reassembles multipart UDP messages by appending the raw bytes of the fragments
+ * to a per-header buffer, creating the packet only when the last fragment arrives.
+ * Incomplete messages are dropped when they exceed the size limit
+ * or when no fragment arrived for them within the timeout.
+ * The remaining fragments of a dropped message are discarded up to (and including) its last fragment,
+ * so its tail is not delivered as a message of its own.
+ *
+ * Created by Viktor Adam on 1/18/14.
+ */
+class MultipartAssembler {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|Multi";
+
+    /** The initial size of the message buffers. */
+    private static final int INITIAL_BUFFER_SIZE = 2048;
+    /** Buffers larger than this are released after their message is completed. */
+    private static final int RETAINED_BUFFER_SIZE = 16 * 1024;
+
+    /** Incomplete multipart messages by header. */
+    private final Map<Integer, Message> incompleteMessages = new HashMap<>();
+
+    /** The maximum size of a message in bytes. */
+    private final int maxMessageSize;
+    /** The time in milliseconds after an incomplete message without new fragments is dropped. */
+    private final long timeout;
+
+    /** The number of multipart messages completed. */
+    private long completedCount = 0L;
+    /** The number of incomplete messages dropped because of the timeout. */
+    private long expiredCount = 0L;
+    /** The number of incomplete messages dropped because of the size limit. */
+    private long oversizedCount = 0L;
+    /** The number of bytes in the dropped messages (including their discarded fragments). */
+    private long droppedBytes = 0L;
+
+    /**
+     * Package-private constructor.
+     * @param maxMessageSize The maximum size of a message in bytes
+     * @param timeout The time in milliseconds after an incomplete message without new fragments is dropped
+     */
+    MultipartAssembler(int maxMessageSize, long timeout) {
+        this.maxMessageSize = maxMessageSize;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Appends a fragment to the incomplete message with the same header.
+     * @param header The header of the received fragment
+     * @param buffer The buffer containing the fragment
+     * @param offset The offset of the fragment in the buffer
+     * @param length The length of the fragment
+     * @param finish Is this the last fragment? (or else more follows)
+     * @return The complete packet or null if more fragments are expected
+     */
+    Packet append(int header, byte[] buffer, int offset, int length, boolean finish) {
+        Message message = incompleteMessages.get(header);
+
+        if(message != null && message.discarding) {
+            // remaining fragment of a dropped message
+            droppedBytes += length;
+            message.lastUpdate = System.currentTimeMillis();
+            if(finish) {
+                message.discarding = false;
+            }
+            return null;
+        }
+
+        if(message == null || !message.active) {
+            if(finish) {
+                // single datagram message, only its contents are copied out of the reused buffer
+                byte[] contents = length > 0 ? Arrays.copyOfRange(buffer, offset, offset + length) : Packet.EMPTY;
+                return new Packet(header, contents);
+            }
+
+            if(message == null) {
+                message = new Message();
+                incompleteMessages.put(header, message);
+            }
+
+            message.active = true;
+        }
+
+        if(message.length + length > maxMessageSize) {
+            Log.w(LOG_TAG, "Dropping oversized multipart message (H" + Integer.toHexString(header) + "), length: " + (message.length + length));
+            oversizedCount++;
+            droppedBytes += message.length + length;
+            message.reset();
+            message.discarding = !finish;
+            return null;
+        }
+
+        message.append(buffer, offset, length);
+
+        if(finish) {
+            Packet packet = new Packet(header, Arrays.copyOf(message.data, message.length));
+            completedCount++;
+            message.reset();
+            return packet;
+        }
+
+        return null;
+    }
+
+    /**
+     * Drops the incomplete messages which did not receive new fragments within the timeout.
+     * Stops discarding the fragments of a dropped message if its last fragment
+     * did not arrive within the timeout either (it was lost).
+     * @param now The current time in milliseconds
+     */
+    void expire(long now) {
+        for(Map.Entry<Integer, Message> entry : incompleteMessages.entrySet()) {
+            Message message = entry.getValue();
+
+            if(now - message.lastUpdate < timeout) {
+                continue;
+            }
+
+            if(message.active) {
+                Log.w(LOG_TAG, "Dropping stale multipart message (H" + Integer.toHexString(entry.getKey()) + "), received: " + message.length + " bytes");
+                expiredCount++;
+                droppedBytes += message.length;
+
+                message.reset();
+                message.discarding = true;
+                message.lastUpdate = now;
+            } else if(message.discarding) {
+                message.discarding = false;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " completed: " + completedCount + ", expired: " + expiredCount +
+                ", oversized: " + oversizedCount + ", dropped bytes: " + droppedBytes;
+    }
+
+    /** Reusable buffer of an incomplete message. */
+    private static class Message {
+
+        /** The received bytes of the message. */
+        private byte[] data = new byte[INITIAL_BUFFER_SIZE];
+        /** The number of received bytes. */
+        private int length = 0;
+        /** The time when the last fragment was received. */
+        private long lastUpdate = 0L;
+        /** True if the message has received fragments and is waiting for more. */
+        private boolean active = false;
+        /** True if the message was dropped and its remaining fragments are discarded. */
+        private boolean discarding = false;
+
+        /** Appends a fragment to the message, growing the buffer if needed. */
+        private void append(byte[] buffer, int offset, int count) {
+            if(length + count > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+            }
+
+            System.arraycopy(buffer, offset, data, length, count);
+            length += count;
+            lastUpdate = System.currentTimeMillis();
+        }
+
+        /** Clears the message so its buffer can be reused (releasing the buffer if it is too large to keep). */
+        private void reset() {
+            length = 0;
+            active = false;
+
+            if(data.length > RETAINED_BUFFER_SIZE) {
+                data = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+
+    }
+
+}
@@ -43,6 +43,9 @@ public abstract class NetworkHandler extends Thread {
     /** Is the authenticated user the administrator? */
     protected boolean administrator = false;
 
+    /** Should the binary wire format be requested at login? */
+    protected boolean binaryCodec = false;
+
     /**
      * Package-private constructor with the creator/owner of the instance.
      * @param name          A name for the thread
@@ -79,6 +82,18 @@ public abstract class NetworkHandler extends Thread {
     /** Returns true, if the authenticated user is the administrator. */
     public boolean isAdministrator() { return administrator; }
 
+    /** Set this true to request the binary wire format at login. */
+    void setBinaryCodec(boolean binaryCodec) { this.binaryCodec = binaryCodec; }
+
+    /**
+     * Returns the contents of the login message.
+     * When the binary wire format is requested, the server may send
+     * responses in that format (marked by their first byte) instead of text.
+     */
+    protected String createLoginData() {
+        return username + ":" + password + (binaryCodec ? ":binary" : "");
+    }
+
     /** Executes the main loop of the network handler. */
     public abstract void run();
 
@@ -95,9 +110,14 @@ public abstract class NetworkHandler extends Thread {
         return null;
     }
 
-    /** Enqueues a received packet in its header's queue. */
+    /**
+     * Passes a received packet to the pending command waiting for it
+     * or enqueues it in its header's queue if there is none.
+     */
     protected void enqueuePacket(Packet packet) {
-        getQueue(packet.getHeader()).offer(packet);
+        if(!manager.completeRequest(packet)) {
+            getQueue(packet.getHeader()).offer(packet);
+        }
     }
 
     /** Returns the blocking input queue for the given header value. */
@@ -147,4 +167,20 @@ public abstract class NetworkHandler extends Thread {
      */
     protected abstract boolean send(int header, byte[] data, int flags);
 
+    /**
+     * Writes out the commands that are sent but possibly buffered by the handler.
+     * Handlers writing every command immediately do not need to override this.
+     */
+    protected void flush() {
+        /* NO-OP by default */
+    }
+
+    /**
+     * Writes out the buffered commands if the oldest of them is waiting longer than the handler allows.
+     * Handlers writing every command immediately do not need to override this.
+     */
+    protected void flushIfDue() {
+        /* NO-OP by default */
+    }
+
 }
@@ -1,5 +1,7 @@
 package hu.rycus.intellihome.network;
 
+import hu.rycus.intellihome.util.BinaryReader;
+
 /**
  * An object containing the data received from the server.
  *
@@ -7,10 +9,15 @@ package hu.rycus.intellihome.network;
  */
 public class Packet {
 
+    /** Shared empty contents for packets without data. */
+    static final byte[] EMPTY = new byte[0];
+
     /** The header of the packet. */
     private final int header;
-    /** The contents of the packet as String. */
-    private final String data;
+    /** The contents of the packet as String (decoded lazily if created from bytes). */
+    private String data;
+    /** The contents of the packet as byte array (or null if created from String). */
+    private final byte[] bytes;
 
     /**
      * Constructor to create a packet with header and data contents.
@@ -20,11 +27,35 @@ public class Packet {
     public Packet(int header, String data) {
         this.header = header;
         this.data = data;
+        this.bytes = null;
+    }
+
+    /**
+     * Constructor to create a packet with header and raw data contents.
+     * The contents are decoded to String only when they are first requested.
+     * @param header The header of the packet
+     * @param bytes  The contents of the packet as byte array (not copied)
+     */
+    public Packet(int header, byte[] bytes) {
+        this.header = header;
+        this.data = null;
+        this.bytes = bytes;
     }
 
     /** Returns the header of the packet. */
     public int getHeader() { return header; }
     /** Returns the contents of the packet as String. */
-    public String getData() { return data; }
+    public String getData() {
+        if(data == null && bytes != null) {
+            data = bytes.length > 0 ? new String(bytes) : "";
+        }
+        return data;
+    }
+    /** Returns the contents of the packet as byte array. */
+    public byte[] getBytes() { return bytes != null ? bytes : data.getBytes(); }
+    /** Returns true, if the contents of the packet are in the binary wire format. */
+    public boolean isBinary() { return BinaryReader.isBinary(bytes); }
+    /** Returns the length of the contents in bytes (or characters if created from String). */
+    public int getLength() { return bytes != null ? bytes.length : data.length(); }
 
 }
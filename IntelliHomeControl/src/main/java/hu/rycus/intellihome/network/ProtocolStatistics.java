@@ -0,0 +1,223 @@
+package hu.rycus.intellihome.network;
+
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects timing statistics of the protocol operations (parsing responses, decoding frames, etc.)
+ * on the device to compare the costs before and after protocol changes.
+ * For every named operation the number of calls, the processed items and bytes,
+ * the throughput and the latency percentiles of the most recent calls are kept.
+ * When verbose logging is enabled for the {@link #LOG_TAG} tag,
+ * the number and size of the objects allocated by the operations are counted too.
+ *
+ * Created by Viktor Adam on 1/24/14.
+ */
+public class ProtocolStatistics {
+
+    /** Tag for logcat (enable verbose logging for this tag to count allocations). */
+    public static final String LOG_TAG = "IntelliHome|NET|Stats";
+
+    /** The number of the most recent latency samples kept for each operation. */
+    private static final int SAMPLE_COUNT = 512; // TODO magic number
+
+    /** Statistics by operation name (in order of the first occurrence). */
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+    /** True if the allocations of the operations are counted. */
+    private final boolean countAllocations;
+
+    /** The allocation counters of the current thread when the measurement started. */
+    private final ThreadLocal<int[]> allocationStart = new ThreadLocal<int[]>() {
+        @Override protected int[] initialValue() { return new int[2]; }
+    };
+
+    /** Public constructor. */
+    public ProtocolStatistics() {
+        this.countAllocations = Log.isLoggable(LOG_TAG, Log.VERBOSE);
+        if(countAllocations) {
+            Debug.startAllocCounting();
+        }
+    }
+
+    /**
+     * Starts measuring an operation on the current thread.
+     * @return The start time to pass to {@link #end(String, long, int, int)}
+     */
+    public long begin() {
+        if(countAllocations) {
+            int[] counters = allocationStart.get();
+            counters[0] = Debug.getThreadAllocCount();
+            counters[1] = Debug.getThreadAllocSize();
+        }
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Finishes measuring an operation started on the current thread.
+     * @param name The name of the operation
+     * @param begin The start time returned by {@link #begin()}
+     * @param bytes The number of bytes processed by the operation
+     * @param items The number of items (entities, frames, etc.) processed by the operation
+     */
+    public void end(String name, long begin, int bytes, int items) {
+        long elapsed = System.nanoTime() - begin;
+
+        int allocCount = 0;
+        int allocSize = 0;
+        if(countAllocations) {
+            int[] counters = allocationStart.get();
+            allocCount = Debug.getThreadAllocCount() - counters[0];
+            allocSize  = Debug.getThreadAllocSize()  - counters[1];
+        }
+
+        record(name, elapsed, bytes, items, allocCount, allocSize);
+    }
+
+    /**
+     * Records an operation measured by the caller, like a request
+     * that is sent and answered on different threads (its allocations are not counted).
+     * @param name The name of the operation
+     * @param elapsed The duration of the operation in nanoseconds
+     * @param bytes The number of bytes processed by the operation
+     * @param items The number of items processed by the operation
+     */
+    public void record(String name, long elapsed, int bytes, int items) {
+        record(name, elapsed, bytes, items, 0, 0);
+    }
+
+    /** Adds the results of an operation to its metric. */
+    private void record(String name, long elapsed, int bytes, int items, int allocCount, int allocSize) {
+        synchronized (metrics) {
+            Metric metric = metrics.get(name);
+            if(metric == null) {
+                metric = new Metric();
+                metrics.put(name, metric);
+            }
+
+            metric.record(elapsed, bytes, items, allocCount, allocSize);
+        }
+    }
+
+    /**
+     * Returns a latency percentile of an operation in microseconds.
+     * @param name The name of the operation
+     * @param percentile The percentile to return (between 0 and 100)
+     * @return The latency or -1 if there are no samples for the operation
+     */
+    public long getLatency(String name, double percentile) {
+        synchronized (metrics) {
+            Metric metric = metrics.get(name);
+            if(metric == null || metric.count == 0) {
+                return -1L;
+            }
+
+            return metric.percentile(metric.sortedSamples(), percentile) / 1000L;
+        }
+    }
+
+    /** Clears the collected statistics. */
+    public void reset() {
+        synchronized (metrics) {
+            metrics.clear();
+        }
+    }
+
+    /** Stops counting allocations (if it was enabled). */
+    public void close() {
+        if(countAllocations) {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(getClass().getSimpleName());
+
+        synchronized (metrics) {
+            for(Map.Entry<String, Metric> entry : metrics.entrySet()) {
+                builder.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /** Statistics of a single operation. */
+    private class Metric {
+
+        /** The number of calls. */
+        private long count = 0L;
+        /** The total number of processed items. */
+        private long items = 0L;
+        /** The total number of processed bytes. */
+        private long bytes = 0L;
+        /** The total time of the calls in nanoseconds. */
+        private long totalNanos = 0L;
+        /** The maximum time of a call in nanoseconds. */
+        private long maxNanos = 0L;
+        /** The total number of allocated objects. */
+        private long allocCount = 0L;
+        /** The total size of allocated objects in bytes. */
+        private long allocSize = 0L;
+
+        /** Ring buffer of the most recent latency samples in nanoseconds. */
+        private final long[] samples = new long[SAMPLE_COUNT];
+
+        /** Records the results of a call. */
+        private void record(long elapsed, int bytes, int items, int allocCount, int allocSize) {
+            samples[(int) (count % SAMPLE_COUNT)] = elapsed;
+
+            this.count++;
+            this.items += items;
+            this.bytes += bytes;
+            this.totalNanos += elapsed;
+            this.maxNanos = Math.max(maxNanos, elapsed);
+            this.allocCount += allocCount;
+            this.allocSize += allocSize;
+        }
+
+        /** Returns the available latency samples in ascending order. */
+        private long[] sortedSamples() {
+            long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, SAMPLE_COUNT));
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        /** Returns a percentile (between 0 and 100) of the given sorted samples. */
+        private long percentile(long[] sorted, double percentile) {
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+
+        @Override
+        public String toString() {
+            long[] sorted = sortedSamples();
+            double seconds = totalNanos / 1e9;
+
+            String result = String.format(Locale.US,
+                    "calls: %d, items: %d, bytes: %d, items/s: %.0f, MB/s: %.2f, " +
+                    "p50: %dus, p90: %dus, p99: %dus, max: %dus",
+                    count, items, bytes,
+                    seconds > 0 ? items / seconds : 0.0,
+                    seconds > 0 ? bytes / seconds / (1024.0 * 1024.0) : 0.0,
+                    percentile(sorted, 50) / 1000L, percentile(sorted, 90) / 1000L,
+                    percentile(sorted, 99) / 1000L, maxNanos / 1000L);
+
+            if(countAllocations) {
+                result += String.format(Locale.US, ", allocations/call: %d (%d bytes)",
+                        allocCount / count, allocSize / count);
+            }
+
+            return result;
+        }
+
+    }
+
+}
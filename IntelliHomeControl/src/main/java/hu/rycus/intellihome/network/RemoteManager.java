@@ -1,26 +1,16 @@
 package hu.rycus.intellihome.network;
 
-import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.os.Bundle;
-import android.os.Parcelable;
 import android.preference.PreferenceManager;
-import android.support.v4.content.LocalBroadcastManager;
-import android.util.Base64;
 import android.util.Log;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 import hu.rycus.intellihome.R;
@@ -28,9 +18,11 @@ import hu.rycus.intellihome.RemoteService;
 import hu.rycus.intellihome.model.Entity;
 import hu.rycus.intellihome.model.EntityHistory;
 import hu.rycus.intellihome.model.EntityType;
+import hu.rycus.intellihome.model.HistoryOverview;
 import hu.rycus.intellihome.model.User;
+import hu.rycus.intellihome.util.BinaryReader;
 import hu.rycus.intellihome.util.Defaults;
-import hu.rycus.intellihome.util.Intents;
+import hu.rycus.intellihome.util.FieldCursor;
 import hu.rycus.intellihome.util.PreferenceKeys;
 
 /**
@@ -52,11 +44,53 @@ public class RemoteManager extends Thread {
     /** The network handler used for low-level communication with the server. */
     private NetworkHandler handler;
 
-    /** Queue for commands to send to the server. */
-    private final LinkedBlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+    /** Table of the commands sent but not answered yet (used in pipelined mode). */
+    private final InFlightRequests inFlight = new InFlightRequests();
 
-    /** Executor for various background tasks (like downloading posters). */
-    private final ExecutorService executor;
+    /** True if commands are sent without waiting for the response of the previous ones. */
+    private final boolean pipelined;
+
+    /** Timing statistics of the protocol operations. */
+    private final ProtocolStatistics statistics = new ProtocolStatistics();
+
+    /** Queue for commands to send to the server (bounded, prioritized, coalescing and expiring the commands by type). */
+    private final CommandQueue queue = new CommandQueue(statistics);
+
+    /** The entities known by the client (owned by the service to keep the subscriptions between manager instances). */
+    private final EntityStore entityStore;
+    /** Dispatcher coalescing the state changes before applying them to the entity store. */
+    private final StateChangeDispatcher stateChangeDispatcher;
+
+    /** The bus to post the events to (owned by the service to keep the subscriptions between manager instances). */
+    private final EventBus eventBus;
+
+    /** The on-disk snapshot of the types and entities of the configured server and user. */
+    private SnapshotStore snapshot;
+
+    /** The on-device copy of the recent history of the configured server and user (or null if it could not be opened). */
+    private volatile HistoryStore historyStore;
+
+    /** False if the server rejected a keyset history request (so offsets are used instead until the next connection). */
+    private volatile boolean keysetHistory = true;
+    /** True if the server answered a keyset history request since the connection was established. */
+    private volatile boolean keysetConfirmed = false;
+    /** The last keyset history request sent before the server answered one (an error received while it is pending rejects it). */
+    private volatile Command keysetProbe = null;
+    /**
+     * False if the server rejected a combined history query or its response could not be parsed
+     * (so the entries are counted and listed separately until the next connection).
+     */
+    private volatile boolean combinedHistory = true;
+    /** True if the server answered a combined history query since the connection was established. */
+    private volatile boolean combinedConfirmed = false;
+    /** The last combined history query sent before the server answered one (an error received while it is pending rejects it). */
+    private volatile Command combinedProbe = null;
+
+    /** The pipeline loading the images of the entity types. */
+    private final ImageLoader imageLoader;
+
+    /** The history export running in the background (or null if there is none). */
+    private HistoryExporter exporter;
 
     /** True until this manager instance is enabled. */
     private boolean enabled = true;
@@ -66,26 +100,44 @@ public class RemoteManager extends Thread {
     /**
      * Private constructor initiating and starting the manager.
      * @param service The remote service that created this manager
+     * @param entityStore The store of the entities known by the client
+     * @param eventBus The bus to post the events to
      */
-    private RemoteManager(RemoteService service) {
+    private RemoteManager(RemoteService service, EntityStore entityStore, EventBus eventBus) {
         super("RemoteManager");
         this.remoteService = service;
-        this.executor = Executors.newSingleThreadExecutor();
+        this.entityStore = entityStore;
+        this.eventBus = eventBus;
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(service);
+        this.pipelined = prefs.getBoolean(PreferenceKeys.Communication.PIPELINE, Defaults.Communication.PIPELINE);
+
+        String imageRequests = prefs.getString(PreferenceKeys.Communication.IMAGE_REQUESTS, Defaults.Communication.IMAGE_REQUESTS);
+        this.imageLoader = new ImageLoader(this, service.getResources(), ImageCache.getInstance(service),
+                statistics, Integer.parseInt(imageRequests));
+
+        String batchWindow = prefs.getString(PreferenceKeys.Communication.BATCH_WINDOW, Defaults.Communication.BATCH_WINDOW);
+        this.stateChangeDispatcher = new StateChangeDispatcher(entityStore, eventBus, Long.parseLong(batchWindow));
+
         this.start();
     }
 
     /**
      * Starts a manager instance (stopping the previous one if there was one.
      * @param service The remote service that creates a manager
+     * @param entityStore The store of the entities known by the client (cleared before starting)
+     * @param eventBus The bus to post the events to
      * @return The started manager instance
      */
-    public static RemoteManager start(RemoteService service) {
+    public static RemoteManager start(RemoteService service, EntityStore entityStore, EventBus eventBus) {
         synchronized (RemoteManager.class) {
             if(INSTANCE != null) {
                 INSTANCE.shutdown();
             }
 
-            INSTANCE = new RemoteManager(service);
+            entityStore.clear();
+
+            INSTANCE = new RemoteManager(service, entityStore, eventBus);
             Log.e(LOG_TAG, "RM.Instance: CREATE");
             return INSTANCE;
         }
@@ -98,7 +150,9 @@ public class RemoteManager extends Thread {
                 Header.MSG_A_KEEPALIVE,
                 Header.MSG_A_USERS_CHANGED,
                 Header.MSG_A_SEND_COMMAND,
-                Header.MSG_A_STATE_CHANGED
+                Header.MSG_A_STATE_CHANGED,
+                Header.MSG_A_LOAD_TYPE_IMAGE,
+                Header.MSG_A_HISTORY_APPENDED
         ));
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(remoteService);
@@ -106,6 +160,8 @@ public class RemoteManager extends Thread {
         String  strPort = prefs.getString(PreferenceKeys.Communication.PORT,   Defaults.Communication.PORT);
         int     port    = Integer.parseInt(strPort);
 
+        boolean sequenced = prefs.getBoolean(PreferenceKeys.Communication.SEQUENCED, Defaults.Communication.SEQUENCED);
+
         String  username = prefs.getString(PreferenceKeys.Authentication.USERNAME, Defaults.Authentication.USERNAME);
         String  password = prefs.getString(PreferenceKeys.Authentication.PASSWORD, Defaults.Authentication.PASSWORD);
 
@@ -113,12 +169,12 @@ public class RemoteManager extends Thread {
             case "mcast":
             {
                 String group = prefs.getString(PreferenceKeys.Communication.HOST, Defaults.Communication.MCAST_GROUP);
-                return new UDPHandler(this, group, port, username, password, asynchHeaders, true, false);
+                return new UDPHandler(this, group, port, username, password, asynchHeaders, true, false, sequenced);
             }
             case "bcast":
             {
                 String address = prefs.getString(PreferenceKeys.Communication.HOST, Defaults.Communication.MCAST_GROUP);
-                return new UDPHandler(this, address, port, username, password, asynchHeaders, false, true);
+                return new UDPHandler(this, address, port, username, password, asynchHeaders, false, true, sequenced);
             }
             case "udp":
             {
@@ -126,7 +182,7 @@ public class RemoteManager extends Thread {
                 if (host == null) {
                     throw new RuntimeException("No address available for UDP/unicast communication"); // This shouldn't happen
                 }
-                return new UDPHandler(this, host, port, username, password, asynchHeaders, false, false);
+                return new UDPHandler(this, host, port, username, password, asynchHeaders, false, false, sequenced);
             }
             case "tcp":
             {
@@ -136,11 +192,63 @@ public class RemoteManager extends Thread {
                 }
                 return new TCPHandler(this, host, port, username, password, asynchHeaders);
             }
+            case "tcp-nio":
+            {
+                String host = prefs.getString(PreferenceKeys.Communication.HOST, null);
+                if (host == null) {
+                    throw new RuntimeException("No address available for TCP communication"); // This shouldn't happen
+                }
+                return new TCPChannelHandler(this, host, port, username, password, asynchHeaders);
+            }
         }
 
         return null;
     }
 
+    /** Returns the identifier of the configured server (network mode, address and port). */
+    private static String getServer(SharedPreferences prefs) {
+        return prefs.getString(PreferenceKeys.Communication.MODE, Defaults.Communication.MODE) + "://" +
+                prefs.getString(PreferenceKeys.Communication.HOST, Defaults.Communication.MCAST_GROUP) + ":" +
+                prefs.getString(PreferenceKeys.Communication.PORT, Defaults.Communication.PORT);
+    }
+
+    /** Creates the snapshot store of the configured server and user. */
+    private SnapshotStore createSnapshotStore(SharedPreferences prefs) {
+        String username = prefs.getString(PreferenceKeys.Authentication.USERNAME, Defaults.Authentication.USERNAME);
+        return new SnapshotStore(remoteService, getServer(prefs), username);
+    }
+
+    /** Opens the history store of the configured server and user (or returns null if it could not be opened). */
+    private HistoryStore openHistoryStore(SharedPreferences prefs) {
+        String username = prefs.getString(PreferenceKeys.Authentication.USERNAME, Defaults.Authentication.USERNAME);
+        HistoryStore store = new HistoryStore(remoteService, getServer(prefs), username);
+
+        try {
+            store.open();
+            return store;
+        } catch(Exception ex) {
+            Log.e(LOG_TAG, "Failed to open the history store, history is listed from the server", ex);
+            store.close();
+            return null;
+        }
+    }
+
+    /**
+     * Restores the types and entities from the last snapshot (before connecting),
+     * so the UI can display them until the server responds.
+     */
+    private void restoreSnapshot() {
+        long begin = System.currentTimeMillis();
+
+        Entity[] entities = snapshot.restore();
+        if(entities != null) {
+            eventBus.post(new Events.DeviceTypesListed(null));
+            entityStore.replaceAll(entities, null);
+
+            Log.i(LOG_TAG, "Snapshot restored in " + (System.currentTimeMillis() - begin) + " ms");
+        }
+    }
+
     /**
      * This code instantiates a low-level network handler, logs in then sends commands
      * to the remote server or a keep-alive message if no commands were enqueued.
@@ -154,20 +262,45 @@ public class RemoteManager extends Thread {
             throw new RuntimeException("Couldn't create the network handler"); // This shouldn't happen
         }
 
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(remoteService);
+        handler.setBinaryCodec(prefs.getBoolean(PreferenceKeys.Communication.BINARY, Defaults.Communication.BINARY));
+
+        snapshot = createSnapshotStore(prefs);
+        restoreSnapshot();
+
+        historyStore = openHistoryStore(prefs);
+
         try {
             if( handler.initialize() ) {
                 Log.e(LOG_TAG, "Network handler initialized");
                 handler.start();
 
+                long lastActivity = System.currentTimeMillis();
+
                 while(enabled && (INSTANCE == this)) {
                     try {
                         // TODO magic numbers
-                        Command command = queue.poll(connected ? 7500 : 2500, TimeUnit.MILLISECONDS);
+                        long idle = connected ? 7500 : 2500;
+                        long deadline = Math.min(inFlight.nextDeadline(), imageLoader.nextDeadline());
+                        long timeout = Math.min(idle, deadline - System.currentTimeMillis());
+
+                        Command command = queue.poll(Math.max(timeout, 0L), TimeUnit.MILLISECONDS);
                         if(command != null) {
                             process(command);
-                        } else {
+                            lastActivity = System.currentTimeMillis();
+                        } else if(System.currentTimeMillis() - lastActivity >= idle) {
                             handler.send(Header.MSG_A_KEEPALIVE);
+                            lastActivity = System.currentTimeMillis();
                         }
+
+                        if(queue.isEmpty()) {
+                            handler.flush(); // the queue is drained, write out the batched commands
+                        } else {
+                            handler.flushIfDue(); // do not hold back the batched commands while processing the rest
+                        }
+
+                        inFlight.expire(System.currentTimeMillis());
+                        imageLoader.expire(System.currentTimeMillis());
                     } catch(Exception ex) {
                         Log.e(LOG_TAG, "Failed to process a command", ex);
                     }
@@ -175,6 +308,18 @@ public class RemoteManager extends Thread {
             }
         } finally {
             handler.shutdown();
+            inFlight.clear();
+
+            HistoryStore store = historyStore;
+            historyStore = null;
+            if(store != null) {
+                store.close();
+            }
+
+            Log.i(LOG_TAG, "Protocol statistics: " + statistics);
+            Log.i(LOG_TAG, "Command queue: " + queue);
+            Log.i(LOG_TAG, "Requests: " + inFlight);
+            statistics.close();
             setConnected(false);
         }
 
@@ -190,7 +335,9 @@ public class RemoteManager extends Thread {
         synchronized (RemoteManager.class) {
             connected = false;
             enabled = false;
-            executor.shutdown();
+            imageLoader.close();
+            stateChangeDispatcher.close();
+            if(exporter != null) exporter.cancel();
             queue.offer(new Command(Header.MSG_A_EXIT));
 
             if(INSTANCE == this) {
@@ -204,13 +351,32 @@ public class RemoteManager extends Thread {
     public boolean isConnected() { return connected; }
     /** Set this true if this manager is connected and has an active session to the server. */
     void setConnected(boolean connected) {
-        if(this.connected != connected) {
-            Intent intent = new Intent(Intents.ACTION_CALLBACK);
-            intent.putExtra(Intents.EXTRA_CONNECTION_STATE, connected);
-            LocalBroadcastManager.getInstance(remoteService).sendBroadcast(intent);
-        }
+        boolean changed = this.connected != connected;
 
         this.connected = connected;
+
+        if(changed && connected) {
+            // the server may have been replaced, so the optional requests are probed again
+            keysetHistory = true;
+            keysetConfirmed = false;
+            keysetProbe = null;
+            combinedHistory = true;
+            combinedConfirmed = false;
+            combinedProbe = null;
+        }
+
+        if(changed) {
+            eventBus.post(new Events.ConnectionChanged(connected));
+        }
+
+        if(changed && connected) {
+            startHistorySync();
+
+            // the subscription belongs to the session, it has to be renewed after logging in again
+            if(eventBus.hasSubscribers(Events.HistoryAppended.class)) {
+                queue.offer(new Command(Header.MSG_A_SUBSCRIBE_HISTORY, "1"));
+            }
+        }
     }
 
     /** Returns true, if the authenticated user is the administrator. */
@@ -218,12 +384,62 @@ public class RemoteManager extends Thread {
         return handler.isAdministrator();
     }
 
+    /** Returns the number of commands waiting to be sent to the server. */
+    public int getQueueDepth() { return queue.size(); }
+
+    /** Returns the timing statistics of the protocol operations. */
+    public ProtocolStatistics getStatistics() { return statistics; }
+
+    /** Returns the store of the entities known by the client. */
+    public EntityStore getEntityStore() { return entityStore; }
+
+    /**
+     * Completes the pending command waiting for the given packet.
+     * @return True if the packet was a response of a pending command
+     */
+    boolean completeRequest(Packet packet) {
+        return pipelined && inFlight.complete(packet);
+    }
+
+    /** Enqueues a command to send to the server. */
+    void enqueue(Command command) {
+        queue.offer(command);
+    }
+
+    /**
+     * Sends a command to the server and sets its response.
+     * In pipelined mode this returns right after sending the command
+     * and the response is set when it arrives (or the timeout expires),
+     * otherwise this blocks until the response is received.
+     * @param command The command to send
+     * @param timeout The time in milliseconds to wait for the response at most
+     */
+    private void request(Command command, long timeout) {
+        if(pipelined) {
+            inFlight.register(command, timeout);
+            if(!handler.send(command.getHeader(), command.getData())) {
+                if(inFlight.cancel(command)) {
+                    command.setResponse(null);
+                }
+            }
+        } else {
+            handler.send(command.getHeader(), command.getData());
+            handler.flush();
+            command.setResponse(handler.poll(command.getHeader(), timeout));
+        }
+    }
+
     /**
      * Processes an enqueued command.
      * This usually means sending the command to the remote server,
      * processing the response and notifying the UI and/or the user.
      */
     private void process(Command command) {
+        if(!command.markSent()) {
+            Log.d(LOG_TAG, "Skipping cancelled command: " + command);
+            return;
+        }
+
         switch (command.getHeader()) {
             case Header.MSG_A_EXIT:
             {
@@ -231,13 +447,10 @@ public class RemoteManager extends Thread {
                 break;
             }
             case Header.MSG_A_LIST_DEVICE_TYPES:
-            {
-                listDeviceTypes();
-                break;
-            }
             case Header.MSG_A_LIST_DEVICES:
+            case Header.MSG_A_LIST_USERS:
             {
-                listDevices(command.getStringData());
+                request(command.setCallback(responseCallback), 5000);
                 break;
             }
             case Header.MSG_A_SEND_COMMAND:
@@ -246,25 +459,19 @@ public class RemoteManager extends Thread {
                 break;
             }
             case Header.MSG_A_RENAME_DEVICE:
+            case Header.MSG_A_LOAD_TYPE_IMAGE:
             {
                 handler.send(command.getHeader(), command.getStringData());
                 break;
             }
             case Header.MSG_A_COUNT_HISTORY:
             case Header.MSG_A_LIST_HISTORY:
+            case Header.MSG_A_QUERY_HISTORY:
             {
-                handler.send(command.getHeader(), command.getStringData());
-
-                Packet response = handler.poll(command.getHeader(), 5000);
-                command.setResponse(response);
-
-                break;
-            }
-            case Header.MSG_A_LIST_USERS:
-            {
-                listUsers();
+                request(command, 5000);
                 break;
             }
+            case Header.MSG_A_SUBSCRIBE_HISTORY:
             case Header.MSG_A_USER_CREATE:
             case Header.MSG_A_USER_EDIT:
             case Header.MSG_A_USER_DELETE:
@@ -281,51 +488,81 @@ public class RemoteManager extends Thread {
     /** Sends an exit message to the remote server. */
     private void logoff() {
         handler.send(Header.MSG_A_EXIT);
+        handler.flush();
     }
 
+    /** Callback processing the responses of the commands sent by the manager. */
+    private final Command.ResponseCallback responseCallback = new Command.ResponseCallback() {
+        @Override
+        public void onResponse(Command command, Packet response) {
+            try {
+                switch (command.getHeader()) {
+                    case Header.MSG_A_LIST_DEVICE_TYPES:
+                        onDeviceTypesListed(response);
+                        break;
+                    case Header.MSG_A_LIST_DEVICES:
+                        String typeFilter = command.getStringData();
+                        onDevicesListed(response, !typeFilter.isEmpty() ? Integer.valueOf(typeFilter) : null);
+                        break;
+                    case Header.MSG_A_LIST_USERS:
+                        onUsersListed(response);
+                        break;
+                    default: break;
+                }
+            } catch(Exception ex) {
+                Log.e(LOG_TAG, "Failed to process the response of " + command, ex);
+            }
+        }
+    };
+
     /* Implementations of protocol messages. */
 
     public void requestDeviceTypeList() {
         queue.offer(new Command(Header.MSG_A_LIST_DEVICE_TYPES));
     }
 
-    private void listDeviceTypes() {
-        handler.send(Header.MSG_A_LIST_DEVICE_TYPES);
+    private void onDeviceTypesListed(Packet response) {
+        String error = null;
 
-        BroadcastHelper helper = new BroadcastHelper(Intents.ACTION_DEVICE_TYPES_LISTED);
+        long begin = statistics.begin();
 
         try {
-            Packet response = handler.poll(Header.MSG_A_LIST_DEVICE_TYPES, 5000);
-            if(response != null) {
-                String data = response.getData();
-                if(data.matches("\\[.*\\]")) {
-                    data = data.substring(1, data.length() - 1);
+            if(response != null && response.isBinary()) {
+                BinaryReader reader = new BinaryReader(response.getBytes());
 
-                    int offset = 0;
-                    while(offset < data.length()) {
-                        int re = EntityType.deserialize(data, offset);
-                        offset += re;
+                int count = reader.readVarint();
+                for(int idx = 0; idx < count; idx++) {
+                    EntityType.deserialize(reader);
+                }
+            } else if(response != null) {
+                String data = response.getData();
+                if(isList(data)) {
+                    FieldCursor cursor = new FieldCursor(data, 1, data.length() - 1);
+                    while(cursor.hasRemaining()) {
+                        EntityType.deserialize(cursor);
                     }
                 } else {
-                    helper.addParameter(Intents.EXTRA_ERROR, remoteService.getResources().getString(R.string.error_invalid_response));
+                    error = remoteService.getResources().getString(R.string.error_invalid_response);
                 }
             } else {
-                helper.addParameter(Intents.EXTRA_ERROR, remoteService.getResources().getString(R.string.error_list_device_types));
+                error = remoteService.getResources().getString(R.string.error_list_device_types);
             }
         } catch(Exception ex) {
-            helper.addParameter(Intents.EXTRA_ERROR, remoteService.getResources().getString(R.string.error_list_device_types) + " | " + ex);
+            error = remoteService.getResources().getString(R.string.error_list_device_types) + " | " + ex;
         }
 
-        helper.send(remoteService);
+        if(response != null) {
+            statistics.end("parse.types", begin, response.getLength(), EntityType.list().size());
+        }
 
-        for(final EntityType et : EntityType.list()) {
-            if(et.getImageFilename() != null) {
-                executor.execute(new Runnable() {
-                    @Override public void run() {
-                        loadImage(et);
-                    }
-                });
-            }
+        if(error == null) {
+            snapshot.saveTypes(EntityType.list());
+        }
+
+        eventBus.post(new Events.DeviceTypesListed(error));
+
+        for(EntityType et : EntityType.list()) {
+            imageLoader.load(et);
         }
     }
 
@@ -334,40 +571,59 @@ public class RemoteManager extends Thread {
         queue.offer(new Command(Header.MSG_A_LIST_DEVICES, parameter));
     }
 
-    private void listDevices(String parameters) {
-        handler.send(Header.MSG_A_LIST_DEVICES, parameters);
+    private void onDevicesListed(Packet response, Integer typeFilter) {
+        Entity[] listed = null;
+        String error = null;
 
-        BroadcastHelper helper = new BroadcastHelper(Intents.ACTION_DEVICE_LIST);
+        long begin = statistics.begin();
+        int parsed = 0;
 
         try {
-            Packet response = handler.poll(Header.MSG_A_LIST_DEVICES, 5000);
-            if(response != null) {
-                String data = response.getData();
-                if(data.matches("\\[.*\\]")) {
-                    data = data.substring(1, data.length() - 1);
+            if(response != null && response.isBinary()) {
+                BinaryReader reader = new BinaryReader(response.getBytes());
 
-                    List<Entity> entities = new LinkedList<>();
-                    Entity[] eOuput = new Entity[1];
+                int count = reader.readVarint();
+                listed = new Entity[count];
+                for(int idx = 0; idx < count; idx++) {
+                    listed[idx] = Entity.deserialize(reader);
+                }
+                parsed = listed.length;
+            } else if(response != null) {
+                String data = response.getData();
+                if(isList(data)) {
+                    List<Entity> entities = new ArrayList<>();
 
-                    int offset = 0;
-                    while(offset < data.length()) {
-                        int re = Entity.deserialize(data, offset, eOuput);
-                        entities.add(eOuput[0]);
-                        offset += re;
+                    FieldCursor cursor = new FieldCursor(data, 1, data.length() - 1);
+                    while(cursor.hasRemaining()) {
+                        entities.add(Entity.deserialize(cursor));
                     }
+                    parsed = entities.size();
 
-                    helper.addParameter(Intents.EXTRA_DEVICE_LIST_ENTITIES, entities.toArray(new Entity[0]));
+                    listed = entities.toArray(new Entity[entities.size()]);
                 } else {
-                    helper.addParameter(Intents.EXTRA_ERROR, remoteService.getResources().getString(R.string.error_invalid_response));
+                    error = remoteService.getResources().getString(R.string.error_invalid_response);
                 }
             } else {
-                helper.addParameter(Intents.EXTRA_ERROR, remoteService.getResources().getString(R.string.error_list_devices));
+                error = remoteService.getResources().getString(R.string.error_list_devices);
             }
         } catch(Exception ex) {
-            helper.addParameter(Intents.EXTRA_ERROR, remoteService.getResources().getString(R.string.error_list_devices));
+            error = remoteService.getResources().getString(R.string.error_list_devices);
+        }
+
+        if(response != null) {
+            statistics.end("parse.devices", begin, response.getLength(), parsed);
+        }
+
+        if(error == null) {
+            stateChangeDispatcher.flush();
+            entityStore.replaceAll(listed, typeFilter);
+
+            snapshot.saveEntities(entityStore.snapshot(null));
+        } else {
+            listed = null;
         }
 
-        helper.send(remoteService);
+        eventBus.post(new Events.DevicesListed(listed, typeFilter, error));
     }
 
     public void sendCommand(String entityId, int commandId, String parameter) {
@@ -408,6 +664,14 @@ public class RemoteManager extends Thread {
     }
 
     public EntityHistory[] listHistory(Long tsFrom, Long tsTo, String entityId, int limit, int offset) {
+        return awaitHistory(requestHistory(tsFrom, tsTo, entityId, limit, offset), limit);
+    }
+
+    /**
+     * Enqueues a history request without waiting for its response
+     * (the returned command can be cancelled until it is sent).
+     */
+    public Command requestHistory(Long tsFrom, Long tsTo, String entityId, int limit, int offset) {
         StringBuilder parameterBuilder = new StringBuilder();
         if(tsFrom != null) parameterBuilder.append(tsFrom);
         parameterBuilder.append(";");
@@ -422,47 +686,266 @@ public class RemoteManager extends Thread {
         Command command = new Command(Header.MSG_A_LIST_HISTORY, parameterBuilder.toString());
 
         queue.offer(command);
+        return command;
+    }
+
+    /**
+     * Enqueues a keyset history request continuing after the given entry
+     * (the server seeks to its timestamp and entity identifier instead of skipping 'offset' entries,
+     * so the cost does not grow with the depth and inserted entries do not shift the pages).
+     * The offset is used instead if the server rejected a keyset request on the current connection.
+     */
+    public Command requestHistoryAfter(Long tsFrom, Long tsTo, String entityId, int limit, int offset, EntityHistory after) {
+        if(!keysetHistory) {
+            return requestHistory(tsFrom, tsTo, entityId, limit, offset);
+        }
+
+        StringBuilder parameterBuilder = new StringBuilder();
+        if(tsFrom != null) parameterBuilder.append(tsFrom);
+        parameterBuilder.append(";");
+        if(tsTo != null) parameterBuilder.append(tsTo);
+        parameterBuilder.append(";");
+        if(entityId != null) parameterBuilder.append(entityId);
+        parameterBuilder.append(";");
+        parameterBuilder.append(limit);
+        parameterBuilder.append(";"); // empty offset marks the keyset request
+        parameterBuilder.append(";");
+        parameterBuilder.append(after.getTimestamp());
+        parameterBuilder.append(";");
+        parameterBuilder.append(after.getEntityId());
+
+        Command command = new Command(Header.MSG_A_LIST_HISTORY, parameterBuilder.toString());
+        if(!keysetConfirmed) {
+            keysetProbe = command;
+        }
+
+        queue.offer(command);
+        return command;
+    }
+
+    /**
+     * Waits for the response of a history request enqueued by
+     * {@link #requestHistory(Long, Long, String, int, int)} and parses it.
+     * @return The received entries or null if no response was received or the request was cancelled
+     */
+    public EntityHistory[] awaitHistory(Command command, int limit) {
         Packet packet = null;
 
         try {
             packet = command.waitForResponse(7500);
         } catch(InterruptedException iex) { /* NO-OP */ }
 
-        if(packet != null) {
+        if(packet != null && !keysetConfirmed && isKeysetRequest(command)) {
+            keysetConfirmed = true;
+            keysetProbe = null;
+            combinedHistory = true;
+            combinedConfirmed = false;
+            combinedProbe = null;
+        }
+
+        return packet != null ? parseHistory(packet, limit, "parse.history") : null;
+    }
+
+    /** Parses a list of history entries (the response of a history request or the entries pushed by the server). */
+    private EntityHistory[] parseHistory(Packet packet, int limit, String statisticsName) {
+        long begin = statistics.begin();
+
+        if(packet.isBinary()) {
+            BinaryReader reader = new BinaryReader(packet.getBytes());
+
+            int count = reader.readVarint();
+            EntityHistory[] items = new EntityHistory[count];
+            for(int idx = 0; idx < count; idx++) {
+                items[idx] = EntityHistory.deserialize(reader);
+            }
+
+            statistics.end(statisticsName, begin, packet.getLength(), items.length);
+            return items;
+        } else {
             String data = packet.getData();
 
             ArrayList<EntityHistory> items = new ArrayList<>(limit);
-            EntityHistory[] ehOutput = new EntityHistory[1];
 
-            int start = 0;
-            while(start + 1 < data.length()) {
-                if(data.charAt(start) == '#') {
-                    start += EntityHistory.deserialize(data, start + 1, ehOutput);
-                    items.add(ehOutput[0]);
-                }
+            FieldCursor cursor = new FieldCursor(data, 0);
+            cursor.skip('#');
+            while(cursor.hasRemaining()) {
+                items.add(EntityHistory.deserialize(cursor));
             }
 
-            return items.toArray(new EntityHistory[0]);
+            statistics.end(statisticsName, begin, packet.getLength(), items.size());
+            return items.toArray(new EntityHistory[items.size()]);
         }
+    }
 
-        return null;
+    /**
+     * Subscribes to (or unsubscribes from) the history entries recorded by the server from now on,
+     * depending on whether there are listeners of {@link Events.HistoryAppended} events on the bus.
+     * Should be called after subscribing or unsubscribing a listener.
+     * The server pushes the new entries as they are recorded, so the listeners
+     * do not have to query the history again to find out about them.
+     */
+    public void updateHistorySubscription() {
+        boolean subscribed = eventBus.hasSubscribers(Events.HistoryAppended.class);
+        queue.offer(new Command(Header.MSG_A_SUBSCRIBE_HISTORY, subscribed ? "1" : "0"));
+    }
+
+    /**
+     * Starts exporting the history entries matching the filter to a gzip compressed CSV file
+     * (the progress is posted on the event bus).
+     * @return The started export or null if an export is already running
+     */
+    public HistoryExporter exportHistory(Long tsFrom, Long tsTo, String entityId, File file) {
+        synchronized (RemoteManager.class) {
+            if(!enabled || (exporter != null && exporter.isAlive())) {
+                return null;
+            }
+
+            exporter = new HistoryExporter(this, eventBus, remoteService.getResources(), statistics,
+                    tsFrom, tsTo, entityId, file);
+            exporter.start();
+            return exporter;
+        }
+    }
+
+    /**
+     * Counts the history entries matching the filter (in total and by day) and lists the first page of them
+     * with a single request (instead of a count and a list request waiting for each other).
+     * The days are counted in the current time zone of the device.
+     * @return The overview or null if no valid response was received (the entries should be counted and listed separately)
+     */
+    public HistoryOverview queryHistory(Long tsFrom, Long tsTo, String entityId, int limit) {
+        if(!combinedHistory) {
+            return null;
+        }
+
+        long zoneOffset = TimeZone.getDefault().getOffset(System.currentTimeMillis());
+
+        StringBuilder parameterBuilder = new StringBuilder();
+        if(tsFrom != null) parameterBuilder.append(tsFrom);
+        parameterBuilder.append(";");
+        if(tsTo != null) parameterBuilder.append(tsTo);
+        parameterBuilder.append(";");
+        if(entityId != null) parameterBuilder.append(entityId);
+        parameterBuilder.append(";");
+        parameterBuilder.append(limit);
+        parameterBuilder.append(";");
+        parameterBuilder.append(zoneOffset / 60000L); // in minutes
+
+        Command command = new Command(Header.MSG_A_QUERY_HISTORY, parameterBuilder.toString());
+        if(!combinedConfirmed) {
+            combinedProbe = command;
+        }
+
+        queue.offer(command);
+        Packet packet = null;
+
+        try {
+            packet = command.waitForResponse(7500);
+        } catch(InterruptedException iex) { /* NO-OP */ }
+
+        if(packet == null) {
+            return null; // dropped from the queue, lost or rejected (only a rejection disables the combined query)
+        }
+
+        combinedConfirmed = true;
+        combinedProbe = null;
+
+        long begin = statistics.begin();
+
+        try {
+            HistoryOverview overview = packet.isBinary() ?
+                    HistoryOverview.deserialize(new BinaryReader(packet.getBytes()), zoneOffset) :
+                    HistoryOverview.deserialize(packet.getData(), zoneOffset, limit);
+
+            statistics.end("parse.history.overview", begin, packet.getLength(), overview.getEntries().length);
+            return overview;
+        } catch(Exception ex) {
+            Log.w(LOG_TAG, "Invalid combined history response, counting and listing separately instead", ex);
+            combinedHistory = false;
+            return null;
+        }
+    }
+
+    /**
+     * Counts the history entries matching the filter (in total and by day) and lists the first page of them
+     * from the local history store.
+     * If the interval is not covered by the store, but only the entries since the last synchronization
+     * are missing, the store is synchronized first (the larger gaps are synchronized in the background).
+     * @return The overview or null if the interval has to be queried from the server
+     */
+    public HistoryOverview queryLocalHistory(Long tsFrom, Long tsTo, String entityId, int limit) {
+        HistoryStore store = historyStore;
+        if(store == null) {
+            return null;
+        }
+
+        if(!store.covers(tsFrom, tsTo)) {
+            if(!connected) {
+                return null;
+            } else if(!store.canSyncInForeground()) {
+                startHistorySync();
+                return null;
+            } else if(!store.synchronize(this) || !store.covers(tsFrom, tsTo)) {
+                return null;
+            }
+        }
+
+        long begin = statistics.begin();
+        HistoryOverview overview = store.query(tsFrom, tsTo, entityId, limit,
+                TimeZone.getDefault().getOffset(System.currentTimeMillis()));
+        statistics.end("local.history.query", begin, 0, overview.getEntries().length);
+        return overview;
+    }
+
+    /**
+     * Lists the history entries matching the filter from the local history store
+     * (after {@link #queryLocalHistory(Long, Long, String, int)} reported the interval as covered).
+     * @return The entries or null if the store is not available
+     */
+    public EntityHistory[] listLocalHistory(Long tsFrom, Long tsTo, String entityId, int limit, int offset) {
+        HistoryStore store = historyStore;
+        if(store == null) {
+            return null;
+        }
+
+        long begin = statistics.begin();
+        EntityHistory[] items = store.list(tsFrom, tsTo, entityId, limit, offset);
+        statistics.end("local.history.list", begin, 0, items.length);
+        return items;
+    }
+
+    /** Synchronizes the history store in the background (unless a synchronization is running already). */
+    private void startHistorySync() {
+        final HistoryStore store = historyStore;
+        if(store == null) {
+            return;
+        }
+
+        Thread thread = new Thread("HistorySync") {
+            @Override
+            public void run() {
+                store.synchronize(RemoteManager.this);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
     }
 
     public void requestUserList() {
         queue.offer(new Command(Header.MSG_A_LIST_USERS));
     }
 
-    private void listUsers() {
-        handler.send(Header.MSG_A_LIST_USERS);
-
-        BroadcastHelper helper = new BroadcastHelper(Intents.ACTION_USER_LIST);
+    private void onUsersListed(Packet packet) {
+        User[] users = null;
+        String error = null;
 
-        Packet packet = handler.poll(Header.MSG_A_LIST_USERS, 5000);
         if(packet != null) {
+            long begin = statistics.begin();
+
             String data = packet.getData();
             String[] dataArray = data.split(";");
 
-            User[] users = new User[dataArray.length];
+            users = new User[dataArray.length];
 
             int index = 0;
             for(String udata : dataArray) {
@@ -476,10 +959,12 @@ public class RemoteManager extends Thread {
                 users[index++] = user;
             }
 
-            helper.addParameter(Intents.EXTRA_USER_LIST, users);
+            statistics.end("parse.users", begin, packet.getLength(), users.length);
+        } else {
+            error = remoteService.getResources().getString(R.string.error_list_users);
         }
 
-        helper.send(remoteService);
+        eventBus.post(new Events.UsersListed(users, error));
     }
 
     public void requestCreateUser(String username, String passwordHash) {
@@ -502,90 +987,92 @@ public class RemoteManager extends Thread {
         switch (packet.getHeader()) {
             case Header.MSG_A_ERROR:
             {
-                new BroadcastHelper(Intents.ACTION_CALLBACK).addParameter(Intents.EXTRA_ERROR, packet.getData()).send(remoteService);
+                onServerError();
+                eventBus.post(new Events.ServerError(packet.getData()));
                 break;
             }
             case Header.MSG_A_USERS_CHANGED:
             {
-                new BroadcastHelper(Intents.ACTION_USERS_CHANGED).send(remoteService);
+                eventBus.post(new Events.UsersChanged());
+                break;
+            }
+            case Header.MSG_A_LOAD_TYPE_IMAGE:
+            {
+                imageLoader.onResponse(packet);
                 break;
             }
             case Header.MSG_A_STATE_CHANGED:
             {
-                BroadcastHelper helper = new BroadcastHelper(Intents.ACTION_DEVICE_STATE_CHANGED);
+                long begin = statistics.begin();
 
-                String data = packet.getData();
+                String error = null;
                 try {
-                    String[] parameters = data.split(";");
-                    if(parameters != null && parameters.length > 0) {
-                        String eId = parameters[0];
-                        Entity[] eOutput = new Entity[1];
-                        Entity.deserialize(data, 0, eOutput);
-                        helper.addParameter(Intents.EXTRA_DEVICE_STATE, eOutput[0]);
+                    Entity changed = null;
+                    if(packet.isBinary()) {
+                        changed = Entity.deserialize(new BinaryReader(packet.getBytes()));
+                    } else if(!packet.getData().isEmpty()) {
+                        changed = Entity.deserialize(new FieldCursor(packet.getData(), 0));
+                    }
+
+                    if(changed != null) {
+                        statistics.end("parse.state", begin, packet.getLength(), 1);
+                        stateChangeDispatcher.offer(changed);
                     } else {
-                        helper.addParameter(Intents.EXTRA_ERROR, remoteService.getResources().getString(R.string.error_parse_changed_entity) + ": " + data);
+                        error = remoteService.getResources().getString(R.string.error_parse_changed_entity) + ": " + packet.getData();
                     }
                 } catch (Exception ex) {
-                    helper.addParameter(Intents.EXTRA_ERROR, remoteService.getResources().getString(R.string.error_parse_changed_entity) + ": " + data + " | " + ex);
+                    error = remoteService.getResources().getString(R.string.error_parse_changed_entity) + " | " + ex;
+                }
+
+                if(error != null) {
+                    eventBus.post(new Events.StatesChanged(null, error));
+                }
+
+                break;
+            }
+            case Header.MSG_A_HISTORY_APPENDED:
+            {
+                try {
+                    eventBus.post(new Events.HistoryAppended(parseHistory(packet, 1, "parse.history.appended"), null));
+                } catch (Exception ex) {
+                    String error = remoteService.getResources().getString(R.string.error_list_history) + " | " + ex;
+                    eventBus.post(new Events.HistoryAppended(null, error));
                 }
 
-                helper.send(remoteService);
                 break;
             }
             default: break;
         }
     }
 
-    /** Loads the image of the given entity type asynchronously (from a background thread). */
-    private void loadImage(EntityType type) {
-        if(type.isImageSet()) return;
-
-        handler.send(Header.MSG_A_LOAD_TYPE_IMAGE, type.getImageFilename());
-
-        Packet response = handler.poll(Header.MSG_A_LOAD_TYPE_IMAGE, 5000);
-        if(response != null) {
-            byte[] decoded = Base64.decode(response.getData(), Base64.DEFAULT);
-            BitmapDrawable drawable = new BitmapDrawable(remoteService.getResources(), BitmapFactory.decodeByteArray(decoded, 0, decoded.length));
-            type.setImage(drawable);
-        }
-    }
-
-    /** Helper class to send broadcasts to BroadcastReceivers. */
-    private class BroadcastHelper {
-
-        /** The intent object to send. */
-        private final Intent intent;
-        /** The parameters of the intent. */
-        private final Bundle bundle = new Bundle();
-
-        /**
-         * Private constructor.
-         * @param action The action of the intent in broadcast
-         */
-        private BroadcastHelper(String action) {
-            this.intent = new Intent(action);
-        }
-
-        /** Adds a parameter to the intent's Bundle. */
-        private BroadcastHelper addParameter(String name, Object value) {
-            if(value instanceof Integer) {
-                bundle.putInt(name, (Integer) value);
-            } else if(value instanceof String) {
-                bundle.putString(name, value != null ? value.toString() : null);
-            } else if(value instanceof Parcelable) {
-                bundle.putParcelable(name, (Parcelable) value);
-            } else if(value instanceof Parcelable[]) {
-                bundle.putParcelableArray(name, (Parcelable[]) value);
-            }
+    /** Returns true if the given history request continues after a key (its offset is empty). */
+    private static boolean isKeysetRequest(Command command) {
+        String[] parameters = command.getStringData().split(";", -1);
+        return parameters.length > 6 && parameters[4].isEmpty();
+    }
 
-            return this;
+    /**
+     * Falls back from the optional requests the server rejected:
+     * the server answers the requests it does not support with an error message
+     * (which is not correlated with the request, so only the unconfirmed probes are affected).
+     */
+    private void onServerError() {
+        Command probe = keysetProbe;
+        if(keysetHistory && !keysetConfirmed && probe != null && probe.isAwaitingResponse()) {
+            Log.w(LOG_TAG, "Keyset history request was rejected, using offsets instead");
+            keysetHistory = false;
         }
 
-        /** Sends the broadcast intent. */
-        private void send(Context context) {
-            this.intent.putExtras(this.bundle);
-            LocalBroadcastManager.getInstance(context).sendBroadcast(this.intent);
+        probe = combinedProbe;
+        if(combinedHistory && !combinedConfirmed && probe != null && probe.isAwaitingResponse()) {
+            Log.w(LOG_TAG, "Combined history query was rejected, counting and listing separately instead");
+            combinedHistory = false;
         }
     }
 
+    /** Returns true if the given response data is a list enclosed in square brackets. */
+    private static boolean isList(String data) {
+        return data.length() > 1 && data.charAt(0) == '[' && data.charAt(data.length() - 1) == ']';
+    }
+
 }
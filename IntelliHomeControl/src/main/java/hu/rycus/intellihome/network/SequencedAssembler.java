@@ -0,0 +1,268 @@
+package hu.rycus.intellihome.network;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reassembles messages received in the sequenced UDP framing mode.
+ * Every datagram of this mode carries a sequence header after the header and flags bytes:
+ * the message ID, the index of the fragment and the number of fragments (two bytes each).
+ * Fragments can arrive in any order, duplicates are ignored and the fragments still missing
+ * after a quiet period are requested again from the server (a limited number of times).
+ * The remaining fragments of a dropped (oversized or timed out) message are ignored as well.
+ *
+ * Created by Viktor Adam on 1/20/14.
+ */
+class SequencedAssembler {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|Seq";
+
+    /** The length of the sequence header (message ID, fragment index and fragment count). */
+    static final int SEQUENCE_HEADER_LENGTH = 6;
+
+    /** The number of recently finished (completed or dropped) message IDs remembered to drop their late fragments. */
+    private static final int FINISHED_HISTORY = 32;
+
+    /** Incomplete messages by message ID. */
+    private final Map<Integer, Message> incompleteMessages = new HashMap<>();
+
+    /** Ring buffer of recently finished message IDs. */
+    private final int[] finishedIds = new int[FINISHED_HISTORY];
+    /** The next position to write in the ring buffer of finished message IDs. */
+    private int finishedPosition = 0;
+
+    /** The maximum size of a message in bytes. */
+    private final int maxMessageSize;
+    /** The quiet time in milliseconds after missing fragments are requested again. */
+    private final long gapTimeout;
+    /** The time in milliseconds after an incomplete message without new fragments is dropped. */
+    private final long messageTimeout;
+    /** The maximum number of retransmission requests for a message. */
+    private final int maxRetransmits;
+
+    /** The number of messages completed. */
+    private long completedCount = 0L;
+    /** The number of fragments received out of order. */
+    private long reorderedCount = 0L;
+    /** The number of duplicate fragments dropped. */
+    private long duplicateCount = 0L;
+    /** The number of retransmission requests sent. */
+    private long retransmitCount = 0L;
+    /** The number of incomplete messages dropped. */
+    private long droppedCount = 0L;
+
+    /**
+     * Package-private constructor.
+     * @param maxMessageSize The maximum size of a message in bytes
+     * @param gapTimeout The quiet time in milliseconds after missing fragments are requested again
+     * @param messageTimeout The time in milliseconds after an incomplete message without new fragments is dropped
+     * @param maxRetransmits The maximum number of retransmission requests for a message
+     */
+    SequencedAssembler(int maxMessageSize, long gapTimeout, long messageTimeout, int maxRetransmits) {
+        this.maxMessageSize = maxMessageSize;
+        this.gapTimeout = gapTimeout;
+        this.messageTimeout = messageTimeout;
+        this.maxRetransmits = maxRetransmits;
+
+        Arrays.fill(finishedIds, -1);
+    }
+
+    /**
+     * Adds a received fragment to its message.
+     * @param header The header of the received datagram
+     * @param buffer The buffer containing the sequence header and the fragment
+     * @param offset The offset of the sequence header in the buffer
+     * @param length The length of the sequence header and the fragment
+     * @return The complete packet or null if more fragments are expected
+     */
+    Packet append(int header, byte[] buffer, int offset, int length) {
+        if(length < SEQUENCE_HEADER_LENGTH) {
+            Log.w(LOG_TAG, "Dropping sequenced datagram without sequence header (H" + Integer.toHexString(header) + ")");
+            return null;
+        }
+
+        int messageId = readShort(buffer, offset);
+        int index     = readShort(buffer, offset + 2);
+        int count     = readShort(buffer, offset + 4);
+
+        int dataOffset = offset + SEQUENCE_HEADER_LENGTH;
+        int dataLength = length - SEQUENCE_HEADER_LENGTH;
+
+        if(count == 0 || index >= count) {
+            Log.w(LOG_TAG, "Dropping invalid fragment " + index + "/" + count + " of message " + messageId);
+            return null;
+        }
+
+        if(count == 1) {
+            byte[] contents = dataLength > 0 ? Arrays.copyOfRange(buffer, dataOffset, dataOffset + dataLength) : Packet.EMPTY;
+            return new Packet(header, contents);
+        }
+
+        Message message = incompleteMessages.get(messageId);
+        if(message == null || message.header != header || message.fragments.length != count) {
+            if(message == null && isRecentlyFinished(messageId)) {
+                duplicateCount++;
+                return null;
+            }
+
+            message = new Message(header, count);
+            incompleteMessages.put(messageId, message);
+        }
+
+        if(message.fragments[index] != null) {
+            duplicateCount++;
+            return null;
+        }
+
+        if(index != message.highestIndex + 1) {
+            reorderedCount++;
+        }
+
+        message.fragments[index] = Arrays.copyOfRange(buffer, dataOffset, dataOffset + dataLength);
+        message.received++;
+        message.size += dataLength;
+        message.highestIndex = Math.max(message.highestIndex, index);
+        message.lastUpdate = System.currentTimeMillis();
+
+        if(message.size > maxMessageSize) {
+            Log.w(LOG_TAG, "Dropping oversized message " + messageId + " (H" + Integer.toHexString(header) + "), length: " + message.size);
+            droppedCount++;
+            incompleteMessages.remove(messageId);
+            rememberFinished(messageId);
+            return null;
+        }
+
+        if(message.received == count) {
+            byte[] contents = new byte[message.size];
+            int position = 0;
+            for(byte[] fragment : message.fragments) {
+                System.arraycopy(fragment, 0, contents, position, fragment.length);
+                position += fragment.length;
+            }
+
+            incompleteMessages.remove(messageId);
+            rememberFinished(messageId);
+            completedCount++;
+
+            return new Packet(header, contents);
+        }
+
+        return null;
+    }
+
+    /**
+     * Requests the missing fragments of the messages which did not receive new fragments
+     * for the gap timeout, and drops the ones which ran out of retransmission attempts.
+     * @param now The current time in milliseconds
+     * @param listener The object to send the retransmission requests with
+     */
+    void checkMissing(long now, RetransmitListener listener) {
+        for(Iterator<Map.Entry<Integer, Message>> it = incompleteMessages.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Message> entry = it.next();
+            int messageId = entry.getKey();
+            Message message = entry.getValue();
+
+            long quiet = now - Math.max(message.lastUpdate, message.lastRequest);
+
+            if(now - message.lastUpdate >= messageTimeout || (message.retransmits >= maxRetransmits && quiet >= gapTimeout)) {
+                Log.w(LOG_TAG, "Dropping incomplete message " + messageId + " (H" + Integer.toHexString(message.header) + "), " +
+                        "received " + message.received + "/" + message.fragments.length + " fragments");
+                droppedCount++;
+                it.remove();
+                rememberFinished(messageId);
+            } else if(quiet >= gapTimeout) {
+                int[] missing = new int[message.fragments.length - message.received];
+                int position = 0;
+                for(int index = 0; index < message.fragments.length; index++) {
+                    if(message.fragments[index] == null) {
+                        missing[position++] = index;
+                    }
+                }
+
+                listener.requestRetransmit(messageId, missing);
+
+                message.retransmits++;
+                message.lastRequest = now;
+                retransmitCount++;
+            }
+        }
+    }
+
+    /** Returns true if there are incomplete messages waiting for fragments. */
+    boolean hasPending() { return !incompleteMessages.isEmpty(); }
+
+    /** Returns true if the message with the given ID was completed or dropped recently. */
+    private boolean isRecentlyFinished(int messageId) {
+        for(int id : finishedIds) {
+            if(id == messageId) return true;
+        }
+        return false;
+    }
+
+    /** Remembers the ID of a completed or dropped message, so its remaining fragments are ignored. */
+    private void rememberFinished(int messageId) {
+        finishedIds[finishedPosition] = messageId;
+        finishedPosition = (finishedPosition + 1) % finishedIds.length;
+    }
+
+    /** Reads an unsigned, big-endian two byte value. */
+    private static int readShort(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " completed: " + completedCount + ", reordered: " + reorderedCount +
+                ", duplicates: " + duplicateCount + ", retransmit requests: " + retransmitCount + ", dropped: " + droppedCount;
+    }
+
+    /** Listener interface to send retransmission requests. */
+    interface RetransmitListener {
+
+        /**
+         * Requests the missing fragments of a message from the server.
+         * @param messageId The ID of the incomplete message
+         * @param missing The indexes of the missing fragments
+         */
+        void requestRetransmit(int messageId, int[] missing);
+
+    }
+
+    /** An incomplete message of the sequenced mode. */
+    private static class Message {
+
+        /** The header of the message. */
+        private final int header;
+        /** The received fragments by index (null if missing). */
+        private final byte[][] fragments;
+        /** The number of received fragments. */
+        private int received = 0;
+        /** The number of received bytes. */
+        private int size = 0;
+        /** The highest fragment index received. */
+        private int highestIndex = -1;
+        /** The time when the last fragment was received. */
+        private long lastUpdate = System.currentTimeMillis();
+        /** The time when the last retransmission request was sent. */
+        private long lastRequest = 0L;
+        /** The number of retransmission requests sent. */
+        private int retransmits = 0;
+
+        /**
+         * Private constructor.
+         * @param header The header of the message
+         * @param count The number of fragments
+         */
+        private Message(int header, int count) {
+            this.header = header;
+            this.fragments = new byte[count][];
+        }
+
+    }
+
+}
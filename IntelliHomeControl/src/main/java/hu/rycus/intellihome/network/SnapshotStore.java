@@ -0,0 +1,179 @@
+package hu.rycus.intellihome.network;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import hu.rycus.intellihome.model.Entity;
+import hu.rycus.intellihome.model.EntityType;
+import hu.rycus.intellihome.util.BinaryReader;
+import hu.rycus.intellihome.util.BinaryWriter;
+import hu.rycus.intellihome.util.MD5Util;
+
+/**
+ * On-disk snapshot of the last known entity types, entities and type images
+ * of a server and user combination, so the UI can be rendered before
+ * the connection is established (the network responses replace the restored data later).
+ * The types and entities are stored in the binary wire format,
+ * the images are restored from the {@link ImageCache}.
+ *
+ * Created by Viktor Adam on 1/29/14.
+ */
+class SnapshotStore {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|Snapshot";
+
+    /** The name of the file storing the entity types. */
+    private static final String TYPES_FILE = "types.bin";
+    /** The name of the file storing the entities. */
+    private static final String ENTITIES_FILE = "entities.bin";
+
+    /** The directory of the snapshot. */
+    private final File directory;
+    /** The resources to create the image drawables with. */
+    private final Resources resources;
+    /** The cache of the type images. */
+    private final ImageCache imageCache;
+
+    /**
+     * Package-private constructor.
+     * @param context The context to get the storage directory and resources from
+     * @param server The identifier of the server (network mode, address and port)
+     * @param username The name of the authenticated user
+     */
+    SnapshotStore(Context context, String server, String username) {
+        File root = new File(context.getFilesDir(), "snapshots");
+        this.directory = new File(root, MD5Util.toMD5(server + "|" + username));
+        this.resources = context.getResources();
+        this.imageCache = ImageCache.getInstance(context);
+    }
+
+    /**
+     * Restores the entity types (registering them in the type cache) with their images, then the entities.
+     * @return The restored entities or null if there is no (valid) snapshot
+     */
+    Entity[] restore() {
+        File typesFile = new File(directory, TYPES_FILE);
+        File entitiesFile = new File(directory, ENTITIES_FILE);
+        if(!typesFile.exists() || !entitiesFile.exists()) {
+            return null;
+        }
+
+        try {
+            BinaryReader reader = new BinaryReader(read(typesFile));
+
+            int count = reader.readVarint();
+            for(int idx = 0; idx < count; idx++) {
+                EntityType type = EntityType.deserialize(reader);
+                if(type.getImageFilename() != null && !type.isImageSet()) {
+                    restoreImage(type);
+                }
+            }
+
+            reader = new BinaryReader(read(entitiesFile));
+
+            Entity[] entities = new Entity[reader.readVarint()];
+            for(int idx = 0; idx < entities.length; idx++) {
+                entities[idx] = Entity.deserialize(reader);
+            }
+
+            Log.d(LOG_TAG, "Restored " + count + " types and " + entities.length + " entities");
+            return entities;
+        } catch(Exception ex) {
+            Log.w(LOG_TAG, "Failed to restore the snapshot, discarding it", ex);
+
+            typesFile.delete();
+            entitiesFile.delete();
+            return null;
+        }
+    }
+
+    /** Stores the entity types. */
+    void saveTypes(Collection<EntityType> types) {
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeVarint(types.size());
+        for(EntityType type : types) {
+            type.serialize(writer);
+        }
+
+        write(new File(directory, TYPES_FILE), writer.toByteArray());
+    }
+
+    /** Stores the entities (skipping the ones with unknown type). */
+    void saveEntities(Entity[] entities) {
+        List<Entity> known = new ArrayList<>(entities.length);
+        for(Entity entity : entities) {
+            if(entity.getType() != null) {
+                known.add(entity);
+            }
+        }
+
+        BinaryWriter writer = new BinaryWriter();
+        writer.writeVarint(known.size());
+        for(Entity entity : known) {
+            entity.serialize(writer);
+        }
+
+        write(new File(directory, ENTITIES_FILE), writer.toByteArray());
+    }
+
+    /** Loads the cached image of an entity type. */
+    private void restoreImage(EntityType type) {
+        Bitmap bitmap = imageCache.get(type.getImageFilename());
+        if(bitmap != null) {
+            type.setImage(new BitmapDrawable(resources, bitmap));
+        }
+    }
+
+    /** Reads the contents of a file. */
+    private static byte[] read(File file) throws IOException {
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] data = new byte[(int) file.length()];
+            input.readFully(data);
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+
+    /** Replaces the contents of a file (through a temporary file, so a failed write keeps the previous contents). */
+    private static void write(File file, byte[] data) {
+        File parent = file.getParentFile();
+        if(!parent.exists() && !parent.mkdirs()) {
+            Log.w(LOG_TAG, "Failed to create the snapshot directory " + parent);
+            return;
+        }
+
+        File temporary = new File(parent, file.getName() + ".tmp");
+        try {
+            FileOutputStream output = new FileOutputStream(temporary);
+            try {
+                output.write(data);
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+
+            if(!temporary.renameTo(file)) {
+                throw new IOException("Failed to rename " + temporary + " to " + file);
+            }
+        } catch(IOException ex) {
+            Log.w(LOG_TAG, "Failed to write the snapshot file " + file, ex);
+            temporary.delete();
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package hu.rycus.intellihome.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hu.rycus.intellihome.model.Entity;
+
+/**
+ * Coalesces the state changes received from the server over a frame window
+ * keeping only the latest state of each entity, then applies them to the entity store
+ * and posts a single event for the whole batch.
+ * This way a burst of sensor updates results in one list update on the UI thread instead of one per message.
+ *
+ * Created by Viktor Adam on 1/27/14.
+ */
+class StateChangeDispatcher {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|Dispatch";
+
+    /** The store to apply the state changes to. */
+    private final EntityStore entityStore;
+    /** The bus to post the batches to. */
+    private final EventBus eventBus;
+    /** The length of the frame window in milliseconds (zero to dispatch every change immediately). */
+    private final long window;
+
+    /** The pending state changes by entity identifier. */
+    private final Map<String, Entity> pending = new LinkedHashMap<>();
+    /** True if a dispatch is scheduled for the pending changes. */
+    private boolean scheduled = false;
+
+    /** Handler scheduling the dispatches on the main thread. */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Runnable dispatching the pending changes. */
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Package-private constructor.
+     * @param entityStore The store to apply the state changes to
+     * @param eventBus The bus to post the batches to
+     * @param window The length of the frame window in milliseconds (zero to dispatch every change immediately)
+     */
+    StateChangeDispatcher(EntityStore entityStore, EventBus eventBus, long window) {
+        this.entityStore = entityStore;
+        this.eventBus = eventBus;
+        this.window = window;
+    }
+
+    /**
+     * Queues the new state of an entity, replacing its previous pending state if there is one.
+     * @param changed The entity received in a state change message
+     */
+    void offer(Entity changed) {
+        synchronized (pending) {
+            pending.put(changed.getId(), changed);
+
+            if(window > 0) {
+                if(!scheduled) {
+                    scheduled = true;
+                    handler.postDelayed(dispatchTask, window);
+                }
+
+                return;
+            }
+        }
+
+        flush();
+    }
+
+    /**
+     * Dispatches the pending changes immediately.
+     * Called on the thread of the manager before a full device list is applied,
+     * so older pending changes can not overwrite the newer list.
+     */
+    void flush() {
+        // the batch is applied while holding the lock to keep the order of concurrent flushes
+        synchronized (pending) {
+            if(scheduled) {
+                scheduled = false;
+                handler.removeCallbacks(dispatchTask);
+            }
+
+            if(pending.isEmpty()) {
+                return;
+            }
+
+            Entity[] batch = pending.values().toArray(new Entity[pending.size()]);
+            pending.clear();
+
+            Log.v(LOG_TAG, "Dispatching " + batch.length + " state changes");
+
+            entityStore.applyAll(batch);
+
+            eventBus.post(new Events.StatesChanged(batch, null));
+        }
+    }
+
+    /** Drops the pending changes and cancels the scheduled dispatch (when the manager shuts down). */
+    void close() {
+        synchronized (pending) {
+            pending.clear();
+            scheduled = false;
+            handler.removeCallbacks(dispatchTask);
+        }
+    }
+
+}
@@ -0,0 +1,300 @@
+package hu.rycus.intellihome.network;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+
+/**
+ * TCP/IP based network handler implementation using a non-blocking NIO channel.
+ * Incoming frames are decoded straight from a reusable direct buffer
+ * and the header and contents of outgoing frames are written with a single gathering write.
+ *
+ * Created by Viktor Adam on 1/14/14.
+ */
+public class TCPChannelHandler extends NetworkHandler {
+
+    /** Tag for logcat. */
+    private static final String LOG_TAG = "IntelliHome|NET|NIO";
+
+    /** The length of the frame header (header byte and two bytes of data length). */
+    private static final int FRAME_HEADER_LENGTH = FrameDecoder.FRAME_HEADER_LENGTH;
+    /** The maximum length of the frame contents. */
+    private static final int MAX_DATA_LENGTH = 0xFFFF;
+
+    /** The timeout in milliseconds for connecting and receiving frames. */
+    private static final int TIMEOUT = 10000; // TODO magic number
+
+    /** The channel connected to the server. */
+    private SocketChannel   channel;
+    /** Selector used to wait for incoming data. */
+    private Selector        readSelector;
+    /** Selector used to wait until the channel is writable. */
+    private Selector        writeSelector;
+
+    /** Reusable buffer for incoming data (kept in read mode between frames). */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(FRAME_HEADER_LENGTH + MAX_DATA_LENGTH);
+
+    /** Reusable buffer for the header of outgoing frames. */
+    private final ByteBuffer writeHeader = ByteBuffer.allocateDirect(FRAME_HEADER_LENGTH);
+    /** Reusable buffer array for gathering writes. */
+    private final ByteBuffer[] writeBuffers = new ByteBuffer[2];
+    /** Lock object for outgoing frames. */
+    private final Object writeLock = new Object();
+
+    /** Flag to log connect exceptions. */
+    private boolean verboseConnectException = true;
+
+    /**
+     * Package-private constructor with the creator/owner of the instance.
+     *
+     * @see hu.rycus.intellihome.network.NetworkHandler#NetworkHandler(String, RemoteManager, String, int, String, String, java.util.Set)
+     */
+    protected TCPChannelHandler(RemoteManager manager,
+                                String host, int port, String username, String password,
+                                Set<Integer> asynchHeaders) {
+        super("TCPChannelHandler", manager, host, port, username, password, asynchHeaders);
+    }
+
+    @Override
+    protected boolean initialize() {
+        try {
+            readSelector  = Selector.open();
+            writeSelector = Selector.open();
+            return true;
+        } catch(IOException ex) {
+            Log.e(LOG_TAG, "Failed to open selectors", ex);
+        }
+
+        return false;
+    }
+
+    @Override
+    protected void shutdown() {
+        enabled = false;
+        closeChannel();
+
+        try {
+            if(readSelector != null) readSelector.close();
+            if(writeSelector != null) writeSelector.close();
+        } catch(IOException ex) {
+            Log.e(LOG_TAG, "Failed to close selectors", ex);
+        }
+
+        super.shutdown();
+    }
+
+    /** Closes the current channel if there is one. */
+    private void closeChannel() {
+        if(channel != null) {
+            try {
+                channel.close();
+            } catch(IOException ex) {
+                Log.e(LOG_TAG, "Failed to close TCP channel", ex);
+            }
+        }
+    }
+
+    @Override
+    protected boolean send(int header, byte[] data, int flags) {
+        synchronized (writeLock) {
+            if(channel == null || !channel.isConnected()) {
+                Log.e(LOG_TAG, "No channel for TCP data");
+                return false;
+            }
+
+            try {
+                writeHeader.clear();
+                writeHeader.put((byte) header);
+                writeHeader.put((byte) ((data.length & 0xFF00) >> 8));
+                writeHeader.put((byte) ( data.length & 0x00FF));
+                writeHeader.flip();
+
+                writeBuffers[0] = writeHeader;
+                writeBuffers[1] = ByteBuffer.wrap(data);
+
+                writeFully(writeBuffers, FRAME_HEADER_LENGTH + data.length);
+
+                return true;
+            } catch(Exception ex) {
+                Log.e(LOG_TAG, "Failed to send TCP data", ex);
+            } finally {
+                writeBuffers[1] = null;
+            }
+        }
+
+        return false;
+    }
+
+    /** Writes the given buffers to the channel, waiting for it to become writable if needed. */
+    private void writeFully(ByteBuffer[] buffers, long length) throws IOException {
+        long written = 0L;
+        while(written < length) {
+            long count = channel.write(buffers);
+            if(count > 0) {
+                written += count;
+            } else {
+                SelectionKey key = channel.register(writeSelector, SelectionKey.OP_WRITE);
+                try {
+                    if(writeSelector.select(TIMEOUT) == 0) {
+                        throw new IOException("Timeout while writing to TCP channel");
+                    }
+                    writeSelector.selectedKeys().clear();
+                } finally {
+                    key.cancel();
+                    writeSelector.selectNow(); // deregister the cancelled key
+                }
+            }
+        }
+    }
+
+    /** Returns true, if the connection is created and login succeeded. */
+    private boolean connect() {
+        closeChannel();
+
+        synchronized (writeLock) {
+            channel = null;
+        }
+
+        readBuffer.clear();
+        readBuffer.limit(0);
+
+        try {
+            SocketChannel newChannel = SocketChannel.open();
+            newChannel.socket().connect(new InetSocketAddress(host, port), TIMEOUT);
+            newChannel.socket().setTcpNoDelay(true);
+            newChannel.configureBlocking(false);
+            newChannel.register(readSelector, SelectionKey.OP_READ);
+
+            synchronized (writeLock) {
+                channel = newChannel;
+            }
+
+            verboseConnectException = true;
+
+            return login();
+        } catch (IOException ex) {
+            if(verboseConnectException) {
+                Log.e(LOG_TAG, "Failed to connect to " + host + ":" + port + " (enabled: " + enabled + ")", ex);
+                verboseConnectException = false;
+            } else {
+                Log.e(LOG_TAG, "Failed to connect to " + host + ":" + port + " (enabled: " + enabled + ") | " + ex);
+            }
+        }
+
+        return false;
+    }
+
+    /** Returns true, if successfully authenticates. */
+    private boolean login() {
+        administrator = false;
+
+        send(Header.MSG_A_LOGIN, createLoginData());
+
+        Packet response = readPacket();
+        boolean loggedIn = response != null && response.getHeader() == Header.MSG_A_LOGIN;
+        if(loggedIn) {
+            administrator = response.getData().endsWith("*");
+        }
+        return loggedIn;
+    }
+
+    @Override
+    public void run() {
+        while(enabled) {
+            try {
+                if(connect()) {
+
+                    while(enabled) {
+                        try {
+                            Packet packet = readPacket();
+
+                            if(enabled && packet != null) {
+                                // signal connection OK
+                                manager.setConnected(true);
+
+                                int header = packet.getHeader();
+
+                                Log.d(LOG_TAG, "TCP Packet received (H" + Integer.toHexString(header) + "), length: " + packet.getLength());
+
+                                if(header == Header.MSG_A_ERROR_INVALID_SESSION) {
+                                    Log.e(LOG_TAG, "Invalid session error received");
+                                    // signal connection loss
+                                    manager.setConnected(false);
+                                    break;
+                                }
+
+                                if(asynchHeaders.contains(header)) {
+                                    manager.processAsynchPacket(packet);
+                                } else {
+                                    enqueuePacket(packet);
+                                }
+                            } else {
+                                // we are not connected anymore
+                                manager.setConnected(false);
+
+                                break;
+                            }
+                        } catch(Exception ex) {
+                            Log.e(LOG_TAG, "Failed to process messages on TCP channel" + " (enabled: " + enabled + ")", ex);
+                        }
+                    }
+
+                } else {
+                    // failed to connect
+                    manager.setConnected(false);
+                }
+            } catch(Exception ex) {
+                Log.e(LOG_TAG, "Failed to start connection to " + host + ":" + port + " (enabled: " + enabled + ")", ex);
+            }
+
+            if(enabled) {
+                synchronized (this) {
+                    try {
+                        wait(2500); // TODO magic number
+                    } catch (InterruptedException e) { /* NO-OP */ }
+                }
+            }
+        }
+    }
+
+    /** Reads the next packet from the server or returns null on timeout or error. */
+    private Packet readPacket() {
+        try {
+            while(enabled) {
+                long begin = manager.getStatistics().begin();
+                Packet packet = FrameDecoder.decode(readBuffer);
+                if(packet != null) {
+                    manager.getStatistics().end("tcp.frame", begin, packet.getLength(), 1);
+                    return packet;
+                }
+
+                if(readSelector.select(TIMEOUT) == 0) {
+                    Log.d(LOG_TAG, "Channel timeout");
+                    return null;
+                }
+                readSelector.selectedKeys().clear();
+
+                readBuffer.compact();
+                int read = channel.read(readBuffer);
+                readBuffer.flip();
+
+                if(read < 0) {
+                    throw new IOException("TCP Channel is closed");
+                }
+            }
+        } catch(Exception ex) {
+            if(enabled) {
+                Log.e(LOG_TAG, "Failed to receive TCP packet" + " (enabled: " + enabled + ")", ex);
+            }
+        }
+
+        return null;
+    }
+
+}
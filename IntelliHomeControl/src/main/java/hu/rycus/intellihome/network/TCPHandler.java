@@ -4,7 +4,6 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.Set;
@@ -19,12 +18,17 @@ public class TCPHandler extends NetworkHandler {
     /** Tag for logcat. */
     private static final String LOG_TAG = "IntelliHome|NET|TCP";
 
+    /** The size of the buffer used to coalesce outgoing frames. */
+    private static final int BATCH_SIZE = 8192;
+    /** The maximum time in milliseconds an outgoing frame can wait in the buffer. */
+    private static final long BATCH_DELAY = 20L;
+
     /** The socket object to connect to the server. */
     private Socket          socket;
     /** The input stream of the socket. */
     private InputStream     input;
-    /** The output stream of the socket. */
-    private OutputStream    output;
+    /** The batching writer for the output stream of the socket. */
+    private CoalescingWriter output;
 
     /** Flag to log connect exceptions. */
     private boolean verboseConnectException = true;
@@ -55,6 +59,9 @@ public class TCPHandler extends NetworkHandler {
                 Log.e(LOG_TAG, "Failed to close TCP socket", ex);
             }
         }
+        if(output != null) {
+            Log.i(LOG_TAG, "Output statistics: " + output);
+        }
         super.shutdown();
     }
 
@@ -66,13 +73,7 @@ public class TCPHandler extends NetworkHandler {
         }
 
         try {
-            output.write(header);
-
-            int length = data.length;
-            output.write((length & 0xFF00) >> 8);
-            output.write( length & 0x00FF );
-
-            output.write(data);
+            output.writeFrame(header, data);
 
             return true;
         } catch(Exception ex) {
@@ -82,6 +83,28 @@ public class TCPHandler extends NetworkHandler {
         return false;
     }
 
+    @Override
+    protected void flush() {
+        if(output == null) return;
+
+        try {
+            output.flush();
+        } catch(Exception ex) {
+            Log.e(LOG_TAG, "Failed to flush TCP data", ex);
+        }
+    }
+
+    @Override
+    protected void flushIfDue() {
+        if(output == null) return;
+
+        try {
+            output.flushIfDue(System.currentTimeMillis());
+        } catch(Exception ex) {
+            Log.e(LOG_TAG, "Failed to flush TCP data", ex);
+        }
+    }
+
     /** Returns true, if the connection is created and login succeeded. */
     private boolean connect() {
         if(socket != null) {
@@ -103,7 +126,7 @@ public class TCPHandler extends NetworkHandler {
             verboseConnectException = true;
 
             input  = socket.getInputStream();
-            output = socket.getOutputStream();
+            output = new CoalescingWriter(socket.getOutputStream(), BATCH_SIZE, BATCH_DELAY);
 
             return login();
         } catch (IOException ex) {
@@ -122,7 +145,8 @@ public class TCPHandler extends NetworkHandler {
     private boolean login() {
         administrator = false;
 
-        send(Header.MSG_A_LOGIN, username + ":" + password);
+        send(Header.MSG_A_LOGIN, createLoginData());
+        flush();
 
         TcpPacket response = readPacket();
         boolean loggedIn = response != null && response.getHeader() == Header.MSG_A_LOGIN;
@@ -147,7 +171,6 @@ public class TCPHandler extends NetworkHandler {
                                 manager.setConnected(true);
 
                                 int     header  = tp.getHeader();
-                                String  data    = new String(tp.getData());
 
                                 Log.d(LOG_TAG, "TCP Packet received (H" + Integer.toHexString(header) + "), length: " + tp.getLength());
 
@@ -158,7 +181,7 @@ public class TCPHandler extends NetworkHandler {
                                     break;
                                 }
 
-                                Packet packet = new Packet(header, data);
+                                Packet packet = new Packet(header, tp.getData());
                                 if(asynchHeaders.contains(header)) {
                                     manager.processAsynchPacket(packet);
                                 } else {
@@ -10,8 +10,6 @@ import java.net.NetworkInterface;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -27,39 +25,69 @@ class UDPHandler extends NetworkHandler {
     /** The buffer size used in communication. */
     private static final int bufferSize = 1500;
 
+    /** The maximum size of a multipart message in bytes. */
+    private static final int maxMessageSize = 4 * 1024 * 1024;
+    /** The time in milliseconds after an incomplete multipart message without new fragments is dropped. */
+    private static final long multipartTimeout = 10000L;
+    /** The quiet time in milliseconds after missing fragments of a sequenced message are requested again. */
+    private static final long retransmitTimeout = 250L;
+    /** The maximum number of retransmission requests for a sequenced message. */
+    private static final int maxRetransmits = 3;
+    /** The time in milliseconds without incoming packets after the connection is considered lost. */
+    private static final int receiveTimeout = 20000;
+
     /** The UDP/Multicast socket used for communication. */
     private MulticastSocket socket;
 
+    /** Reusable buffer for incoming datagrams (only used by the receiving thread). */
+    private final byte[] receiveBuffer = new byte[bufferSize];
+    /** Reusable datagram packet for incoming datagrams (only used by the receiving thread). */
+    private final DatagramPacket receivedPacket = new DatagramPacket(receiveBuffer, bufferSize);
+
     /** The session ID used in communication (as sent by the remote server). */
     private String sessionID = null;
 
     /** The last known address of the remote server. */
     private SocketAddress address;
 
-    /** Map containing incomplete multipart packets by header. */
-    private final Map<Integer, Packet> incompleteMessages = new HashMap<>();
+    /** Reassembles incomplete multipart packets by header. */
+    private final MultipartAssembler assembler = new MultipartAssembler(maxMessageSize, multipartTimeout);
+    /** Reassembles incomplete packets of the sequenced framing mode by message ID. */
+    private final SequencedAssembler sequencedAssembler =
+            new SequencedAssembler(maxMessageSize, retransmitTimeout, multipartTimeout, maxRetransmits);
+
+    /** The current receive timeout of the socket. */
+    private int currentReceiveTimeout = receiveTimeout;
+    /** The time when the last packet was received. */
+    private long lastReceived = 0L;
+    /** The number of datagrams dropped since they were too short to contain the header and the flags. */
+    private long runtCount = 0L;
 
     /** Is the discovery multicast based? */
     private final boolean multicast;
     /** Is the discovery broadcast based? */
     private final boolean broadcast;
+    /** Is the sequenced framing mode requested from the server? */
+    private final boolean sequenced;
 
     /**
      * Package-private constructor.
      *
      * @param multicast Pass true, if the discovery is multicast based
      * @param broadcast Pass true, if the discovery is broadcast based
+     * @param sequenced Pass true, to request the sequenced framing mode from the server
      *
      * @see hu.rycus.intellihome.network.NetworkHandler#NetworkHandler(String, RemoteManager, String, int, String, String, java.util.Set)
      */
     UDPHandler(RemoteManager manager,
                String host, int port, String username, String password,
                Set<Integer> asynchHeaders,
-               boolean multicast, boolean broadcast) {
+               boolean multicast, boolean broadcast, boolean sequenced) {
         super("UDPHandler", manager, host, port, username, password, asynchHeaders);
 
         this.multicast = multicast;
         this.broadcast = broadcast;
+        this.sequenced = sequenced;
     }
 
     /**
@@ -71,7 +99,7 @@ class UDPHandler extends NetworkHandler {
         try {
             socket = new MulticastSocket(port);
             socket.setTimeToLive(8); // TODO magic numbers
-            socket.setSoTimeout(20000);
+            socket.setSoTimeout(receiveTimeout);
             socket.setLoopbackMode(true);
         } catch(Exception ex) {
             Log.e(LOG_TAG, "Failed to start UDP socket on port " + port, ex);
@@ -110,6 +138,10 @@ class UDPHandler extends NetworkHandler {
 
         if(socket != null) socket.close();
 
+        Log.i(LOG_TAG, "Multipart statistics: " + assembler + ", runt datagrams: " + runtCount);
+        if(sequenced) {
+            Log.i(LOG_TAG, "Sequenced statistics: " + sequencedAssembler);
+        }
         Log.e(LOG_TAG, "Network handler stopped");
     }
 
@@ -133,12 +165,13 @@ class UDPHandler extends NetworkHandler {
 
         while (enabled) {
             if(sessionID == null && !skipNextLogin) {
-                sendWithoutSession(Header.MSG_A_LOGIN, username + ":" + password); // login to server
+                login();
             }
 
             skipNextLogin = false;
 
-            // wait for a packet
+            // wait for a packet (or until missing sequenced fragments should be requested)
+            updateReceiveTimeout();
             DatagramPacket dp = null;
 
             try {
@@ -148,24 +181,48 @@ class UDPHandler extends NetworkHandler {
                 continue; // drop our own broadcast packet
             }
 
+            long now = System.currentTimeMillis();
+            assembler.expire(now);
+            if(sequenced) {
+                sequencedAssembler.checkMissing(now, retransmitListener);
+            }
+
             if(enabled && dp != null && dp.getLength() >= 2) {
                 // signal connection OK
                 manager.setConnected(true);
+                lastReceived = now;
 
                 byte[] buffer = dp.getData();
 
                 int header  = buffer[0] & 0xFF;
                 int flags   = buffer[1] & 0xFF;
-                String data = new String(buffer, 2, dp.getLength() - 2);
+                int length  = dp.getLength() - 2;
+
+                // create a new version of a packet, possibly by merging this to previous ones
+                long begin = manager.getStatistics().begin();
+                Packet packet;
+                if((flags & Flags.SEQUENCED) == Flags.SEQUENCED) {
+                    packet = sequencedAssembler.append(header, buffer, 2, length);
+                } else {
+                    boolean finish = (flags & Flags.MORE_FOLLOWS) != Flags.MORE_FOLLOWS;
+                    packet = assembler.append(header, buffer, 2, length, finish);
+                }
+                manager.getStatistics().end("udp.fragment", begin, length, 1);
+
+                if(Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                    Log.d(LOG_TAG,
+                            "UDP Packet received (H" + Integer.toHexString(header) + "), " +
+                                    "length: " + length + " | " + (packet != null ? "Complete" : "INCOMPLETE"));
+                }
 
-                boolean finish = (flags & Flags.MORE_FOLLOWS) != Flags.MORE_FOLLOWS;
-                Log.d(LOG_TAG,
-                        "UDP Packet received (H" + Integer.toHexString(header) + "), " +
-                                "length: " + (dp.getLength() - 2) + " | " + (finish ? "Complete" : "INCOMPLETE"));
+                if(packet == null) {
+                    continue; // more fragments are expected
+                }
 
-                if(finish && header == Header.MSG_A_LOGIN) {
+                if(header == Header.MSG_A_LOGIN) {
                     // set session parameters
                     address = dp.getSocketAddress();
+                    String data = packet.getData();
                     sessionID = data;
                     if(data.endsWith("*")) {
                         administrator = true;
@@ -177,7 +234,7 @@ class UDPHandler extends NetworkHandler {
                     Log.i(LOG_TAG, "Login result: " + sessionID + " source: " + address);
 
                     continue;
-                } else if(finish && header == Header.MSG_A_ERROR_INVALID_SESSION) {
+                } else if(header == Header.MSG_A_ERROR_INVALID_SESSION) {
                     Log.e(LOG_TAG, "Invalid session error received");
                     // signal connection loss
                     manager.setConnected(false);
@@ -196,16 +253,19 @@ class UDPHandler extends NetworkHandler {
                     }
                 }
 
-                // create a new version of a packet, possibly by merging this to a previous one
-                Packet packet = mergeIncomplete(header, data, finish);
-                if(packet != null) {
-                    // process this packet
-                    if(asynchHeaders.contains(header)) {
-                        manager.processAsynchPacket(packet);
-                    } else {
-                        enqueuePacket(packet);
-                    }
+                // process this packet
+                if(asynchHeaders.contains(header)) {
+                    manager.processAsynchPacket(packet);
+                } else {
+                    enqueuePacket(packet);
                 }
+            } else if(enabled && dp != null) {
+                // too short to contain the header and the flags, the connection is fine otherwise
+                runtCount++;
+                Log.w(LOG_TAG, "Dropping runt datagram, length: " + dp.getLength());
+            } else if(enabled && dp == null && now - lastReceived < receiveTimeout) {
+                // woke up early only to check the missing sequenced fragments
+                continue;
             } else {
                 // we are not connected anymore
                 manager.setConnected(false);
@@ -213,32 +273,52 @@ class UDPHandler extends NetworkHandler {
         }
     }
 
+    /** Sends a login message to the server, requesting the sequenced framing mode if enabled. */
+    private void login() {
+        int flags = Flags.WITHOUT_SESSION_ID | (sequenced ? Flags.SEQUENCED : 0);
+        send(Header.MSG_A_LOGIN, createLoginData().getBytes(), flags);
+    }
+
     /**
-     * Creates a new version of a packet, possibly by merging the given data into a previous packet.
-     * @param header The header of the received packet
-     * @param data   The (possibly partial) data of a packet
-     * @param finish Is this the last packet? (or else more follows)
-     * @return A new version of a packet with the given header
+     * Shortens the receive timeout of the socket while sequenced messages are incomplete
+     * so that the missing fragments can be requested in time, or restores it otherwise.
      */
-    private Packet mergeIncomplete(int header, String data, boolean finish) {
-        Packet incomplete = incompleteMessages.remove(header);
+    private void updateReceiveTimeout() {
+        int timeout = sequenced && sequencedAssembler.hasPending() ? (int) retransmitTimeout : receiveTimeout;
+        if(timeout != currentReceiveTimeout) {
+            try {
+                socket.setSoTimeout(timeout);
+                currentReceiveTimeout = timeout;
+            } catch(SocketException ex) {
+                Log.w(LOG_TAG, "Failed to change the receive timeout", ex);
+            }
+        }
+    }
 
-        // concatenate data
-        String newData = incomplete != null ? (incomplete.getData() + data) : data;
-        Packet packet = new Packet(header, newData);
+    /** Listener sending retransmission requests for missing sequenced fragments. */
+    private final SequencedAssembler.RetransmitListener retransmitListener = new SequencedAssembler.RetransmitListener() {
+        @Override
+        public void requestRetransmit(int messageId, int[] missing) {
+            StringBuilder builder = new StringBuilder();
+            builder.append(messageId).append(';');
+            for(int idx = 0; idx < missing.length; idx++) {
+                if(idx > 0) builder.append(',');
+                builder.append(missing[idx]);
+            }
 
-        if(finish) {
-            return packet;
-        } else {
-            incompleteMessages.put(header, packet);
-            return null;
+            Log.d(LOG_TAG, "Requesting retransmission of message " + messageId + ", fragments: " + missing.length);
+            send(Header.MSG_A_RETRANSMIT, builder.toString());
         }
-    }
+    };
 
-    /** Helper method to receive one UDP datagram packet. */
+    /**
+     * Helper method to receive one UDP datagram packet.
+     * The returned packet and its buffer are reused for the next datagram.
+     */
     private DatagramPacket receivePacket() {
         try {
-            DatagramPacket packet = new DatagramPacket(new byte[bufferSize], bufferSize);
+            DatagramPacket packet = receivedPacket;
+            packet.setLength(bufferSize);
             socket.receive(packet);
 
             if(broadcast) {
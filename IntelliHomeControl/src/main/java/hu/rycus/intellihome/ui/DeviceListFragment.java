@@ -1,17 +1,13 @@
 package hu.rycus.intellihome.ui;
 
 import android.app.AlertDialog;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.content.Intent;
-import android.content.IntentFilter;
 import android.graphics.Color;
 import android.graphics.drawable.GradientDrawable;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
-import android.support.v4.content.LocalBroadcastManager;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -29,15 +25,20 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Map;
 
 import hu.rycus.intellihome.MainActivity;
 import hu.rycus.intellihome.R;
 import hu.rycus.intellihome.RemoteService;
 import hu.rycus.intellihome.model.Entity;
 import hu.rycus.intellihome.model.EntityCommand;
-import hu.rycus.intellihome.util.Intents;
+import hu.rycus.intellihome.network.EntityStore;
+import hu.rycus.intellihome.network.EventBus;
+import hu.rycus.intellihome.network.Events;
 import hu.rycus.intellihome.util.PopupUtil;
 import hu.rycus.intellihome.util.RemoteServiceCreator;
 
@@ -52,10 +53,28 @@ public class DeviceListFragment extends Fragment {
         @Override
         protected void onServiceInstanceReceived(RemoteService service) {
             super.onServiceInstanceReceived(service);
+
+            EntityStore store = service.getEntityStore();
+            store.subscribe(storeListener);
+            adapter.reload(store);
+
+            EventBus bus = service.getEventBus();
+            bus.subscribe(Events.DevicesListed.class, errorListener, EventBus.Delivery.MAIN_THREAD);
+            bus.subscribe(Events.StatesChanged.class, errorListener, EventBus.Delivery.MAIN_THREAD);
+
             service.requestDeviceList(typeFilter);
         }
     };
 
+    private final EntityStore.Listener storeListener = new EntityStore.Listener() {
+        @Override
+        public void onEntitiesChanged(EntityStore.Diff diff) {
+            if(rsc.isServiceBound()) {
+                adapter.apply(rsc.getService().getEntityStore(), diff);
+            }
+        }
+    };
+
     private GridView gridDeviceList;
     private DeviceListAdapter adapter;
 
@@ -69,10 +88,6 @@ public class DeviceListFragment extends Fragment {
 
         gridDeviceList = (GridView) root.findViewById(R.id.grid_device_list);
 
-        if(adapter == null) { // this could be retained from previous state
-            adapter = new DeviceListAdapter();
-        }
-
         gridDeviceList.setAdapter(adapter);
 
         return root;
@@ -83,19 +98,6 @@ public class DeviceListFragment extends Fragment {
         return super.onContextItemSelected(item); // TODO popup
     }
 
-    @Override
-    public void onResume() {
-        super.onResume();
-        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(receiver, new IntentFilter(Intents.ACTION_DEVICE_LIST));
-        LocalBroadcastManager.getInstance(getActivity()).registerReceiver(receiver, new IntentFilter(Intents.ACTION_DEVICE_STATE_CHANGED));
-    }
-
-    @Override
-    public void onPause() {
-        LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(receiver);
-        super.onPause();
-    }
-
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -109,11 +111,21 @@ public class DeviceListFragment extends Fragment {
 
         isAdministrator = ((MainActivity) getActivity()).isLoggedInAsAdministrator();
 
+        adapter = new DeviceListAdapter();
+
         rsc.bind(getActivity());
     }
 
     @Override
     public void onDestroy() {
+        if(rsc.isServiceBound()) {
+            rsc.getService().getEntityStore().unsubscribe(storeListener);
+
+            EventBus bus = rsc.getService().getEventBus();
+            bus.unsubscribe(Events.DevicesListed.class, errorListener);
+            bus.unsubscribe(Events.StatesChanged.class, errorListener);
+        }
+
         rsc.unbind(getActivity());
         super.onDestroy();
     }
@@ -154,6 +166,70 @@ public class DeviceListFragment extends Fragment {
         private final SimpleDateFormat checkinDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
         private Entity[] entities = new Entity[0];
+        /** The positions of the displayed entities by identifier. */
+        private final Map<String, Integer> positions = new HashMap<>();
+        /** The version of the entity store the displayed entities correspond to. */
+        private long version = -1L;
+
+        /** Replaces the displayed entities with the current contents of the store. */
+        private void reload(EntityStore store) {
+            // the version is read first, so a change applied meanwhile is received (and applied again) as a diff
+            version = store.getVersion();
+            entities = store.snapshot(typeFilter);
+
+            positions.clear();
+            for(int index = 0; index < entities.length; index++) {
+                positions.put(entities[index].getId(), index);
+            }
+
+            notifyDataSetChanged();
+        }
+
+        /** Applies the difference of the store to the displayed entities. */
+        private void apply(EntityStore store, EntityStore.Diff diff) {
+            if(diff.getVersion() <= version) {
+                return; // already included in the last snapshot
+            }
+
+            if(diff.isReset() || diff.getPreviousVersion() != version) {
+                reload(store);
+                return;
+            }
+
+            boolean modified = false;
+
+            for(Entity changed : diff.getUpdated()) {
+                modified |= replace(changed);
+            }
+            for(Entity changed : diff.getAdded()) {
+                modified |= replace(changed);
+            }
+
+            version = diff.getVersion();
+
+            if(modified) {
+                notifyDataSetChanged();
+            }
+        }
+
+        /** Replaces (or appends) a changed entity, returns true if it is displayed on this fragment. */
+        private boolean replace(Entity changed) {
+            if(typeFilter != null && typeFilter != changed.getType().getId()) {
+                // The device is not shown on this fragment
+                return false;
+            }
+
+            Integer position = positions.get(changed.getId());
+            if(position != null) {
+                entities[position] = changed;
+            } else {
+                entities = Arrays.copyOf(entities, entities.length + 1);
+                entities[entities.length - 1] = changed;
+                positions.put(changed.getId(), entities.length - 1);
+            }
+
+            return true;
+        }
 
         @Override
         public int getCount() {
@@ -368,50 +444,14 @@ public class DeviceListFragment extends Fragment {
 
     }
 
-    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+    private final EventBus.Listener<Events.Result> errorListener = new EventBus.Listener<Events.Result>() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if(Intents.ACTION_DEVICE_LIST.equals(intent.getAction())) {
-                String error = intent.getStringExtra(Intents.EXTRA_ERROR);
-                if(error != null) {
-                    Toast.makeText(context, error, Toast.LENGTH_SHORT).show();
-                } else {
-                    Entity[] entities = (Entity[]) intent.getParcelableArrayExtra(Intents.EXTRA_DEVICE_LIST_ENTITIES);
-                    adapter.entities = entities;
-                    adapter.notifyDataSetChanged();
-                }
-            } else if(Intents.ACTION_DEVICE_STATE_CHANGED.equals(intent.getAction())) {
-                String error = intent.getStringExtra(Intents.EXTRA_ERROR);
-                if(error != null) {
-                    Toast.makeText(context, error, Toast.LENGTH_SHORT).show();
-                } else {
-                    Entity changed = (Entity) intent.getParcelableExtra(Intents.EXTRA_DEVICE_STATE);
-
-                    if(typeFilter != null && typeFilter != changed.getType().getId()) {
-                        // The device is not shown on this fragment
-                        return;
-                    }
-
-                    boolean found = false;
-                    for (int index = 0; index < adapter.entities.length; index++) {
-                        Entity entity = adapter.entities[index];
-                        if(entity.getId().equals(changed.getId())) {
-                            adapter.entities[index] = changed;
-                            found = true;
-                            break;
-                        }
-                    }
-
-                    if (found) {
-                        adapter.notifyDataSetChanged();
-                    } else {
-                        if(rsc != null && rsc.isServiceBound()) {
-                            rsc.getService().requestDeviceList(typeFilter);
-                        }
-                    }
-                }
+        public void onEvent(Events.Result event) {
+            // the entities are received from the entity store, only the errors are displayed here
+            if(event.isError() && isResumed()) {
+                Toast.makeText(getActivity(), event.getError(), Toast.LENGTH_SHORT).show();
             }
         }
     };
 
-}
\ No newline at end of file
+}
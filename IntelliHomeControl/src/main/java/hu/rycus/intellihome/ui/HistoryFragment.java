@@ -1,13 +1,19 @@
 package hu.rycus.intellihome.ui;
 
+import android.annotation.TargetApi;
 import android.app.DatePickerDialog;
 import android.app.TimePickerDialog;
 import android.content.Context;
 import android.graphics.Color;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
@@ -19,14 +25,24 @@ import android.widget.TextView;
 import android.widget.TimePicker;
 import android.widget.Toast;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeSet;
 
 import hu.rycus.intellihome.R;
 import hu.rycus.intellihome.RemoteService;
 import hu.rycus.intellihome.model.EntityHistory;
+import hu.rycus.intellihome.model.HistoryOverview;
+import hu.rycus.intellihome.network.Command;
+import hu.rycus.intellihome.network.EventBus;
+import hu.rycus.intellihome.network.Events;
+import hu.rycus.intellihome.network.HistoryExporter;
 import hu.rycus.intellihome.util.RemoteServiceCreator;
 
 
@@ -37,13 +53,53 @@ import hu.rycus.intellihome.util.RemoteServiceCreator;
  */
 public class HistoryFragment extends Fragment {
 
-    private static final int PREFETCH_LIMIT = 25;
-
     private final RemoteServiceCreator rsc = new RemoteServiceCreator() {
         @Override
         protected void onServiceInstanceReceived(RemoteService service) {
             super.onServiceInstanceReceived(service);
-            createCountTask().execute();
+            service.getEventBus().subscribe(Events.HistoryExportProgress.class, exportListener, EventBus.Delivery.MAIN_THREAD);
+            service.getEventBus().subscribe(Events.HistoryAppended.class, appendListener, EventBus.Delivery.MAIN_THREAD);
+            service.updateHistorySubscription();
+            executeConcurrently(createCountTask());
+        }
+    };
+
+    private final EventBus.Listener<Events.HistoryExportProgress> exportListener = new EventBus.Listener<Events.HistoryExportProgress>() {
+        @Override
+        public void onEvent(Events.HistoryExportProgress event) {
+            if(exporter == null || exporter.getFile() != event.getFile()) {
+                return; // started by a previous instance
+            }
+
+            if(event.isFinished()) {
+                exporter = null;
+                txtExportStatus.setVisibility(View.GONE);
+
+                String message;
+                if(event.isCancelled()) {
+                    message = getResources().getString(R.string.export_history_cancelled);
+                } else if(event.isError()) {
+                    message = event.getError();
+                } else {
+                    message = getResources().getString(R.string.export_history_done, event.getExported(), event.getFile().getPath());
+                }
+
+                if(getActivity() != null) {
+                    Toast.makeText(getActivity(), message, Toast.LENGTH_LONG).show();
+                    getActivity().supportInvalidateOptionsMenu();
+                }
+            } else {
+                showExportProgress(event);
+            }
+        }
+    };
+
+    private final EventBus.Listener<Events.HistoryAppended> appendListener = new EventBus.Listener<Events.HistoryAppended>() {
+        @Override
+        public void onEvent(Events.HistoryAppended event) {
+            if(!event.isError() && mAdapter != null) {
+                mAdapter.append(event.getEntries());
+            }
         }
     };
 
@@ -52,6 +108,8 @@ public class HistoryFragment extends Fragment {
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
     private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
 
+    private final SimpleDateFormat exportFileFormat = new SimpleDateFormat("'history-'yyyyMMdd-HHmmss'.csv.gz'");
+
     private TextView txtFrom;
     private EditText editFromDate;
     private EditText editFromTime;
@@ -62,6 +120,7 @@ public class HistoryFragment extends Fragment {
     private TextView txtEntityName;
     private ImageButton btnToggle;
     private ListView listContents;
+    private TextView txtExportStatus;
 
     private HistoryAdapter mAdapter;
 
@@ -69,8 +128,13 @@ public class HistoryFragment extends Fragment {
     private Long tsTo;
     private String entityId;
 
+    /** True while the end of the interval is not set by the user (it follows the current time). */
+    private boolean following = true;
+
     private boolean filterHidden = true;
 
+    private HistoryExporter exporter;
+
     public static HistoryFragment create(String entityId) {
         HistoryFragment fragment = new HistoryFragment();
 
@@ -94,10 +158,75 @@ public class HistoryFragment extends Fragment {
 
     @Override
     public void onDestroy() {
+        if(rsc.isServiceBound()) {
+            rsc.getService().getEventBus().unsubscribe(Events.HistoryExportProgress.class, exportListener);
+            rsc.getService().getEventBus().unsubscribe(Events.HistoryAppended.class, appendListener);
+            rsc.getService().updateHistorySubscription();
+        }
+
         rsc.unbind(getActivity());
         super.onDestroy();
     }
 
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+        super.onCreateOptionsMenu(menu, inflater);
+        inflater.inflate(R.menu.history, menu);
+
+        MenuItem item = menu.findItem(R.id.export_history);
+        item.setTitle(exporter != null ? R.string.export_history_cancel : R.string.export_history);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if(item.getItemId() == R.id.export_history) {
+            if(exporter != null) {
+                exporter.cancel();
+            } else if(rsc.isServiceBound()) {
+                startExport();
+            }
+
+            return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void startExport() {
+        File directory = getActivity().getExternalFilesDir(null);
+        if(directory == null) {
+            directory = getActivity().getFilesDir(); // external storage is not available
+        }
+
+        File file = new File(directory, exportFileFormat.format(new Date()));
+
+        exporter = rsc.getService().exportHistory(tsFrom, tsTo, entityId, file);
+        if(exporter == null) {
+            Toast.makeText(getActivity(), getResources().getString(R.string.error_export_history_running), Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        txtExportStatus.setText(getResources().getString(R.string.export_history_progress_unknown, 0, 0, 0));
+        txtExportStatus.setVisibility(View.VISIBLE);
+
+        getActivity().supportInvalidateOptionsMenu();
+    }
+
+    private void showExportProgress(Events.HistoryExportProgress event) {
+        int rate = Math.round(event.getRate());
+        int kilobytes = (int) (event.getBytes() / 1024L);
+
+        if(event.getTotal() >= 0) {
+            txtExportStatus.setText(getResources().getString(R.string.export_history_progress,
+                    event.getExported(), event.getTotal(), rate, kilobytes));
+        } else {
+            txtExportStatus.setText(getResources().getString(R.string.export_history_progress_unknown,
+                    event.getExported(), rate, kilobytes));
+        }
+
+        txtExportStatus.setVisibility(View.VISIBLE);
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View root = inflater.inflate(R.layout.fragment_history, container, false);
@@ -112,12 +241,14 @@ public class HistoryFragment extends Fragment {
         txtEntityName   = (TextView) root.findViewById(R.id.hist_label_device_name);
         btnToggle       = (ImageButton) root.findViewById(R.id.hist_filter_toggle);
         listContents    = (ListView) root.findViewById(R.id.hist_contents);
+        txtExportStatus = (TextView) root.findViewById(R.id.hist_export_status);
 
         if(mAdapter == null) {
             mAdapter = new HistoryAdapter();
         }
 
         listContents.setAdapter(mAdapter);
+        listContents.setOnScrollListener(mAdapter.prefetcher);
 
         Bundle args = getArguments();
         if(args != null) {
@@ -128,6 +259,8 @@ public class HistoryFragment extends Fragment {
             R.drawable.ic_filter_expand :
             R.drawable.ic_filter_collapse);
 
+        txtExportStatus.setVisibility(exporter != null ? View.VISIBLE : View.GONE);
+
         txtFrom.setVisibility(filterHidden ? View.GONE : View.VISIBLE);
         editFromDate.setVisibility(filterHidden ? View.GONE : View.VISIBLE);
         editFromTime.setVisibility(filterHidden ? View.GONE : View.VISIBLE);
@@ -157,18 +290,13 @@ public class HistoryFragment extends Fragment {
             }
         });
 
-        Calendar calendar = Calendar.getInstance();
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
-        calendar.add(Calendar.MINUTE, 1);
+        following = true;
+        followLatest();
 
-        tsTo    = calendar.getTimeInMillis();
         tsFrom  = tsTo - (7 * 24 * 60 * 60 * 1000L); // one week
 
         editFromDate.setText(dateFormat.format(new Date(tsFrom)));
         editFromTime.setText(timeFormat.format(new Date(tsFrom)));
-        editToDate.setText(dateFormat.format(new Date(tsTo)));
-        editToTime.setText(timeFormat.format(new Date(tsTo)));
 
         editFromDate.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -191,7 +319,7 @@ public class HistoryFragment extends Fragment {
                         tsFrom = calendar.getTimeInMillis();
                         editFromDate.setText(dateFormat.format(calendar.getTime()));
 
-                        createCountTask().execute();
+                        executeConcurrently(createCountTask());
                     }
                 }, year, month, date);
                 dialog.show();
@@ -217,7 +345,7 @@ public class HistoryFragment extends Fragment {
                         tsFrom = calendar.getTimeInMillis();
                         editFromTime.setText(timeFormat.format(calendar.getTime()));
 
-                        createCountTask().execute();
+                        executeConcurrently(createCountTask());
                     }
                 }, hour, minute, true);
                 dialog.show();
@@ -244,8 +372,9 @@ public class HistoryFragment extends Fragment {
                         calendar.set(Calendar.DATE, date);
                         tsTo = calendar.getTimeInMillis();
                         editToDate.setText(dateFormat.format(calendar.getTime()));
+                        following = false;
 
-                        createCountTask().execute();
+                        executeConcurrently(createCountTask());
                     }
                 }, year, month, date);
                 dialog.show();
@@ -270,8 +399,9 @@ public class HistoryFragment extends Fragment {
                         calendar.set(Calendar.MINUTE, minute);
                         tsTo = calendar.getTimeInMillis();
                         editToTime.setText(timeFormat.format(calendar.getTime()));
+                        following = false;
 
-                        createCountTask().execute();
+                        executeConcurrently(createCountTask());
                     }
                 }, hour, minute, true);
                 dialog.show();
@@ -281,18 +411,61 @@ public class HistoryFragment extends Fragment {
         return root;
     }
 
-    private class HistoryAdapter extends BaseAdapter {
+    /** Moves the end of the interval to the current time (rounded up to the next minute). */
+    private void followLatest() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.MINUTE, 1);
+
+        tsTo = calendar.getTimeInMillis();
+
+        if(editToDate != null) {
+            editToDate.setText(dateFormat.format(new Date(tsTo)));
+            editToTime.setText(timeFormat.format(new Date(tsTo)));
+        }
+    }
+
+    private class HistoryAdapter extends BaseAdapter implements HistoryPrefetcher.Callback {
+
+        /** The number of pushed entries displayed before the entries are counted again. */
+        private static final int MAX_APPENDED = 500; // TODO magic number
+
+        private final HistoryPageCache cache = new HistoryPageCache();
+
+        private final HistoryPrefetcher prefetcher = new HistoryPrefetcher(this);
+
+        /** The requests of the pages being loaded by page index. */
+        private final SparseArray<Command> requests = new SparseArray<>();
+
+        /** The pages waiting for the previous page to be requested after its last entry. */
+        private final TreeSet<Integer> deferred = new TreeSet<>();
 
-        private final ArrayList<HistoryItem> items = new ArrayList<>();
+        /** True if the entries are listed from the local history store instead of the server. */
+        private boolean local = false;
+
+        /** The total and per-day number of the entries (the days are the sections of the list). */
+        private HistoryOverview overview = HistoryOverview.of(0, null);
+
+        /** The start of the interval the pages are requested for (fixed when the entries are counted). */
+        private Long pagedFrom;
+        /** The end of the interval the pages are requested for (fixed, so the new entries do not shift the pages). */
+        private Long pagedTo;
+        /** The identifier of the entity the pages are requested for (or null for all entities). */
+        private String pagedEntityId;
+
+        /** The entries pushed by the server since the pages were counted, the oldest first (displayed above the pages). */
+        private final List<EntityHistory> appended = new ArrayList<>();
 
         @Override
         public int getCount() {
-            return items.size();
+            return appended.size() + cache.getCount();
         }
 
         @Override
         public Object getItem(int i) {
-            return items.get(i);
+            int head = appended.size();
+            return i < head ? appended.get(head - 1 - i) : cache.get(i - head);
         }
 
         @Override
@@ -310,6 +483,7 @@ public class HistoryFragment extends Fragment {
                 view = inflater.inflate(R.layout.item_history, parent, false);
 
                 holder = new ViewHolder();
+                holder.txtDay       = (TextView) view.findViewById(R.id.hist_item_day);
                 holder.txtLoading   = (TextView) view.findViewById(R.id.hist_item_loading);
                 holder.txtTimestamp = (TextView) view.findViewById(R.id.hist_item_timestamp);
                 holder.txtName      = (TextView) view.findViewById(R.id.hist_item_name);
@@ -320,20 +494,30 @@ public class HistoryFragment extends Fragment {
                 holder = (ViewHolder) view.getTag();
             }
 
-            HistoryItem item = (HistoryItem) getItem(position);
+            // the section header is known from the per-day counts even if the entry is not loaded yet
+            long day = getFirstDay(position);
+            if(day != Long.MIN_VALUE) {
+                holder.txtDay.setText(getResources().getString(R.string.history_day,
+                        dateFormat.format(new Date(day)), countDay(day)));
+                holder.txtDay.setVisibility(View.VISIBLE);
+            } else {
+                holder.txtDay.setVisibility(View.GONE);
+            }
+
+            EntityHistory hi = (EntityHistory) getItem(position);
+            boolean loaded = hi != null;
 
-            holder.txtLoading.setVisibility(item.loaded ? View.GONE : View.VISIBLE);
-            holder.txtTimestamp.setVisibility(item.loaded ? View.VISIBLE : View.GONE);
-            holder.txtName.setVisibility(item.loaded ? View.VISIBLE : View.GONE);
-            holder.txtAction.setVisibility(item.loaded ? View.VISIBLE : View.GONE);
+            holder.txtLoading.setVisibility(loaded ? View.GONE : View.VISIBLE);
+            holder.txtTimestamp.setVisibility(loaded ? View.VISIBLE : View.GONE);
+            holder.txtName.setVisibility(loaded ? View.VISIBLE : View.GONE);
+            holder.txtAction.setVisibility(loaded ? View.VISIBLE : View.GONE);
 
-            if(item.loaded) {
-                EntityHistory hi = item.data;
+            if(loaded) {
                 holder.txtTimestamp.setText(timestampFormat.format(new Date(hi.getTimestamp())));
                 holder.txtName.setText(hi.getEntityName());
                 holder.txtAction.setText(hi.getAction());
-            } else if(!item.loading) {
-                loadItems(position);
+            } else {
+                loadPage(HistoryPageCache.getPageIndex(position - appended.size()));
             }
 
             view.setBackgroundColor(position % 2 == 0 ? getResources().getColor(R.color.history_alternate_list_color) : Color.TRANSPARENT); // TODO from resource
@@ -342,63 +526,308 @@ public class HistoryFragment extends Fragment {
         }
 
         private class ViewHolder {
+            TextView txtDay;
             TextView txtLoading;
             TextView txtTimestamp;
             TextView txtName;
             TextView txtAction;
         }
 
-        private void loadItems(int fromPosition) {
-            int endPosition = fromPosition;
+        /**
+         * Returns the start of the day of the entry at the given position
+         * if the entry is the first (most recent) one of its day.
+         * @return The start of the day or Long.MIN_VALUE if no section header is displayed above the entry
+         */
+        private long getFirstDay(int position) {
+            if(overview.getDayCount() == 0 && overview.getCount() > 0) {
+                return Long.MIN_VALUE; // the days were not counted by the server
+            }
 
-            HistoryItem firstItem = (HistoryItem) getItem(fromPosition);
-            firstItem.loading = true;
+            int head = appended.size();
+            if(position < head) {
+                long day = getDayStart(appended.get(head - 1 - position));
+                return position == 0 || day != getDayStart(appended.get(head - position)) ? day : Long.MIN_VALUE;
+            }
 
-            for(int idx = 1; idx < PREFETCH_LIMIT; idx++) {
-                if(fromPosition + idx >= getCount()) break;
+            int pagedPosition = position - head;
+            if(!overview.isFirstOfDay(pagedPosition)) {
+                return Long.MIN_VALUE;
+            }
 
-                HistoryItem item = (HistoryItem) getItem(fromPosition + idx);
-                if(!item.loaded) {
-                    endPosition = fromPosition + idx;
-                    item.loading = true;
+            long day = overview.getDay(overview.getDayIndex(pagedPosition));
+            return pagedPosition > 0 || head == 0 || day != getDayStart(appended.get(0)) ? day : Long.MIN_VALUE;
+        }
+
+        /** Returns the number of entries on the given day (the counted and the pushed ones). */
+        private int countDay(long day) {
+            int count = 0;
+            for(int idx = appended.size() - 1; idx >= 0 && getDayStart(appended.get(idx)) >= day; idx--) {
+                if(getDayStart(appended.get(idx)) == day) count++;
+            }
+
+            for(int idx = 0; idx < overview.getDayCount() && overview.getDay(idx) >= day; idx++) {
+                if(overview.getDay(idx) == day) count += overview.getEntryCount(idx);
+            }
+
+            return count;
+        }
+
+        private long getDayStart(EntityHistory item) {
+            return HistoryOverview.getDayStart(item.getTimestamp(), TimeZone.getDefault().getOffset(item.getTimestamp()));
+        }
+
+        /**
+         * Displays the entries pushed by the server above the listed ones
+         * if they match the filter and are newer than the entries displayed already.
+         * The entries are not counted again, unless too many of them were appended.
+         */
+        private void append(EntityHistory[] items) {
+            int added = accept(items);
+            if(added == 0) {
+                return;
+            }
+
+            if(appended.size() > MAX_APPENDED) {
+                executeConcurrently(createCountTask());
+                return;
+            }
+
+            prefetcher.setOffset(appended.size());
+
+            // the rows scrolled away from the top stay in place
+            int first = listContents != null ? listContents.getFirstVisiblePosition() : 0;
+            View top = first > 0 ? listContents.getChildAt(0) : null;
+
+            notifyDataSetChanged();
+
+            if(top != null) {
+                listContents.setSelectionFromTop(first + added, top.getTop());
+            }
+        }
+
+        /**
+         * Adds the pushed entries matching the filter and newer than the entries displayed already.
+         * @return The number of entries added
+         */
+        private int accept(EntityHistory[] items) {
+            int added = 0;
+            for(EntityHistory item : items) {
+                if(pagedEntityId != null && !pagedEntityId.equals(item.getEntityId())) continue;
+                if(pagedFrom != null && item.getTimestamp() < pagedFrom) continue;
+                if(!following && pagedTo != null && item.getTimestamp() > pagedTo) continue;
+
+                EntityHistory newest = getNewest();
+                if(newest != null && !isNewer(item, newest)) {
+                    continue; // listed already (or stamped late, it is listed after counting again)
                 }
+
+                appended.add(item);
+                added++;
+            }
+
+            return added;
+        }
+
+        /** Returns the most recent entry known to be displayed (or null if it is not known). */
+        private EntityHistory getNewest() {
+            if(!appended.isEmpty()) {
+                return appended.get(appended.size() - 1);
             }
 
-            int limit = endPosition - fromPosition + 1;
-            int offset = fromPosition;
+            EntityHistory[] firstPage = overview.getEntries();
+            if(firstPage != null && firstPage.length > 0) {
+                return firstPage[0];
+            } else if(overview.getCount() > 0 && pagedTo != null) {
+                return EntityHistory.restore(pagedTo, "", null, null, null); // only the entries after the interval are new
+            }
+
+            return null;
+        }
 
-            createLoaderTask().execute(limit, offset);
+        /** Returns true if the first entry is more recent than the second one (the entries are listed by timestamp, then by entity, descending). */
+        private boolean isNewer(EntityHistory item, EntityHistory other) {
+            return item.getTimestamp() > other.getTimestamp() ||
+                    item.getTimestamp() == other.getTimestamp() && item.getEntityId().compareTo(other.getEntityId()) > 0;
+        }
+
+        private void reset(HistoryOverview overview, boolean local, Long tsFrom, Long tsTo, String entityId) {
+            this.overview = overview;
+            this.local = local;
+            this.pagedFrom = tsFrom;
+            this.pagedTo = tsTo;
+            this.pagedEntityId = entityId;
+
+            // the entries pushed while the query was in flight are kept if they were not counted
+            List<EntityHistory> pending = new ArrayList<>(appended);
+            appended.clear();
+            accept(pending.toArray(new EntityHistory[pending.size()]));
+
+            for(int idx = 0; idx < requests.size(); idx++) {
+                requests.valueAt(idx).cancel();
+            }
+            requests.clear();
+            deferred.clear();
+
+            prefetcher.reset();
+            prefetcher.setOffset(appended.size());
+            cache.reset(overview.getCount());
+
+            // the first page arrived with the count
+            EntityHistory[] firstPage = overview.getEntries();
+            if(firstPage != null && cache.startLoading(0)) {
+                cache.put(cache.getGeneration(), 0, firstPage);
+            }
+
+            notifyDataSetChanged();
+        }
+
+        /**
+         * Cancels the requests (not sent yet) of the pages outside of the new window,
+         * then requests the missing pages of the window starting in the direction of the scrolling.
+         */
+        @Override
+        public void onWindowChanged(int fromPage, int toPage, int direction) {
+            List<Integer> superseded = new ArrayList<>();
+            for(int idx = 0; idx < requests.size(); idx++) {
+                int pageIndex = requests.keyAt(idx);
+                if(pageIndex < fromPage || pageIndex > toPage) {
+                    superseded.add(pageIndex);
+                }
+            }
+
+            for(int pageIndex : superseded) {
+                if(requests.get(pageIndex).cancel()) {
+                    requests.remove(pageIndex);
+                }
+            }
+
+            Iterator<Integer> iterator = deferred.iterator();
+            while(iterator.hasNext()) {
+                int pageIndex = iterator.next();
+                if(pageIndex < fromPage || pageIndex > toPage) {
+                    iterator.remove();
+                    cache.fail(cache.getGeneration(), pageIndex);
+                }
+            }
+
+            sendOrphanedPages();
+
+            if(direction < 0) {
+                for(int pageIndex = toPage; pageIndex >= fromPage; pageIndex--) {
+                    loadPage(pageIndex);
+                }
+            } else {
+                for(int pageIndex = fromPage; pageIndex <= toPage; pageIndex++) {
+                    loadPage(pageIndex);
+                }
+            }
         }
 
-        private AsyncTask<Integer, Void, Boolean> createLoaderTask() {
-            return new AsyncTask<Integer, Void, Boolean>() {
+        /**
+         * Requests a page if it is not loaded or loading yet.
+         * Pages following a loaded page are requested after its last entry (keyset request),
+         * pages following a page being loaded wait for it, the others are requested by offset.
+         * The pages are read from the local history store instead if it covers the filter.
+         */
+        private void loadPage(int pageIndex) {
+            if(cache.startLoading(pageIndex)) {
+                if(local) {
+                    executeConcurrently(createLocalLoaderTask(cache.getGeneration(), pageIndex));
+                    return;
+                }
+
+                EntityHistory after = pageIndex > 0 ? cache.getLast(pageIndex - 1) : null;
+                if(after == null && isLoading(pageIndex - 1)) {
+                    deferred.add(pageIndex);
+                } else {
+                    sendPageRequest(pageIndex, after);
+                }
+            }
+        }
+
+        private boolean isLoading(int pageIndex) {
+            return requests.get(pageIndex) != null || deferred.contains(pageIndex);
+        }
+
+        /** Requests the deferred pages whose previous page is not being loaded anymore. */
+        private void sendOrphanedPages() {
+            List<Integer> orphaned = new ArrayList<>();
+            for(int pageIndex : deferred) {
+                if(!isLoading(pageIndex - 1)) {
+                    orphaned.add(pageIndex);
+                }
+            }
+
+            for(int pageIndex : orphaned) {
+                deferred.remove(pageIndex);
+                sendPageRequest(pageIndex, cache.getLast(pageIndex - 1));
+            }
+        }
+
+        private void sendPageRequest(int pageIndex, EntityHistory after) {
+            int limit  = HistoryPageCache.PAGE_SIZE;
+            int offset = HistoryPageCache.getOffset(pageIndex);
+
+            Command command = after != null ?
+                    rsc.getService().requestHistoryAfter(pagedFrom, pagedTo, pagedEntityId, limit, offset, after) :
+                    rsc.getService().requestHistory(pagedFrom, pagedTo, pagedEntityId, limit, offset);
+            requests.put(pageIndex, command);
+
+            executeConcurrently(createLoaderTask(command, cache.getGeneration(), pageIndex));
+        }
+
+        private AsyncTask<Void, Void, EntityHistory[]> createLocalLoaderTask(final int generation, final int pageIndex) {
+            return new AsyncTask<Void, Void, EntityHistory[]>() {
                 @Override
-                protected Boolean doInBackground(Integer... params) {
-                    int limit  = params[0];
-                    int offset = params[1];
+                protected EntityHistory[] doInBackground(Void... none) {
+                    return rsc.getService().listLocalHistory(pagedFrom, pagedTo, pagedEntityId,
+                            HistoryPageCache.PAGE_SIZE, HistoryPageCache.getOffset(pageIndex));
+                }
 
-                    EntityHistory[] loadedItems = rsc.getService().listHistory(tsFrom, tsTo, entityId, limit, offset);
+                @Override
+                protected void onPostExecute(EntityHistory[] loadedItems) {
                     if(loadedItems != null) {
-                        for(int idx = 0; idx < loadedItems.length; idx++) {
-                            HistoryItem item = items.get(offset + idx);
-                            if(!item.loaded) {
-                                item.data = loadedItems[idx];
-                                item.loaded = true;
-                            }
+                        if(cache.put(generation, pageIndex, loadedItems)) {
+                            notifyDataSetChanged();
                         }
-
-                        return true;
+                    } else {
+                        cache.fail(generation, pageIndex);
                     }
+                }
+            };
+        }
 
-                    return false;
+        private AsyncTask<Void, Void, EntityHistory[]> createLoaderTask(final Command command, final int generation, final int pageIndex) {
+            return new AsyncTask<Void, Void, EntityHistory[]>() {
+                @Override
+                protected EntityHistory[] doInBackground(Void... none) {
+                    return rsc.getService().awaitHistory(command, HistoryPageCache.PAGE_SIZE);
                 }
 
                 @Override
-                protected void onPostExecute(Boolean success) {
-                    notifyDataSetChanged();
+                protected void onPostExecute(EntityHistory[] loadedItems) {
+                    if(requests.get(pageIndex) == command) {
+                        requests.remove(pageIndex);
+                    }
 
-                    if(!success) {
-                        Toast.makeText(getActivity(), getResources().getString(R.string.error_list_history), Toast.LENGTH_SHORT).show();
+                    if(loadedItems != null) {
+                        if(cache.put(generation, pageIndex, loadedItems)) {
+                            notifyDataSetChanged();
+                        }
+                    } else if(command.isCancelled()) {
+                        cache.fail(generation, pageIndex);
+                        notifyDataSetChanged(); // the page is requested again if it is displayed
+                    } else {
+                        cache.fail(generation, pageIndex);
+
+                        if(getActivity() != null) {
+                            Toast.makeText(getActivity(), getResources().getString(R.string.error_list_history), Toast.LENGTH_SHORT).show();
+                        }
+                    }
+
+                    // the next page was waiting for this one (it is requested by offset if this one failed)
+                    if(generation == cache.getGeneration() && deferred.remove(pageIndex + 1)) {
+                        sendPageRequest(pageIndex + 1, cache.getLast(pageIndex));
                     }
                 }
             };
@@ -406,37 +835,63 @@ public class HistoryFragment extends Fragment {
 
     }
 
-    private AsyncTask<Void, Void, Integer> createCountTask() {
-        return new AsyncTask<Void, Void, Integer>() {
+    private AsyncTask<Void, Void, HistoryOverview> createCountTask() {
+        if(following) {
+            followLatest(); // the new entries are counted as well
+        }
+
+        final Long tsFrom = this.tsFrom;
+        final Long tsTo = this.tsTo;
+        final String entityId = this.entityId;
+
+        return new AsyncTask<Void, Void, HistoryOverview>() {
+            /** True if the entries are counted by the local history store. */
+            private boolean local = false;
+
             @Override
-            protected Integer doInBackground(Void... none) {
-                int count = rsc.getService().countHistory(tsFrom, tsTo, entityId);
-                if(count >= 0) {
-                    mAdapter.items.clear();
-                    mAdapter.items.ensureCapacity(count);
-
-                    for(int idx = 0; idx < count; idx++) {
-                        mAdapter.items.add(new HistoryItem()); // TODO use only around 200 items on the list, clear what isn't used at the moment
-                    }
+            protected HistoryOverview doInBackground(Void... none) {
+                RemoteService service = rsc.getService();
+
+                HistoryOverview overview = service.queryLocalHistory(tsFrom, tsTo, entityId, HistoryPageCache.PAGE_SIZE);
+                if(overview != null) {
+                    local = true;
+                    return overview;
                 }
-                return count;
+
+                overview = service.queryHistory(tsFrom, tsTo, entityId, HistoryPageCache.PAGE_SIZE);
+                if(overview != null) {
+                    return overview;
+                }
+
+                // the server does not support the combined query or it was not answered
+                int count = service.countHistory(tsFrom, tsTo, entityId);
+                return count >= 0 ? HistoryOverview.of(count, null) : null;
             }
 
             @Override
-            protected void onPostExecute(Integer count) {
-                mAdapter.notifyDataSetChanged();
+            protected void onPostExecute(HistoryOverview overview) {
+                if(overview != null) {
+                    mAdapter.reset(overview, local, tsFrom, tsTo, entityId);
+                }
 
-                if(count < 0 && getActivity() != null) {
+                if(overview == null && getActivity() != null) {
                     Toast.makeText(getActivity(), getResources().getString(R.string.error_count_history), Toast.LENGTH_SHORT).show();
                 }
             }
         };
     }
 
-    private class HistoryItem {
-        boolean loaded = false;
-        boolean loading = false;
-        EntityHistory data = null;
+    /**
+     * Runs a task on the thread pool of the async tasks, so the tasks waiting for the server
+     * do not hold up each other (since Honeycomb the tasks run one after the other by default).
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static <Result> void executeConcurrently(AsyncTask<Void, Void, Result> task) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            task.execute();
+        }
     }
 
 }
@@ -0,0 +1,150 @@
+package hu.rycus.intellihome.ui;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hu.rycus.intellihome.model.EntityHistory;
+
+/**
+ * Sparse cache of the history entries displayed by the {@link HistoryFragment}.
+ * The entries are kept in fixed size pages keyed by their page index,
+ * only a bounded number of pages (the ones around the viewport) are kept,
+ * and the least recently displayed pages are evicted when new ones are loaded.
+ * The number of entries comes from the count reported by the server alone,
+ * so no objects are allocated for the rows that are not loaded.
+ * This class is not thread-safe, it is used from the main thread only.
+ *
+ * Created by Viktor Adam on 2/1/14.
+ */
+class HistoryPageCache {
+
+    /** The number of entries in a page. */
+    static final int PAGE_SIZE = 25; // TODO magic number
+
+    /** The maximal number of pages kept in the cache. */
+    private static final int MAX_PAGES = 8; // TODO magic number
+
+    /** The pages by page index in access order (the eldest is evicted first). */
+    private final Map<Integer, Page> pages = new LinkedHashMap<Integer, Page>(MAX_PAGES * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+    /** The total number of entries reported by the server. */
+    private int count = 0;
+
+    /** Incremented on every reset, so the pages loaded for a previous query are dropped. */
+    private int generation = 0;
+
+    /** Returns the total number of entries. */
+    int getCount() { return count; }
+
+    /** Returns the current generation (to pass to {@link #put(int, int, EntityHistory[])} with the loaded page). */
+    int getGeneration() { return generation; }
+
+    /** Returns the index of the page containing an entry. */
+    static int getPageIndex(int position) { return position / PAGE_SIZE; }
+
+    /** Returns the position of the first entry of a page. */
+    static int getOffset(int pageIndex) { return pageIndex * PAGE_SIZE; }
+
+    /**
+     * Drops the cached pages and sets the number of entries
+     * (when the server reports the count of a new query).
+     */
+    void reset(int count) {
+        this.pages.clear();
+        this.count = Math.max(0, count);
+        this.generation++;
+    }
+
+    /**
+     * Returns an entry (marking its page as recently used).
+     * @return The entry or null if its page is not loaded yet
+     */
+    EntityHistory get(int position) {
+        Page page = pages.get(getPageIndex(position));
+        if(page == null || page.items == null) {
+            return null;
+        }
+
+        int index = position - getOffset(page.index);
+        return index < page.items.length ? page.items[index] : null;
+    }
+
+    /**
+     * Returns the last entry of a loaded page (the key to request the next page after).
+     * @return The last entry or null if the page is not loaded or it is not a full page
+     */
+    EntityHistory getLast(int pageIndex) {
+        Page page = pages.get(pageIndex);
+        if(page == null || page.items == null || page.items.length < PAGE_SIZE) {
+            return null;
+        }
+
+        return page.items[page.items.length - 1];
+    }
+
+    /**
+     * Marks a page as loading if it is neither loaded nor loading yet.
+     * @return True if the page has to be loaded by the caller
+     */
+    boolean startLoading(int pageIndex) {
+        if(pages.containsKey(pageIndex)) {
+            return false;
+        }
+
+        pages.put(pageIndex, new Page(pageIndex));
+        return true;
+    }
+
+    /**
+     * Stores the entries of a loaded page.
+     * The page is dropped if the cache was reset or the page was evicted since it started loading.
+     * @param generation The generation the page was requested in
+     * @param pageIndex The index of the loaded page
+     * @param items The loaded entries
+     * @return True if the page was stored
+     */
+    boolean put(int generation, int pageIndex, EntityHistory[] items) {
+        if(generation != this.generation) {
+            return false;
+        }
+
+        Page page = pages.get(pageIndex);
+        if(page == null) {
+            return false;
+        }
+
+        page.items = items;
+        return true;
+    }
+
+    /** Removes a page that failed to load, so it is requested again when it is displayed. */
+    void fail(int generation, int pageIndex) {
+        if(generation == this.generation) {
+            Page page = pages.get(pageIndex);
+            if(page != null && page.items == null) {
+                pages.remove(pageIndex);
+            }
+        }
+    }
+
+    /** A page of entries. */
+    private static class Page {
+
+        /** The index of the page. */
+        private final int index;
+        /** The entries of the page (or null while it is loading). */
+        private EntityHistory[] items;
+
+        /** Private constructor. */
+        private Page(int index) {
+            this.index = index;
+        }
+
+    }
+
+}
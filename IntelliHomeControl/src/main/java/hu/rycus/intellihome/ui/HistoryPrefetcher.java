@@ -0,0 +1,151 @@
+package hu.rycus.intellihome.ui;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+
+/**
+ * Scroll listener deciding which pages of the history should be loaded.
+ * It tracks the (smoothed) scroll velocity and direction of the list
+ * and sizes the window of pages to load ahead of the viewport accordingly:
+ * a single page on both sides when the list is idle or scrolled slowly,
+ * and more pages (only) in the direction of the scrolling when it is fast.
+ * The pages falling out of the window should not be requested anymore.
+ *
+ * Created by Viktor Adam on 2/2/14.
+ */
+class HistoryPrefetcher implements AbsListView.OnScrollListener {
+
+    /** The weight of the latest velocity sample in the smoothed velocity. */
+    private static final float SMOOTHING = 0.4f; // TODO magic number
+    /** The velocity (in rows per millisecond) below which the list is considered idle. */
+    private static final float IDLE_VELOCITY = 0.005f; // TODO magic number
+    /** The time (in milliseconds) the rows scrolled in are prefetched for. */
+    private static final long LOOKAHEAD = 1000L; // TODO magic number
+    /** The maximal number of pages loaded ahead of the viewport. */
+    private static final int MAX_AHEAD = 4; // TODO magic number
+
+    /** The callback to notify when the window of pages to load changes. */
+    private final Callback callback;
+
+    /** The smoothed scroll velocity in rows per millisecond (negative when scrolling up). */
+    private float velocity = 0f;
+
+    /** The first visible position at the last scroll event. */
+    private int lastFirst = -1;
+    /** The number of visible rows at the last scroll event. */
+    private int lastVisible = 0;
+    /** The total number of rows at the last scroll event. */
+    private int lastTotal = 0;
+    /** The time (from SystemClock.uptimeMillis()) of the last scroll event. */
+    private long lastTime = 0L;
+
+    /** The number of rows displayed before the paged entries (the entries pushed since the pages were counted). */
+    private int offset = 0;
+
+    /** The first page of the current window (or -1 if there is none). */
+    private int windowFrom = -1;
+    /** The last page of the current window (or -1 if there is none). */
+    private int windowTo = -1;
+
+    /**
+     * Package-private constructor.
+     * @param callback The callback to notify when the window of pages to load changes
+     */
+    HistoryPrefetcher(Callback callback) {
+        this.callback = callback;
+    }
+
+    /** Forgets the scroll state and the window (when the list is reloaded). */
+    void reset() {
+        velocity = 0f;
+        lastFirst = -1;
+        lastTime = 0L;
+        windowFrom = -1;
+        windowTo = -1;
+    }
+
+    /** Sets the number of rows displayed before the paged entries (the rows do not belong to any page). */
+    void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if(scrollState == SCROLL_STATE_IDLE) {
+            velocity = 0f;
+            update(lastFirst, lastVisible, lastTotal);
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        // the velocity is sampled when the first visible row changes (the list reports every frame)
+        long now = SystemClock.uptimeMillis();
+        if(firstVisibleItem != lastFirst) {
+            if(lastFirst >= 0 && now > lastTime) {
+                float sample = (firstVisibleItem - lastFirst) / (float) (now - lastTime);
+                velocity = velocity * (1f - SMOOTHING) + sample * SMOOTHING;
+            }
+
+            lastTime = now;
+        }
+
+        lastFirst = firstVisibleItem;
+        lastVisible = visibleItemCount;
+        lastTotal = totalItemCount;
+
+        update(firstVisibleItem, visibleItemCount, totalItemCount);
+    }
+
+    /** Recalculates the window of pages to load and notifies the callback if it changed. */
+    private void update(int first, int visible, int total) {
+        if(first < 0) return;
+
+        // the rows before the paged entries are skipped
+        visible = Math.max(0, visible - Math.max(0, offset - first));
+        first = Math.max(0, first - offset);
+        total -= offset;
+
+        if(total <= 0) return;
+
+        int firstPage = HistoryPageCache.getPageIndex(first);
+        int lastPage  = HistoryPageCache.getPageIndex(Math.min(first + Math.max(visible, 1), total) - 1);
+        int maxPage   = HistoryPageCache.getPageIndex(total - 1);
+
+        int direction = 0;
+        int ahead = 1;
+        if(Math.abs(velocity) >= IDLE_VELOCITY) {
+            direction = velocity > 0 ? 1 : -1;
+
+            float rows = Math.abs(velocity) * LOOKAHEAD;
+            ahead = Math.max(1, Math.min(MAX_AHEAD, (int) Math.ceil(rows / HistoryPageCache.PAGE_SIZE)));
+        }
+
+        int from = firstPage - (direction > 0 ? 0 : ahead);
+        int to   = lastPage  + (direction < 0 ? 0 : ahead);
+
+        from = Math.max(0, from);
+        to   = Math.min(maxPage, to);
+
+        if(from != windowFrom || to != windowTo) {
+            windowFrom = from;
+            windowTo = to;
+
+            callback.onWindowChanged(from, to, direction);
+        }
+    }
+
+    /** Callback interface to receive the window of pages to load. */
+    interface Callback {
+
+        /**
+         * Called when the window of pages to load changes.
+         * @param fromPage The first page of the window
+         * @param toPage The last page of the window (inclusive)
+         * @param direction The direction of the scrolling (1 down, -1 up, 0 idle)
+         */
+        void onWindowChanged(int fromPage, int toPage, int direction);
+
+    }
+
+}
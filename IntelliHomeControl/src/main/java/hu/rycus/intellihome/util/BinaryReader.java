@@ -0,0 +1,100 @@
+package hu.rycus.intellihome.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * Reader for the compact binary wire format.
+ * Binary payloads start with a zero marker byte (which never starts a text payload)
+ * and contain length-prefixed UTF-8 strings, unsigned variable-length integers
+ * (seven bits per byte, least significant group first) and eight byte big-endian timestamps.
+ *
+ * Created by Viktor Adam on 1/22/14.
+ */
+public class BinaryReader {
+
+    /** The first byte of binary payloads. */
+    public static final int MARKER = 0x00;
+
+    /** The character set of the strings. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The binary data to read. */
+    private final byte[] data;
+    /** The end of the readable data. */
+    private final int limit;
+    /** The current read position. */
+    private int position;
+
+    /**
+     * Public constructor reading the payload after the marker byte.
+     * @param data The binary payload including the marker byte
+     */
+    public BinaryReader(byte[] data) {
+        this.data = data;
+        this.limit = data.length;
+        this.position = 1;
+    }
+
+    /** Returns true, if the given payload is in the binary format. */
+    public static boolean isBinary(byte[] data) {
+        return data != null && data.length > 0 && data[0] == MARKER;
+    }
+
+    /** Returns true, if there is more data to read. */
+    public boolean hasRemaining() { return position < limit; }
+
+    /** Reads an unsigned variable-length integer. */
+    public int readVarint() {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Malformed variable-length integer at " + position);
+    }
+
+    /** Reads an eight byte big-endian timestamp in milliseconds. */
+    public long readTimestamp() {
+        ensure(8);
+
+        long value = 0L;
+        for(int idx = 0; idx < 8; idx++) {
+            value = (value << 8) | (data[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    /** Reads a length-prefixed string. */
+    public String readString() {
+        int length = readVarint();
+        ensure(length);
+
+        String value = length > 0 ? new String(data, position, length, UTF8) : "";
+        position += length;
+        return value;
+    }
+
+    /** Reads a length-prefixed string returning null instead of an empty string. */
+    public String readOptionalString() {
+        String value = readString();
+        return value.isEmpty() ? null : value;
+    }
+
+    /** Reads a single unsigned byte. */
+    private int readByte() {
+        ensure(1);
+        return data[position++] & 0xFF;
+    }
+
+    /** Checks that the given number of bytes can be read. */
+    private void ensure(int count) {
+        if(count < 0 || position + count > limit) {
+            throw new IllegalArgumentException("Unexpected end of binary data at " + position);
+        }
+    }
+
+}
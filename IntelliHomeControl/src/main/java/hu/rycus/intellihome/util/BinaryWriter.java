@@ -0,0 +1,56 @@
+package hu.rycus.intellihome.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writer for the compact binary format read by {@link BinaryReader}
+ * (used to persist data locally in the same layout the server sends it).
+ *
+ * Created by Viktor Adam on 1/29/14.
+ */
+public class BinaryWriter {
+
+    /** The character set of the strings. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The buffer holding the written data. */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024); // TODO magic number
+
+    /** Public constructor writing the marker byte. */
+    public BinaryWriter() {
+        buffer.write(BinaryReader.MARKER);
+    }
+
+    /** Writes an unsigned variable-length integer. */
+    public BinaryWriter writeVarint(int value) {
+        while((value & ~0x7F) != 0) {
+            buffer.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.write(value);
+        return this;
+    }
+
+    /** Writes an eight byte big-endian timestamp in milliseconds. */
+    public BinaryWriter writeTimestamp(long value) {
+        for(int shift = 56; shift >= 0; shift -= 8) {
+            buffer.write((int) (value >>> shift) & 0xFF);
+        }
+        return this;
+    }
+
+    /** Writes a length-prefixed string (an empty one for null). */
+    public BinaryWriter writeString(String value) {
+        byte[] bytes = value != null ? value.getBytes(UTF8) : new byte[0];
+        writeVarint(bytes.length);
+        buffer.write(bytes, 0, bytes.length);
+        return this;
+    }
+
+    /** Returns the written data including the marker byte. */
+    public byte[] toByteArray() {
+        return buffer.toByteArray();
+    }
+
+}
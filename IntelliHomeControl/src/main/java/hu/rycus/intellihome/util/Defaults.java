@@ -16,6 +16,13 @@ public interface Defaults {
         String  MCAST_GROUP     = "227.1.1.10";
         String  BCAST_ADDRESS   = "255.255.255.255";
 
+        boolean PIPELINE        = false;
+        boolean SEQUENCED       = false;
+        boolean BINARY          = false;
+
+        String  BATCH_WINDOW    = "50";
+        String  IMAGE_REQUESTS  = "4";
+
     }
 
     /** Authentication related defaults. */
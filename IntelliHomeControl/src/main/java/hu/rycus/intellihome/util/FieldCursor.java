@@ -0,0 +1,251 @@
+package hu.rycus.intellihome.util;
+
+/**
+ * Cursor over the delimited text data received from the server.
+ * Numbers are parsed in place without creating temporary strings,
+ * and strings are only sliced from the data for the fields that are actually retained.
+ * Frequently repeated values (like state names) can be read through a shared pool
+ * so that equal values share a single String instance.
+ *
+ * Created by Viktor Adam on 1/23/14.
+ */
+public class FieldCursor {
+
+    /** The number of slots in the pool of shared string values (must be a power of two). */
+    private static final int POOL_SIZE = 256; // TODO magic number
+    /** The maximum length of the strings stored in the pool. */
+    private static final int POOL_MAX_LENGTH = 32; // TODO magic number
+
+    /**
+     * Pool of shared string values indexed by their hash.
+     * Concurrent access is harmless: a slot either holds a complete String or gets overwritten.
+     */
+    private static final String[] pool = new String[POOL_SIZE];
+
+    /** The text data to read. */
+    private final String data;
+    /** The end of the readable data. */
+    private final int limit;
+    /** The current read position. */
+    private int position;
+
+    /**
+     * Public constructor reading the data from the given offset to its end.
+     * @param data The text data received from the server
+     * @param offset The position to start reading at
+     */
+    public FieldCursor(String data, int offset) {
+        this(data, offset, data.length());
+    }
+
+    /**
+     * Public constructor reading a range of the data.
+     * @param data The text data received from the server
+     * @param offset The position to start reading at
+     * @param limit The end of the readable data (exclusive)
+     */
+    public FieldCursor(String data, int offset, int limit) {
+        this.data = data;
+        this.limit = limit;
+        this.position = offset;
+    }
+
+    /** Returns the current read position. */
+    public int getPosition() { return position; }
+    /** Returns true, if there is more data to read. */
+    public boolean hasRemaining() { return position < limit; }
+    /** Returns the character at the current position without consuming it. */
+    public char peek() { return data.charAt(position); }
+    /** Consumes the character at the current position. */
+    public void skip() { position++; }
+
+    /**
+     * Consumes the character at the current position if it equals the given one.
+     * @return True if the character was consumed
+     */
+    public boolean skip(char expected) {
+        if(position < limit && data.charAt(position) == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a decimal integer and consumes the delimiter following it (if any).
+     * @throws NumberFormatException if the field does not start with a number
+     */
+    public int readInt() {
+        int start = position;
+        boolean negative = skip('-');
+
+        int value = 0;
+        int digits = 0;
+        while(position < limit) {
+            int digit = data.charAt(position) - '0';
+            if(digit < 0 || digit > 9) break;
+
+            value = value * 10 + digit;
+            digits++;
+            position++;
+        }
+
+        if(digits == 0) {
+            throw new NumberFormatException("Invalid integer at " + start + " in: " + data);
+        }
+
+        skipDelimiter();
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads a timestamp given in seconds (optionally with fractional digits)
+     * as milliseconds and consumes the delimiter following it (if any).
+     * Digits after the milliseconds are truncated.
+     * @throws NumberFormatException if the field does not start with a number
+     */
+    public long readMillis() {
+        int start = position;
+
+        long seconds = 0L;
+        int digits = 0;
+        while(position < limit) {
+            int digit = data.charAt(position) - '0';
+            if(digit < 0 || digit > 9) break;
+
+            seconds = seconds * 10L + digit;
+            digits++;
+            position++;
+        }
+
+        long millis = 0L;
+        if(skip('.')) {
+            int scale = 100;
+            while(position < limit) {
+                int digit = data.charAt(position) - '0';
+                if(digit < 0 || digit > 9) break;
+
+                millis += digit * scale;
+                scale /= 10;
+                digits++;
+                position++;
+            }
+        }
+
+        if(position < limit && (data.charAt(position) == 'e' || data.charAt(position) == 'E')) {
+            // exponent notation is rare enough to leave it for the JDK parser
+            int end = position + 1;
+            while(end < limit && "+-0123456789".indexOf(data.charAt(end)) >= 0) end++;
+
+            double value = Double.parseDouble(data.substring(start, end));
+            position = end;
+            skipDelimiter();
+            return (long) (value * 1000L);
+        }
+
+        if(digits == 0) {
+            throw new NumberFormatException("Invalid timestamp at " + start + " in: " + data);
+        }
+
+        skipDelimiter();
+        return seconds * 1000L + millis;
+    }
+
+    /** Reads a string until the given delimiter (or the end of the data) and consumes the delimiter. */
+    public String readString(char delimiter) {
+        int start = position;
+        int end = find(delimiter, delimiter);
+
+        position = end;
+        skipDelimiter();
+        return data.substring(start, end);
+    }
+
+    /**
+     * Reads a string like {@link #readString(char)} but returns null
+     * instead of an empty or blank value without creating a string for it.
+     */
+    public String readOptionalString(char delimiter) {
+        int start = position;
+        int end = find(delimiter, delimiter);
+
+        position = end;
+        skipDelimiter();
+        return isBlank(start, end) ? null : data.substring(start, end);
+    }
+
+    /**
+     * Reads a string until either of the given delimiters (or the end of the data)
+     * without consuming the delimiter and returns null instead of an empty or blank value.
+     */
+    public String readOptionalStringBefore(char delimiter1, char delimiter2) {
+        int start = position;
+        int end = find(delimiter1, delimiter2);
+
+        position = end;
+        return isBlank(start, end) ? null : data.substring(start, end);
+    }
+
+    /**
+     * Reads a frequently repeated string value until the given delimiter
+     * (or the end of the data) and consumes the delimiter.
+     * Equal values read with this method share the same String instance
+     * and a new instance is only created if the value is not in the pool yet.
+     */
+    public String readShared(char delimiter) {
+        int start = position;
+        int end = find(delimiter, delimiter);
+
+        position = end;
+        skipDelimiter();
+
+        int length = end - start;
+        if(length == 0) {
+            return "";
+        } else if(length > POOL_MAX_LENGTH) {
+            return data.substring(start, end);
+        }
+
+        int hash = 0;
+        for(int idx = start; idx < end; idx++) {
+            hash = 31 * hash + data.charAt(idx);
+        }
+
+        int slot = (hash ^ (hash >>> 16)) & (POOL_SIZE - 1);
+        String pooled = pool[slot];
+        if(pooled != null && pooled.length() == length && data.regionMatches(start, pooled, 0, length)) {
+            return pooled;
+        }
+
+        String value = data.substring(start, end);
+        pool[slot] = value;
+        return value;
+    }
+
+    /** Returns the position of the first of the given delimiters (or the limit if not found). */
+    private int find(char delimiter1, char delimiter2) {
+        int idx = position;
+        while(idx < limit) {
+            char c = data.charAt(idx);
+            if(c == delimiter1 || c == delimiter2) break;
+            idx++;
+        }
+        return idx;
+    }
+
+    /** Returns true if the given range of the data contains only whitespace. */
+    private boolean isBlank(int start, int end) {
+        for(int idx = start; idx < end; idx++) {
+            if(data.charAt(idx) > ' ') return false;
+        }
+        return true;
+    }
+
+    /** Consumes the delimiter at the current position (if not at the end of the data). */
+    private void skipDelimiter() {
+        if(position < limit) {
+            position++;
+        }
+    }
+
+}
@@ -19,9 +19,14 @@ public class MD5Util {
 
     /** Retruns the hex representation for the MD5 hash of the given string. */
     public static String toMD5(String source) {
+        return toMD5(source.getBytes());
+    }
+
+    /** Returns the hex representation for the MD5 hash of the given data. */
+    public static String toMD5(byte[] source) {
         try {
             MessageDigest digester = MessageDigest.getInstance("MD5");
-            digester.update(source.getBytes());
+            digester.update(source);
             byte[] digest = digester.digest();
 
             StringBuilder hexBuilder = new StringBuilder();
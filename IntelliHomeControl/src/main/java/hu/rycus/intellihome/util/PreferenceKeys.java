@@ -14,6 +14,11 @@ public interface PreferenceKeys {
         String MODE     = PREFIX + "mode";
         String HOST     = PREFIX + "host";
         String PORT     = PREFIX + "port";
+        String PIPELINE = PREFIX + "pipeline";
+        String SEQUENCED= PREFIX + "sequenced";
+        String BINARY   = PREFIX + "binary";
+        String BATCH_WINDOW = PREFIX + "batch_window";
+        String IMAGE_REQUESTS = PREFIX + "image_requests";
 
     }
 
@@ -0,0 +1,35 @@
+package hu.rycus.intellihome.standin;
+
+/**
+ * Standard Base64 encoder (the JDK only has a public one since Java 8).
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+final class Base64 {
+
+    /** The alphabet of the encoding. */
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /** Private constructor (static methods only). */
+    private Base64() { }
+
+    /** Encodes the given data with padding and without line breaks. */
+    static String encode(byte[] data) {
+        StringBuilder builder = new StringBuilder((data.length + 2) / 3 * 4);
+
+        for(int idx = 0; idx < data.length; idx += 3) {
+            int b0 = data[idx] & 0xFF;
+            int b1 = idx + 1 < data.length ? data[idx + 1] & 0xFF : 0;
+            int b2 = idx + 2 < data.length ? data[idx + 2] & 0xFF : 0;
+
+            builder.append(ALPHABET[b0 >> 2]);
+            builder.append(ALPHABET[((b0 & 0x03) << 4) | (b1 >> 4)]);
+            builder.append(idx + 1 < data.length ? ALPHABET[((b1 & 0x0F) << 2) | (b2 >> 6)] : '=');
+            builder.append(idx + 2 < data.length ? ALPHABET[b2 & 0x3F] : '=');
+        }
+
+        return builder.toString();
+    }
+
+}
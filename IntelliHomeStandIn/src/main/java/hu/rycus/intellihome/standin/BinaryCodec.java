@@ -0,0 +1,131 @@
+package hu.rycus.intellihome.standin;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact binary wire format: a zero marker byte followed by
+ * unsigned variable-length integers (seven bits per byte, least significant group first),
+ * length-prefixed UTF-8 strings (empty if not set) and eight byte big-endian timestamps in milliseconds.
+ * Lists are prefixed with the number of their items.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+class BinaryCodec implements Codec {
+
+    /** The first byte of binary payloads. */
+    private static final int MARKER = 0x00;
+
+    @Override
+    public byte[] encodeTypes(List<Home.DeviceType> types) {
+        ByteArrayOutputStream output = start(256);
+        writeVarint(output, types.size());
+        for(Home.DeviceType type : types) {
+            writeVarint(output, type.id);
+            writeString(output, type.name);
+            writeString(output, type.colorCode);
+            writeString(output, type.imageFilename);
+
+            writeVarint(output, type.commands.size());
+            for(Home.Command command : type.commands) {
+                writeVarint(output, command.id);
+                writeString(output, command.name);
+                writeString(output, command.parameterType);
+            }
+        }
+        return output.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeDevices(List<Home.Device> devices) {
+        ByteArrayOutputStream output = start(devices.size() * 40 + 8);
+        writeVarint(output, devices.size());
+        for(Home.Device device : devices) {
+            writeDevice(output, device);
+        }
+        return output.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeDevice(Home.Device device) {
+        ByteArrayOutputStream output = start(48);
+        writeDevice(output, device);
+        return output.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeHistory(List<Home.HistoryEntry> entries) {
+        ByteArrayOutputStream output = start(entries.size() * 48 + 8);
+        writeHistory(output, entries);
+        return output.toByteArray();
+    }
+
+    @Override
+    public byte[] encodeHistoryOverview(Home.HistoryOverview overview) {
+        // the count, the list of day (days since the epoch) and count pairs, then the entries
+        ByteArrayOutputStream output = start(overview.entries.size() * 48 + overview.days.size() * 6 + 16);
+        writeVarint(output, overview.count);
+        writeVarint(output, overview.days.size());
+        for(Map.Entry<Long, Integer> day : overview.days.entrySet()) {
+            writeVarint(output, day.getKey().intValue());
+            writeVarint(output, day.getValue());
+        }
+        writeHistory(output, overview.entries);
+        return output.toByteArray();
+    }
+
+    /** Writes a list of history entries. */
+    private static void writeHistory(ByteArrayOutputStream output, List<Home.HistoryEntry> entries) {
+        writeVarint(output, entries.size());
+        for(Home.HistoryEntry entry : entries) {
+            writeTimestamp(output, entry.timestamp);
+            writeString(output, entry.entityId);
+            writeString(output, entry.entityName);
+            writeString(output, entry.action);
+            writeString(output, entry.actionType);
+        }
+    }
+
+    /** Writes a device with its state. */
+    private static void writeDevice(ByteArrayOutputStream output, Home.Device device) {
+        writeString(output, device.id);
+        writeVarint(output, device.type.id);
+        writeString(output, device.name);
+        writeVarint(output, device.state.id);
+        writeString(output, device.state.name);
+        writeString(output, device.stateValue);
+        writeTimestamp(output, device.lastCheckin);
+    }
+
+    /** Creates an output stream with the marker byte written. */
+    private static ByteArrayOutputStream start(int capacity) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(capacity);
+        output.write(MARKER);
+        return output;
+    }
+
+    /** Writes an unsigned variable-length integer. */
+    private static void writeVarint(ByteArrayOutputStream output, int value) {
+        while((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    /** Writes a length-prefixed string (empty if null). */
+    private static void writeString(ByteArrayOutputStream output, String value) {
+        byte[] bytes = value != null ? value.getBytes(Protocol.CHARSET) : new byte[0];
+        writeVarint(output, bytes.length);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    /** Writes an eight byte big-endian timestamp. */
+    private static void writeTimestamp(ByteArrayOutputStream output, long value) {
+        for(int shift = 56; shift >= 0; shift -= 8) {
+            output.write((int) (value >>> shift) & 0xFF);
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package hu.rycus.intellihome.standin;
+
+import java.util.List;
+
+/**
+ * Encodes the responses carrying model objects in one of the wire formats
+ * the client can negotiate at login.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+interface Codec {
+
+    /** Encodes the response of MSG_A_LIST_DEVICE_TYPES. */
+    byte[] encodeTypes(List<Home.DeviceType> types);
+
+    /** Encodes the response of MSG_A_LIST_DEVICES. */
+    byte[] encodeDevices(List<Home.Device> devices);
+
+    /** Encodes a MSG_A_STATE_CHANGED message. */
+    byte[] encodeDevice(Home.Device device);
+
+    /** Encodes the response of MSG_A_LIST_HISTORY. */
+    byte[] encodeHistory(List<Home.HistoryEntry> entries);
+
+    /** Encodes the response of MSG_A_QUERY_HISTORY. */
+    byte[] encodeHistoryOverview(Home.HistoryOverview overview);
+
+}
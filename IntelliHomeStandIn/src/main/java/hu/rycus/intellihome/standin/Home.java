@@ -0,0 +1,641 @@
+package hu.rycus.intellihome.standin;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The simulated home of the stand-in server: device types, devices with their states,
+ * the history of events and the users of the system.
+ * Devices, history entries and users are immutable so they can be encoded outside of the lock.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+class Home {
+
+    /** The "on" state. */
+    static final State ON       = new State(1, "on");
+    /** The "off" state. */
+    static final State OFF      = new State(2, "off");
+    /** The "dimmed" state (with the level as state value). */
+    static final State DIMMED   = new State(3, "dimmed");
+    /** The "active" state of sensors (with the reading as state value). */
+    static final State ACTIVE   = new State(4, "active");
+
+    /** The command identifiers. */
+    private static final int CMD_ON = 1, CMD_OFF = 2, CMD_DIM = 3;
+
+    /** The length of a day in milliseconds. */
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+
+    /** The device types of the home. */
+    private final List<DeviceType> types = new ArrayList<>();
+    /** The devices of the home by identifier (in creation order). */
+    private final Map<String, Device> devices = new LinkedHashMap<>();
+    /** The devices of the home in creation order (for random access). */
+    private final List<String> deviceIds = new ArrayList<>();
+    /** The history entries in chronological order (ordered by timestamp and device identifier, see {@link HistoryEntry#compareTo(long, String)}). */
+    private final List<HistoryEntry> history = new ArrayList<>();
+    /** The most recently recorded history entry (or null if there is none). */
+    private HistoryEntry latestHistory;
+    /** The users of the system by identifier. */
+    private final Map<Integer, User> users = new LinkedHashMap<>();
+
+    /** The generated type images by filename. */
+    private final Map<String, byte[]> images = new ConcurrentHashMap<>();
+    /** The width and height of the generated type images. */
+    private final int imageSize;
+
+    /** The identifier of the next created user. */
+    private int nextUserId = 1;
+
+    /**
+     * Package-private constructor creating a home with generated contents.
+     * @param deviceCount The number of devices to create
+     * @param historyRows The number of history entries to create (spread over the last week)
+     * @param imageSize The width and height of the generated type images
+     * @param random The random generator to use
+     */
+    Home(int deviceCount, int historyRows, int imageSize, Random random) {
+        this.imageSize = imageSize;
+
+        types.add(new DeviceType(1, "Switch", "#FF33B5E5", "switch.png",
+                new Command(CMD_ON, "Turn on", null), new Command(CMD_OFF, "Turn off", null)));
+        types.add(new DeviceType(2, "Dimmer", "#FF99CC00", "dimmer.png",
+                new Command(CMD_ON, "Turn on", null), new Command(CMD_OFF, "Turn off", null),
+                new Command(CMD_DIM, "Dim", "range(0-100)")));
+        types.add(new DeviceType(3, "Sensor", "#FFFFBB33", "sensor.png"));
+
+        long now = System.currentTimeMillis();
+
+        for(int idx = 0; idx < deviceCount; idx++) {
+            DeviceType type = types.get(idx % types.size());
+            String id = String.format(Locale.US, "%s-%05d", type.name.toLowerCase(Locale.US), idx + 1);
+            String name = type.name + " #" + (idx + 1);
+
+            Device device = type.id == 3
+                    ? new Device(id, type, name, ACTIVE, reading(random), now)
+                    : new Device(id, type, name, OFF, null, now);
+            devices.put(id, device);
+            deviceIds.add(id);
+        }
+
+        if(!deviceIds.isEmpty()) {
+            long week = 7L * 24L * 60L * 60L * 1000L;
+            for(int idx = 0; idx < historyRows; idx++) {
+                long timestamp = now - week + (week * idx / Math.max(historyRows, 1));
+                Device device = devices.get(deviceIds.get(random.nextInt(deviceIds.size())));
+                addHistory(new HistoryEntry(timestamp, device.id, device.name, "State: " + device.state.name, "state"));
+            }
+        }
+
+        addUser("admin", md5("admin"), true);
+        addUser("user", md5("user"), false);
+    }
+
+    /** Returns the device types. */
+    synchronized List<DeviceType> getTypes() {
+        return new ArrayList<>(types);
+    }
+
+    /** Returns the devices of the given type (or all devices if the type is null). */
+    synchronized List<Device> getDevices(Integer typeId) {
+        List<Device> result = new ArrayList<>(devices.size());
+        for(Device device : devices.values()) {
+            if(typeId == null || device.type.id == typeId) {
+                result.add(device);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the number of devices. */
+    synchronized int getDeviceCount() { return devices.size(); }
+
+    /**
+     * Executes a command on a device.
+     * @return The device with its new state or null if the device or the command is unknown
+     */
+    synchronized Device execute(String deviceId, int commandId, String parameter) {
+        Device device = devices.get(deviceId);
+        if(device == null) return null;
+
+        Device changed;
+        String action;
+        switch (commandId) {
+            case CMD_ON:
+                changed = device.withState(ON, null);
+                action = "Turned on";
+                break;
+            case CMD_OFF:
+                changed = device.withState(OFF, null);
+                action = "Turned off";
+                break;
+            case CMD_DIM:
+                changed = device.withState(DIMMED, parameter != null ? parameter : "50");
+                action = "Dimmed to " + changed.stateValue + "%";
+                break;
+            default:
+                return null;
+        }
+
+        return update(changed, action, "command");
+    }
+
+    /**
+     * Renames a device.
+     * @return The renamed device or null if the device is unknown
+     */
+    synchronized Device rename(String deviceId, String name) {
+        Device device = devices.get(deviceId);
+        if(device == null) return null;
+
+        return update(device.withName(name), "Renamed to " + name, "rename");
+    }
+
+    /**
+     * Changes the state of a random device (like the devices of a real home would).
+     * @return The changed device or null if there are no devices
+     */
+    synchronized Device changeRandomDevice(Random random) {
+        if(deviceIds.isEmpty()) return null;
+
+        Device device = devices.get(deviceIds.get(random.nextInt(deviceIds.size())));
+        switch (device.type.id) {
+            case 1:
+                return update(device.withState(device.state == ON ? OFF : ON, null), "State: " + (device.state == ON ? "off" : "on"), "state");
+            case 2:
+                String level = Integer.toString(random.nextInt(101));
+                return update(device.withState(DIMMED, level), "Level: " + level + "%", "state");
+            default:
+                String reading = reading(random);
+                return update(device.withState(ACTIVE, reading), "Reading: " + reading, "state");
+        }
+    }
+
+    /** Stores the changed device and records the change in the history. */
+    private Device update(Device changed, String action, String actionType) {
+        devices.put(changed.id, changed);
+        addHistory(new HistoryEntry(changed.lastCheckin, changed.id, changed.name, action, actionType));
+        return changed;
+    }
+
+    /** Inserts a history entry keeping the order of the keys (appending it in the usual case). */
+    private void addHistory(HistoryEntry entry) {
+        int index = history.size();
+        while(index > 0 && history.get(index - 1).compareTo(entry.timestamp, entry.entityId) > 0) {
+            index--;
+        }
+        history.add(index, entry);
+        latestHistory = entry;
+    }
+
+    /** Returns the most recently recorded history entry (the one of the last change, or null if there is none). */
+    synchronized HistoryEntry getLatestHistory() {
+        return latestHistory;
+    }
+
+    /**
+     * Returns the number of history entries ordered before the given key
+     * (the index of the first entry not less than the key).
+     */
+    private int countBefore(long timestamp, String entityId) {
+        int low = 0;
+        int high = history.size();
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(history.get(middle).compareTo(timestamp, entityId) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Counts the history entries matching the filters.
+     * @param from The start of the time range in milliseconds (inclusive, null if unbounded)
+     * @param to The end of the time range in milliseconds (inclusive, null if unbounded)
+     * @param deviceId The identifier of the device (null for all devices)
+     */
+    synchronized int countHistory(Long from, Long to, String deviceId) {
+        int count = 0;
+        for(HistoryEntry entry : history) {
+            if(entry.matches(from, to, deviceId)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Lists the history entries matching the filters, the most recent ones first.
+     * @param from The start of the time range in milliseconds (inclusive, null if unbounded)
+     * @param to The end of the time range in milliseconds (inclusive, null if unbounded)
+     * @param deviceId The identifier of the device (null for all devices)
+     * @param limit The maximum number of entries to return
+     * @param offset The number of matching entries to skip
+     */
+    synchronized List<HistoryEntry> listHistory(Long from, Long to, String deviceId, int limit, int offset) {
+        List<HistoryEntry> result = new ArrayList<>(Math.min(limit, 1000));
+
+        int skipped = 0;
+        for(int idx = history.size() - 1; idx >= 0 && result.size() < limit; idx--) {
+            HistoryEntry entry = history.get(idx);
+            if(entry.matches(from, to, deviceId)) {
+                if(skipped < offset) {
+                    skipped++;
+                } else {
+                    result.add(entry);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Lists the history entries matching the filters that are ordered before the given key
+     * (the key of the last entry the client has seen), the most recent ones first.
+     * The starting position is found with a binary search, so the cost does not depend on the depth of the page.
+     * @param from The start of the time range in milliseconds (inclusive, null if unbounded)
+     * @param to The end of the time range in milliseconds (inclusive, null if unbounded)
+     * @param deviceId The identifier of the device (null for all devices)
+     * @param limit The maximum number of entries to return
+     * @param afterTimestamp The timestamp of the last seen entry in milliseconds
+     * @param afterDeviceId The identifier of the device of the last seen entry
+     */
+    synchronized List<HistoryEntry> listHistoryAfter(Long from, Long to, String deviceId, int limit,
+                                                     long afterTimestamp, String afterDeviceId) {
+        List<HistoryEntry> result = new ArrayList<>(Math.min(limit, 1000));
+
+        int start = countBefore(afterTimestamp, afterDeviceId);
+        if(to != null && to < Long.MAX_VALUE) {
+            start = Math.min(start, countBefore(to + 1, ""));
+        }
+
+        for(int idx = start - 1; idx >= 0 && result.size() < limit; idx--) {
+            HistoryEntry entry = history.get(idx);
+            if(from != null && entry.timestamp < from) {
+                break; // the remaining entries are older
+            }
+
+            if(entry.matches(from, to, deviceId)) {
+                result.add(entry);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Counts the history entries matching the filters (in total and by day) and lists the first page of them
+     * in a single pass over the matching time range.
+     * @param from The start of the time range in milliseconds (inclusive, null if unbounded)
+     * @param to The end of the time range in milliseconds (inclusive, null if unbounded)
+     * @param deviceId The identifier of the device (null for all devices)
+     * @param limit The maximum number of entries to return
+     * @param zoneOffset The offset of the client's time zone from UTC in milliseconds (the days are counted in it)
+     */
+    synchronized HistoryOverview queryHistory(Long from, Long to, String deviceId, int limit, long zoneOffset) {
+        HistoryOverview overview = new HistoryOverview(Math.min(limit, 1000));
+
+        int start = from != null ? countBefore(from, "") : 0;
+        int end = to != null && to < Long.MAX_VALUE ? countBefore(to + 1, "") : history.size();
+
+        // the entries are walked in descending order, so the entries of a day are contiguous
+        // and the day has to be calculated only when an entry is older than the start of the current one
+        long day = Long.MIN_VALUE;
+        long dayStart = Long.MAX_VALUE;
+        int dayCount = 0;
+
+        for(int idx = end - 1; idx >= start; idx--) {
+            HistoryEntry entry = history.get(idx);
+            if(deviceId != null && !deviceId.equals(entry.entityId)) {
+                continue;
+            }
+
+            overview.count++;
+            if(overview.entries.size() < limit) {
+                overview.entries.add(entry);
+            }
+
+            if(entry.timestamp < dayStart) {
+                if(dayCount > 0) overview.days.put(day, dayCount);
+                long local = entry.timestamp + zoneOffset;
+                day = (local >= 0 ? local : local - DAY + 1) / DAY;
+                dayStart = day * DAY - zoneOffset;
+                dayCount = 0;
+            }
+            dayCount++;
+        }
+
+        if(dayCount > 0) overview.days.put(day, dayCount);
+
+        return overview;
+    }
+
+    /** Returns the users of the system. */
+    synchronized List<User> getUsers() {
+        return new ArrayList<>(users.values());
+    }
+
+    /**
+     * Authenticates a user.
+     * @param username The name of the user
+     * @param passwordHash The MD5 hash of the password of the user
+     * @return The authenticated user or null if the credentials are invalid
+     */
+    synchronized User authenticate(String username, String passwordHash) {
+        for(User user : users.values()) {
+            if(user.name.equals(username) && user.passwordHash.equalsIgnoreCase(passwordHash)) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    /** Creates a new (non-administrator) user. */
+    synchronized User addUser(String username, String passwordHash) {
+        return addUser(username, passwordHash, false);
+    }
+
+    /** Creates a new user. */
+    private User addUser(String username, String passwordHash, boolean administrator) {
+        User user = new User(nextUserId++, username, passwordHash, administrator);
+        users.put(user.id, user);
+        return user;
+    }
+
+    /**
+     * Changes the name and password of a user.
+     * @return True if the user exists
+     */
+    synchronized boolean editUser(int userId, String username, String passwordHash) {
+        User user = users.get(userId);
+        if(user == null) return false;
+
+        users.put(userId, new User(userId, username, passwordHash, user.administrator));
+        return true;
+    }
+
+    /**
+     * Deletes a user.
+     * @return True if the user existed
+     */
+    synchronized boolean deleteUser(int userId) {
+        return users.remove(userId) != null;
+    }
+
+    /**
+     * Returns the image with the given filename as PNG data.
+     * @return The image data or null if there is no type with the given image
+     */
+    byte[] getImage(String filename) {
+        byte[] image = images.get(filename);
+        if(image != null) return image;
+
+        for(DeviceType type : getTypes()) {
+            if(filename.equals(type.imageFilename)) {
+                image = renderImage(type);
+                images.put(filename, image);
+                return image;
+            }
+        }
+
+        return null;
+    }
+
+    /** Renders a simple image for a device type. */
+    private byte[] renderImage(DeviceType type) {
+        BufferedImage image = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setColor(new Color((int) Long.parseLong(type.colorCode.substring(1), 16), true));
+            graphics.fillOval(0, 0, imageSize, imageSize);
+            graphics.setColor(Color.WHITE);
+            graphics.drawString(type.name.substring(0, 1), imageSize / 2 - 3, imageSize / 2 + 5);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            ImageIO.write(image, "png", output);
+        } catch(IOException ex) {
+            throw new IllegalStateException("Failed to render image for " + type.name, ex);
+        }
+        return output.toByteArray();
+    }
+
+    /** Returns a random temperature reading. */
+    private static String reading(Random random) {
+        return String.format(Locale.US, "%.1f", 18.0 + random.nextInt(80) / 10.0);
+    }
+
+    /** Returns the MD5 hash of a password as hexadecimal string (like the client sends it). */
+    static String md5(String password) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(password.getBytes(Protocol.CHARSET));
+            return String.format("%032x", new BigInteger(1, digest));
+        } catch(NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** A device type with its commands. */
+    static class DeviceType {
+
+        /** The identifier of the type. */
+        final int id;
+        /** The name of the type. */
+        final String name;
+        /** The HTML ARGB color code of the type. */
+        final String colorCode;
+        /** The filename of the image of the type. */
+        final String imageFilename;
+        /** The commands available for the type. */
+        final List<Command> commands;
+
+        /** Package-private constructor. */
+        DeviceType(int id, String name, String colorCode, String imageFilename, Command... commands) {
+            this.id = id;
+            this.name = name;
+            this.colorCode = colorCode;
+            this.imageFilename = imageFilename;
+            this.commands = Collections.unmodifiableList(Arrays.asList(commands));
+        }
+
+    }
+
+    /** A command that can be sent to the devices of a type. */
+    static class Command {
+
+        /** The identifier of the command. */
+        final int id;
+        /** The name of the command. */
+        final String name;
+        /** The type of the optional parameter (or null if there is none). */
+        final String parameterType;
+
+        /** Package-private constructor. */
+        Command(int id, String name, String parameterType) {
+            this.id = id;
+            this.name = name;
+            this.parameterType = parameterType;
+        }
+
+    }
+
+    /** A state of a device. */
+    static class State {
+
+        /** The identifier of the state. */
+        final int id;
+        /** The name of the state. */
+        final String name;
+
+        /** Package-private constructor. */
+        State(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+    }
+
+    /** An immutable snapshot of a device. */
+    static class Device {
+
+        /** The unique identifier of the device. */
+        final String id;
+        /** The type of the device. */
+        final DeviceType type;
+        /** The name of the device. */
+        final String name;
+        /** The current state of the device. */
+        final State state;
+        /** A parameter value related to the state (or null). */
+        final String stateValue;
+        /** The time of the last check-in in milliseconds. */
+        final long lastCheckin;
+
+        /** Package-private constructor. */
+        Device(String id, DeviceType type, String name, State state, String stateValue, long lastCheckin) {
+            this.id = id;
+            this.type = type;
+            this.name = name;
+            this.state = state;
+            this.stateValue = stateValue;
+            this.lastCheckin = lastCheckin;
+        }
+
+        /** Returns a copy of the device with a new state (checked in now). */
+        Device withState(State state, String stateValue) {
+            return new Device(id, type, name, state, stateValue, System.currentTimeMillis());
+        }
+
+        /** Returns a copy of the device with a new name (checked in now). */
+        Device withName(String name) {
+            return new Device(id, type, name, state, stateValue, System.currentTimeMillis());
+        }
+
+    }
+
+    /** An immutable entry of the history. */
+    static class HistoryEntry {
+
+        /** The time of the event in milliseconds. */
+        final long timestamp;
+        /** The identifier of the device. */
+        final String entityId;
+        /** The name of the device at the time of the event. */
+        final String entityName;
+        /** The human-readable description of the event. */
+        final String action;
+        /** The type of the event. */
+        final String actionType;
+
+        /** Package-private constructor. */
+        HistoryEntry(long timestamp, String entityId, String entityName, String action, String actionType) {
+            this.timestamp = timestamp;
+            this.entityId = entityId;
+            this.entityName = entityName;
+            this.action = action;
+            this.actionType = actionType;
+        }
+
+        /**
+         * Compares the key of the entry (the timestamp, then the device identifier) to the given key.
+         * @return A negative number, zero or a positive number if the entry is ordered before, at or after the key
+         */
+        int compareTo(long timestamp, String entityId) {
+            if(this.timestamp != timestamp) {
+                return this.timestamp < timestamp ? -1 : 1;
+            }
+            return this.entityId.compareTo(entityId);
+        }
+
+        /** Returns true if the entry matches the given filters (null filters match everything). */
+        boolean matches(Long from, Long to, String deviceId) {
+            return (from == null || timestamp >= from)
+                    && (to == null || timestamp <= to)
+                    && (deviceId == null || deviceId.equals(entityId));
+        }
+
+    }
+
+    /** The total and per-day number of the history entries matching a query with the first page of them. */
+    static class HistoryOverview {
+
+        /** The number of matching entries. */
+        int count = 0;
+        /** The number of matching entries by day (days since the epoch in the client's time zone), the most recent first. */
+        final Map<Long, Integer> days = new LinkedHashMap<>();
+        /** The first page of the matching entries. */
+        final List<HistoryEntry> entries;
+
+        /** Package-private constructor. */
+        HistoryOverview(int capacity) {
+            this.entries = new ArrayList<>(capacity);
+        }
+
+    }
+
+    /** An immutable user of the system. */
+    static class User {
+
+        /** The identifier of the user. */
+        final int id;
+        /** The name of the user. */
+        final String name;
+        /** The MD5 hash of the password of the user. */
+        final String passwordHash;
+        /** True if the user is the administrator. */
+        final boolean administrator;
+
+        /** Package-private constructor. */
+        User(int id, String name, String passwordHash, boolean administrator) {
+            this.id = id;
+            this.name = name;
+            this.passwordHash = passwordHash;
+            this.administrator = administrator;
+        }
+
+    }
+
+}
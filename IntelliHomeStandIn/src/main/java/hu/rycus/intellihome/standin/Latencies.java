@@ -0,0 +1,72 @@
+package hu.rycus.intellihome.standin;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records latency samples of a measurement and summarizes them with percentiles.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+class Latencies {
+
+    /** The name of the measurement. */
+    private final String name;
+
+    /** The recorded samples in nanoseconds. */
+    private long[] samples = new long[256];
+    /** The number of recorded samples. */
+    private int count = 0;
+    /** The number of operations that timed out. */
+    private int timeouts = 0;
+    /** The total number of bytes received by the operations. */
+    private long bytes = 0L;
+
+    /**
+     * Package-private constructor.
+     * @param name The name of the measurement
+     */
+    Latencies(String name) {
+        this.name = name;
+    }
+
+    /** Records a completed operation. */
+    void record(long nanos, int receivedBytes) {
+        if(count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+        bytes += receivedBytes;
+    }
+
+    /** Records an operation that timed out. */
+    void timeout() {
+        timeouts++;
+    }
+
+    @Override
+    public String toString() {
+        if(count == 0) {
+            return String.format(Locale.US, "%-16s no samples, timeouts: %d", name, timeouts);
+        }
+
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+
+        long total = 0L;
+        for(long sample : sorted) total += sample;
+
+        return String.format(Locale.US,
+                "%-16s n: %d, timeouts: %d, avg bytes: %d, mean: %.2fms, p50: %.2fms, p90: %.2fms, p99: %.2fms, max: %.2fms",
+                name, count, timeouts, bytes / count, total / (double) count / 1e6,
+                percentile(sorted, 50) / 1e6, percentile(sorted, 90) / 1e6,
+                percentile(sorted, 99) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+
+    /** Returns a percentile (between 0 and 100) of the given sorted samples. */
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+}
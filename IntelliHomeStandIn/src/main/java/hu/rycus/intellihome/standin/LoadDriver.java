@@ -0,0 +1,568 @@
+package hu.rycus.intellihome.standin;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Headless protocol-level load driver measuring a server (the stand-in or a real one) the way the client uses it:
+ * request round-trip latencies for device and history listing, command to state change latency
+ * and the throughput of the state change messages (and of the history entries pushed while subscribed).
+ * Deep history scrolls are measured both with offset and with keyset (cursor) pagination,
+ * opening the history both with a count and a list request and with the combined query.
+ * It implements the same TCP framing and UDP multipart framing as the Android network handlers,
+ * but it is a separate implementation of the protocol: it measures the server,
+ * not the client. The queueing, pipelining, batching, reassembly and parsing
+ * of the Android client are not exercised, so changes to those do not show up in these numbers
+ * (the client side is measured by the statistics of the RemoteManager on the device).
+ *
+ * <pre>
+ *   --host 127.0.0.1       address of the server
+ *   --port 49001           port of the server
+ *   --mode tcp             tcp or udp
+ *   --user admin           username
+ *   --password admin       password (sent as MD5 hash like the client does)
+ *   --binary false         request the binary wire format at login
+ *   --requests 200         number of device and history list round trips
+ *   --pages 0              number of history pages to scroll through with both pagination modes
+ *   --commands 200         number of command round trips
+ *   --duration 10          seconds to count state change messages for
+ *   --timeout 5000         milliseconds to wait for a response
+ * </pre>
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+public class LoadDriver {
+
+    /** Pattern of the timestamp and device identifier at the start of a text history entry. */
+    private static final Pattern HISTORY_KEY = Pattern.compile("#(\\d+\\.\\d+);([^;]*);");
+
+    /** Responses of the requests (everything except the asynchronous messages). */
+    private final BlockingQueue<Message> responses = new LinkedBlockingQueue<>();
+    /** Identifiers of the devices in the received state change messages. */
+    private final BlockingQueue<String> stateChanges = new LinkedBlockingQueue<>();
+
+    /** The number of state change messages received. */
+    private final AtomicLong stateChangeCount = new AtomicLong();
+    /** The number of state change bytes received. */
+    private final AtomicLong stateChangeBytes = new AtomicLong();
+    /** The number of pushed history messages received. */
+    private final AtomicLong historyPushCount = new AtomicLong();
+    /** The number of pushed history bytes received. */
+    private final AtomicLong historyPushBytes = new AtomicLong();
+
+    /** The connection to the server. */
+    private final Transport transport;
+    /** The milliseconds to wait for a response. */
+    private final long timeout;
+    /** True while the driver is running. */
+    private volatile boolean running = true;
+
+    /** Private constructor. */
+    private LoadDriver(Transport transport, long timeout) {
+        this.transport = transport;
+        this.timeout = timeout;
+    }
+
+    /** Runs the measurements with the given command line options. */
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+
+        String host = options.getString("host", "127.0.0.1");
+        int port = options.getInt("port", 49001);
+        String mode = options.getString("mode", "tcp");
+
+        Transport transport = "udp".equals(mode) ? new UdpTransport(host, port) : new TcpTransport(host, port);
+
+        String login = options.getString("user", "admin") + ":" + Home.md5(options.getString("password", "admin")) +
+                (options.getBoolean("binary", false) ? ":" + Protocol.BINARY_OPTION : "");
+        transport.login(login);
+
+        LoadDriver driver = new LoadDriver(transport, options.getInt("timeout", 5000));
+        driver.startReceiver();
+
+        try {
+            driver.run(options.getInt("requests", 200), options.getInt("pages", 0),
+                    options.getInt("commands", 200), options.getInt("duration", 10));
+        } finally {
+            driver.running = false;
+            transport.send(Protocol.MSG_A_EXIT, new byte[0]);
+            transport.close();
+        }
+    }
+
+    /** Starts the thread receiving and dispatching the messages of the server. */
+    private void startReceiver() {
+        Thread receiver = new Thread("Receiver") {
+            @Override
+            public void run() {
+                while(running) {
+                    try {
+                        Message message = transport.receive();
+                        if(message == null) continue;
+
+                        if(message.header == Protocol.MSG_A_STATE_CHANGED) {
+                            stateChangeCount.incrementAndGet();
+                            stateChangeBytes.addAndGet(message.data.length);
+                            stateChanges.offer(deviceId(message.data));
+                        } else if(message.header == Protocol.MSG_A_HISTORY_APPENDED) {
+                            historyPushCount.incrementAndGet();
+                            historyPushBytes.addAndGet(message.data.length);
+                        } else if(message.header != Protocol.MSG_A_KEEPALIVE) {
+                            responses.offer(message);
+                        }
+                    } catch(IOException ex) {
+                        if(running) {
+                            System.err.println("Receiving failed: " + ex);
+                            running = false;
+                        }
+                    }
+                }
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /** Runs the measurements and prints the results. */
+    private void run(int requests, int pages, int commands, int duration) throws Exception {
+        Latencies devices = new Latencies("list devices");
+        Latencies history = new Latencies("list history");
+        Latencies offsetPages = new Latencies("history offset");
+        Latencies keysetPages = new Latencies("history keyset");
+        Latencies openSeparate = new Latencies("open count+list");
+        Latencies openCombined = new Latencies("open query");
+        Latencies scratch = new Latencies("scratch");
+        Latencies commandLatencies = new Latencies("command");
+
+        List<String> controllable = new ArrayList<>();
+
+        for(int idx = 0; idx < requests && running; idx++) {
+            Message response = request(Protocol.MSG_A_LIST_DEVICES, "", devices);
+            if(response != null && controllable.isEmpty()) {
+                controllable.addAll(controllableDevices(response.data));
+            }
+        }
+
+        for(int idx = 0; idx < requests && running; idx++) {
+            request(Protocol.MSG_A_LIST_HISTORY, ";;;25;" + (idx * 25 % 500), history);
+        }
+
+        // opening the history screen: count then first page (two round trips) or the combined query
+        for(int idx = 0; idx < requests && running; idx++) {
+            long start = System.nanoTime();
+            Message count = request(Protocol.MSG_A_COUNT_HISTORY, ";;", scratch);
+            Message page = count != null ? request(Protocol.MSG_A_LIST_HISTORY, ";;;25;0", scratch) : null;
+            if(page != null) {
+                openSeparate.record(System.nanoTime() - start, count.data.length + page.data.length);
+            } else {
+                openSeparate.timeout();
+            }
+
+            request(Protocol.MSG_A_QUERY_HISTORY, ";;;25;0", openCombined);
+        }
+
+        String key = null;
+        for(int page = 0; page < pages && running; page++) {
+            request(Protocol.MSG_A_LIST_HISTORY, ";;;25;" + (page * 25), offsetPages);
+
+            Message response = request(Protocol.MSG_A_LIST_HISTORY, key != null ? ";;;25;;" + key : ";;;25;0", keysetPages);
+            key = response != null ? lastHistoryKey(response.data) : null;
+            if(key == null) break; // the end of the history (or no response)
+        }
+
+        Random random = new Random(1);
+        for(int idx = 0; idx < commands && running && !controllable.isEmpty(); idx++) {
+            String deviceId = controllable.get(random.nextInt(controllable.size()));
+            stateChanges.clear();
+
+            long start = System.nanoTime();
+            transport.send(Protocol.MSG_A_SEND_COMMAND, (deviceId + "#" + (1 + idx % 2)).getBytes(Protocol.CHARSET));
+
+            boolean completed = false;
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while(!completed) {
+                String changed = stateChanges.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if(changed == null) break;
+                completed = changed.equals(deviceId);
+            }
+
+            if(completed) {
+                commandLatencies.record(System.nanoTime() - start, 0);
+            } else {
+                commandLatencies.timeout();
+            }
+        }
+
+        // the history is followed by pushes instead of polling it while the state changes are counted
+        transport.send(Protocol.MSG_A_SUBSCRIBE_HISTORY, "1".getBytes(Protocol.CHARSET));
+
+        long countBefore = stateChangeCount.get();
+        long bytesBefore = stateChangeBytes.get();
+        long pushesBefore = historyPushCount.get();
+        long pushBytesBefore = historyPushBytes.get();
+        long start = System.nanoTime();
+        Thread.sleep(duration * 1000L);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long received = stateChangeCount.get() - countBefore;
+        long receivedBytes = stateChangeBytes.get() - bytesBefore;
+        long pushes = historyPushCount.get() - pushesBefore;
+        long pushBytes = historyPushBytes.get() - pushBytesBefore;
+
+        transport.send(Protocol.MSG_A_SUBSCRIBE_HISTORY, "0".getBytes(Protocol.CHARSET));
+
+        System.out.println(devices);
+        System.out.println(history);
+        System.out.println(openSeparate);
+        System.out.println(openCombined);
+        if(pages > 0) {
+            System.out.println(offsetPages);
+            System.out.println(keysetPages);
+        }
+        System.out.println(commandLatencies);
+        System.out.println(String.format("state changes    %d in %.1fs: %.1f msg/s, %.1f KB/s",
+                received, seconds, received / seconds, receivedBytes / seconds / 1024.0));
+        System.out.println(String.format("history pushes   %d in %.1fs: %.1f msg/s, %.1f KB/s, %.1f B/entry",
+                pushes, seconds, pushes / seconds, pushBytes / seconds / 1024.0, pushes > 0 ? pushBytes / (double) pushes : 0.0));
+    }
+
+    /** Sends a request and waits for its response, recording the round-trip latency. */
+    private Message request(int header, String data, Latencies latencies) throws Exception {
+        responses.clear();
+
+        long start = System.nanoTime();
+        transport.send(header, data.getBytes(Protocol.CHARSET));
+
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while(true) {
+            Message response = responses.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if(response == null) {
+                latencies.timeout();
+                return null;
+            } else if(response.header == header) {
+                latencies.record(System.nanoTime() - start, response.data.length);
+                return response;
+            }
+        }
+    }
+
+    /** Returns the identifiers of the devices accepting on/off commands from a device list. */
+    private static List<String> controllableDevices(byte[] data) {
+        List<String> result = new ArrayList<>();
+
+        if(data.length > 0 && data[0] == 0) {
+            Reader reader = new Reader(data);
+            int count = reader.varint();
+            for(int idx = 0; idx < count; idx++) {
+                String id = reader.string();
+                int type = reader.varint();
+                reader.string();        // name
+                reader.varint();        // state ID
+                reader.string();        // state name
+                reader.string();        // state value
+                reader.skip(8);         // last check-in
+                if(type != 3) result.add(id);
+            }
+        } else {
+            String text = new String(data, Protocol.CHARSET);
+            if(text.length() > 2) {
+                for(String device : text.substring(1, text.length() - 1).split(",")) {
+                    String[] fields = device.split(";");
+                    if(!"3".equals(fields[1])) result.add(fields[0]);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the key of the last entry of a history list in the timestamp;deviceId form
+     * of the keyset requests (the timestamp in milliseconds) or null if the list is empty.
+     */
+    private static String lastHistoryKey(byte[] data) {
+        if(data.length > 0 && data[0] == 0) {
+            Reader reader = new Reader(data);
+            int count = reader.varint();
+
+            String key = null;
+            for(int idx = 0; idx < count; idx++) {
+                long timestamp = reader.timestamp();
+                String deviceId = reader.string();
+                reader.string();        // device name
+                reader.string();        // action
+                reader.string();        // action type
+                key = timestamp + ";" + deviceId;
+            }
+            return key;
+        }
+
+        // #seconds.millis;deviceId;name;action;type (the names may contain '#' too, but not a fractional number after it)
+        Matcher matcher = HISTORY_KEY.matcher(new String(data, Protocol.CHARSET));
+
+        String key = null;
+        while(matcher.find()) {
+            long timestamp = Math.round(Double.parseDouble(matcher.group(1)) * 1000.0);
+            key = timestamp + ";" + matcher.group(2);
+        }
+        return key;
+    }
+
+    /** Returns the identifier of the device in a state change message. */
+    private static String deviceId(byte[] data) {
+        if(data.length > 0 && data[0] == 0) {
+            return new Reader(data).string();
+        }
+
+        String text = new String(data, Protocol.CHARSET);
+        int end = text.indexOf(';');
+        return end >= 0 ? text.substring(0, end) : text;
+    }
+
+    /** A message received from the server. */
+    private static class Message {
+
+        /** The header of the message. */
+        private final int header;
+        /** The contents of the message. */
+        private final byte[] data;
+
+        /** Private constructor. */
+        private Message(int header, byte[] data) {
+            this.header = header;
+            this.data = data;
+        }
+
+    }
+
+    /** Minimal reader of the binary wire format (the payload after the marker byte). */
+    private static class Reader {
+
+        /** The binary data. */
+        private final byte[] data;
+        /** The current read position. */
+        private int position = 1;
+
+        /** Private constructor. */
+        private Reader(byte[] data) {
+            this.data = data;
+        }
+
+        /** Reads an unsigned variable-length integer. */
+        private int varint() {
+            int value = 0;
+            for(int shift = 0; ; shift += 7) {
+                int b = data[position++] & 0xFF;
+                value |= (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return value;
+            }
+        }
+
+        /** Reads a length-prefixed string. */
+        private String string() {
+            int length = varint();
+            String value = new String(data, position, length, Protocol.CHARSET);
+            position += length;
+            return value;
+        }
+
+        /** Reads an eight byte big-endian timestamp. */
+        private long timestamp() {
+            long value = 0L;
+            for(int idx = 0; idx < 8; idx++) {
+                value = (value << 8) | (data[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        /** Skips the given number of bytes. */
+        private void skip(int count) {
+            position += count;
+        }
+
+    }
+
+    /** A connection to the server. */
+    private abstract static class Transport {
+
+        /** Authenticates with the given login message contents. */
+        abstract void login(String login) throws IOException;
+
+        /** Sends a message to the server. */
+        abstract void send(int header, byte[] data) throws IOException;
+
+        /** Receives the next message (or returns null if nothing arrived in time). */
+        abstract Message receive() throws IOException;
+
+        /** Closes the connection. */
+        abstract void close() throws IOException;
+
+    }
+
+    /** TCP connection sending and receiving [header][length][contents] frames. */
+    private static class TcpTransport extends Transport {
+
+        /** The socket of the connection. */
+        private final Socket socket;
+        /** The stream of incoming frames. */
+        private final DataInputStream input;
+        /** The stream of outgoing frames. */
+        private final DataOutputStream output;
+
+        /** Private constructor connecting to the server. */
+        private TcpTransport(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output = new DataOutputStream(socket.getOutputStream());
+        }
+
+        @Override
+        void login(String login) throws IOException {
+            send(Protocol.MSG_A_LOGIN, login.getBytes(Protocol.CHARSET));
+            Message response = receive();
+            if(response == null || response.header != Protocol.MSG_A_LOGIN) {
+                throw new IOException("Login failed");
+            }
+        }
+
+        @Override
+        synchronized void send(int header, byte[] data) throws IOException {
+            byte[] frame = new byte[3 + data.length];
+            frame[0] = (byte) header;
+            frame[1] = (byte) ((data.length >> 8) & 0xFF);
+            frame[2] = (byte) (data.length & 0xFF);
+            System.arraycopy(data, 0, frame, 3, data.length);
+            output.write(frame);
+        }
+
+        @Override
+        Message receive() throws IOException {
+            int header = input.read();
+            if(header < 0) throw new IOException("Connection closed");
+
+            byte[] data = new byte[input.readUnsignedShort()];
+            input.readFully(data);
+            return new Message(header, data);
+        }
+
+        @Override
+        void close() throws IOException {
+            socket.close();
+        }
+
+    }
+
+    /** Unicast UDP connection with session ID prefixed requests and multipart responses. */
+    private static class UdpTransport extends Transport {
+
+        /** The socket of the connection (bound to an ephemeral port). */
+        private final DatagramSocket socket;
+        /** The address of the server. */
+        private final SocketAddress server;
+        /** The session ID received at login. */
+        private byte[] sessionId = new byte[0];
+
+        /** Reusable buffer for incoming datagrams. */
+        private final byte[] buffer = new byte[Protocol.DATAGRAM_SIZE];
+        /** Incomplete multipart messages by header. */
+        private final Map<Integer, ByteArrayOutputStream> incomplete = new HashMap<>();
+
+        /** Private constructor. */
+        private UdpTransport(String host, int port) throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(1000);
+            server = new InetSocketAddress(host, port);
+        }
+
+        @Override
+        void login(String login) throws IOException {
+            sendDatagram(Protocol.MSG_A_LOGIN, Protocol.FLAG_WITHOUT_SESSION_ID, login.getBytes(Protocol.CHARSET));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while(System.currentTimeMillis() < deadline) {
+                Message response = receive();
+                if(response != null && response.header == Protocol.MSG_A_LOGIN) {
+                    String session = new String(response.data, Protocol.CHARSET);
+                    sessionId = (session.endsWith("*") ? session.substring(0, session.length() - 1) : session).getBytes(Protocol.CHARSET);
+                    return;
+                }
+            }
+
+            throw new IOException("Login failed");
+        }
+
+        @Override
+        void send(int header, byte[] data) throws IOException {
+            byte[] contents = new byte[sessionId.length + data.length];
+            System.arraycopy(sessionId, 0, contents, 0, sessionId.length);
+            System.arraycopy(data, 0, contents, sessionId.length, data.length);
+            sendDatagram(header, 0, contents);
+        }
+
+        /** Sends a single datagram. */
+        private void sendDatagram(int header, int flags, byte[] data) throws IOException {
+            byte[] datagram = new byte[2 + data.length];
+            datagram[0] = (byte) header;
+            datagram[1] = (byte) flags;
+            System.arraycopy(data, 0, datagram, 2, data.length);
+            socket.send(new DatagramPacket(datagram, datagram.length, server));
+        }
+
+        @Override
+        Message receive() throws IOException {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch(SocketTimeoutException ex) {
+                return null;
+            }
+
+            if(packet.getLength() < 2) return null;
+
+            int header = buffer[0] & 0xFF;
+            int flags = buffer[1] & 0xFF;
+
+            ByteArrayOutputStream message = incomplete.get(header);
+            if(message == null) {
+                message = new ByteArrayOutputStream();
+                incomplete.put(header, message);
+            }
+            message.write(buffer, 2, packet.getLength() - 2);
+
+            if((flags & Protocol.FLAG_MORE_FOLLOWS) != 0) {
+                return null;
+            }
+
+            incomplete.remove(header);
+            return new Message(header, message.toByteArray());
+        }
+
+        @Override
+        void close() {
+            socket.close();
+        }
+
+    }
+
+}
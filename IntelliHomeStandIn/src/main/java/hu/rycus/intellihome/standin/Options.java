@@ -0,0 +1,59 @@
+package hu.rycus.intellihome.standin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal command line option parser for arguments in <code>--name value</code> form.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+class Options {
+
+    /** The option values by name (without the leading dashes). */
+    private final Map<String, String> values = new HashMap<>();
+
+    /**
+     * Package-private constructor parsing the command line arguments.
+     * @param args The command line arguments
+     * @throws IllegalArgumentException if an argument is not in the expected form
+     */
+    Options(String[] args) {
+        for(int idx = 0; idx < args.length; idx++) {
+            String arg = args[idx];
+            if(!arg.startsWith("--") || idx + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --name value arguments, got: " + arg);
+            }
+
+            values.put(arg.substring(2), args[++idx]);
+        }
+    }
+
+    /** Returns true if the option with the given name was given. */
+    boolean has(String name) { return values.containsKey(name); }
+
+    /** Returns a string option or the default value if it was not given. */
+    String getString(String name, String defaultValue) {
+        String value = values.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /** Returns an integer option or the default value if it was not given. */
+    int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /** Returns a decimal option or the default value if it was not given. */
+    double getDouble(String name, double defaultValue) {
+        String value = values.get(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /** Returns a boolean option or the default value if it was not given. */
+    boolean getBoolean(String name, boolean defaultValue) {
+        String value = values.get(name);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+}
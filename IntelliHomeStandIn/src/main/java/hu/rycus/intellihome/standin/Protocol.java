@@ -0,0 +1,78 @@
+package hu.rycus.intellihome.standin;
+
+import java.nio.charset.Charset;
+
+/**
+ * Header bytes, flags and other constants of the IntelliHomeControl protocol
+ * (mirroring the ones used by the Android client).
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+final class Protocol {
+
+    /* Headers defined by the IntelliHomeControl server. */
+
+    static final int MSG_A_LOGIN                 = 0xA1;
+    static final int MSG_A_LIST_DEVICE_TYPES     = 0xA2;
+    static final int MSG_A_LIST_DEVICES          = 0xA3;
+    static final int MSG_A_SEND_COMMAND          = 0xA4;
+    static final int MSG_A_STATE_CHANGED         = 0xA5;
+    static final int MSG_A_LOAD_TYPE_IMAGE       = 0xA6;
+    static final int MSG_A_RENAME_DEVICE         = 0xA7;
+    static final int MSG_A_COUNT_HISTORY         = 0xB1;
+    static final int MSG_A_LIST_HISTORY          = 0xB2;
+    static final int MSG_A_QUERY_HISTORY         = 0xB3;
+    static final int MSG_A_SUBSCRIBE_HISTORY     = 0xB4;
+    static final int MSG_A_HISTORY_APPENDED      = 0xB5;
+    static final int MSG_A_LIST_USERS            = 0xC1;
+    static final int MSG_A_USER_CREATE           = 0xC2;
+    static final int MSG_A_USER_EDIT             = 0xC3;
+    static final int MSG_A_USER_DELETE           = 0xC4;
+    static final int MSG_A_USERS_CHANGED         = 0xC5;
+    static final int MSG_A_KEEPALIVE             = 0xE0;
+    static final int MSG_A_ERROR                 = 0xF0;
+    static final int MSG_A_EXIT                  = 0xFE;
+
+    static final int MSG_A_ERROR_INVALID_SESSION = 0xF1;
+
+    /* Extensions used by the sequenced UDP framing mode. */
+
+    static final int MSG_A_RETRANSMIT            = 0xE1;
+
+    /* UDP flags. */
+
+    /** Set when a datagram is not the last one of a multipart message. */
+    static final int FLAG_MORE_FOLLOWS       = 0x01 << 0;
+    /** Set when the contents of a datagram are not prefixed with the session ID. */
+    static final int FLAG_WITHOUT_SESSION_ID = 0x01 << 1;
+    /** Set when a datagram carries a sequence header (message ID, fragment index and count). */
+    static final int FLAG_SEQUENCED          = 0x01 << 2;
+
+    /** The length of the session IDs handed out at login. */
+    static final int SESSION_ID_LENGTH = 32;
+
+    /** The size of the UDP datagrams used by the client. */
+    static final int DATAGRAM_SIZE = 1500;
+    /** The length of the UDP datagram header (header and flags bytes). */
+    static final int DATAGRAM_HEADER_LENGTH = 2;
+    /** The length of the sequence header in the sequenced UDP framing mode. */
+    static final int SEQUENCE_HEADER_LENGTH = 6;
+
+    /** The maximum length of the contents of a TCP frame. */
+    static final int MAX_FRAME_LENGTH = 0xFFFF;
+
+    /** The login option requesting the binary wire format. */
+    static final String BINARY_OPTION = "binary";
+
+    /** The character set of the text contents. */
+    static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /** Private constructor (constants only). */
+    private Protocol() { }
+
+    /** Returns a human-readable name of a header for logging. */
+    static String name(int header) {
+        return "H" + Integer.toHexString(header);
+    }
+
+}
@@ -0,0 +1,399 @@
+package hu.rycus.intellihome.standin;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes the requests of the client sessions against the simulated home
+ * and sends the responses (after the configured reply latency) and the asynchronous messages.
+ * Requests are processed on a single thread in the order they arrived,
+ * so the responses for the same header are sent in request order like the real server does.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+class RequestProcessor {
+
+    /** Logger of the stand-in server. */
+    private static final Logger LOG = Logger.getLogger("IntelliHome.StandIn");
+
+    /** Characters of the generated session IDs. */
+    private static final char[] SESSION_ID_CHARS = "0123456789abcdef".toCharArray();
+
+    /** The simulated home. */
+    private final Home home;
+    /** The single thread executor processing the requests. */
+    private final ScheduledExecutorService executor;
+    /** The delay in milliseconds before processing a request. */
+    private final long replyLatency;
+
+    /** The active sessions. */
+    private final Set<Session> sessions = new CopyOnWriteArraySet<>();
+
+    /** The text wire format. */
+    private final Codec textCodec = new TextCodec();
+    /** The binary wire format. */
+    private final Codec binaryCodec = new BinaryCodec();
+
+    /** Random generator for the session IDs. */
+    private final SecureRandom random = new SecureRandom();
+
+    /** The number of processed requests. */
+    private final AtomicLong requestCount = new AtomicLong();
+    /** The number of state changes sent. */
+    private final AtomicLong stateChangeCount = new AtomicLong();
+    /** The number of history entries pushed to the subscribed sessions. */
+    private final AtomicLong historyPushCount = new AtomicLong();
+
+    /**
+     * Package-private constructor.
+     * @param home The simulated home
+     * @param executor The single thread executor processing the requests
+     * @param replyLatency The delay in milliseconds before processing a request
+     */
+    RequestProcessor(Home home, ScheduledExecutorService executor, long replyLatency) {
+        this.home = home;
+        this.executor = executor;
+        this.replyLatency = replyLatency;
+    }
+
+    /**
+     * Authenticates the contents of a login message (username:passwordHash[:binary]).
+     * @return The authenticated user or null if the credentials are invalid
+     */
+    Home.User authenticate(String loginData) {
+        String[] parts = loginData.split(":");
+        if(parts.length < 2) {
+            return null;
+        }
+
+        return home.authenticate(parts[0], parts[1]);
+    }
+
+    /** Returns the wire format requested in the contents of a login message. */
+    Codec selectCodec(String loginData) {
+        String[] parts = loginData.split(":");
+        for(int idx = 2; idx < parts.length; idx++) {
+            if(Protocol.BINARY_OPTION.equals(parts[idx])) {
+                return binaryCodec;
+            }
+        }
+        return textCodec;
+    }
+
+    /** Returns a new random session ID. */
+    String createSessionId() {
+        char[] id = new char[Protocol.SESSION_ID_LENGTH];
+        for(int idx = 0; idx < id.length; idx++) {
+            id[idx] = SESSION_ID_CHARS[random.nextInt(SESSION_ID_CHARS.length)];
+        }
+        return new String(id);
+    }
+
+    /** Returns the contents of the login response for a session. */
+    static byte[] loginResponse(Session session) {
+        String data = session.getId() + (session.getUser().administrator ? "*" : "");
+        return data.getBytes(Protocol.CHARSET);
+    }
+
+    /** Returns the contents of the response listing the users (id*name for administrators, id#name otherwise). */
+    static byte[] usersResponse(List<Home.User> users) {
+        StringBuilder builder = new StringBuilder();
+        for(Home.User user : users) {
+            if(builder.length() > 0) builder.append(';');
+            builder.append(user.id).append(user.administrator ? '*' : '#').append(user.name);
+        }
+        return builder.toString().getBytes(Protocol.CHARSET);
+    }
+
+    /** Registers a new authenticated session. */
+    void register(Session session) {
+        sessions.add(session);
+        LOG.info("Session started: " + session + " (" + sessions.size() + " active)");
+    }
+
+    /** Removes a session. */
+    void unregister(Session session) {
+        if(sessions.remove(session)) {
+            LOG.info("Session ended: " + session + " (" + sessions.size() + " active)");
+        }
+    }
+
+    /** Returns the number of active sessions. */
+    int getSessionCount() { return sessions.size(); }
+    /** Returns the number of processed requests. */
+    long getRequestCount() { return requestCount.get(); }
+    /** Returns the number of state changes sent. */
+    long getStateChangeCount() { return stateChangeCount.get(); }
+    /** Returns the number of history entries pushed to the subscribed sessions. */
+    long getHistoryPushCount() { return historyPushCount.get(); }
+
+    /**
+     * Enqueues a request of a session for processing.
+     * @param session The session sending the request
+     * @param header The header of the request
+     * @param data The contents of the request
+     */
+    void process(final Session session, final int header, final String data) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handle(session, header, data);
+                } catch(Exception ex) {
+                    LOG.log(Level.WARNING, "Failed to process " + Protocol.name(header) + " from " + session + ": " + data, ex);
+                    session.send(Protocol.MSG_A_ERROR, ("Failed to process request: " + ex).getBytes(Protocol.CHARSET));
+                }
+            }
+        };
+
+        if(replyLatency > 0) {
+            executor.schedule(task, replyLatency, TimeUnit.MILLISECONDS);
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /** Processes a request and sends its response. */
+    private void handle(Session session, int header, String data) {
+        requestCount.incrementAndGet();
+
+        Codec codec = session.getCodec();
+        String[] parameters = data.split(";", -1);
+
+        switch (header) {
+            case Protocol.MSG_A_LIST_DEVICE_TYPES:
+                session.send(header, codec.encodeTypes(home.getTypes()));
+                break;
+            case Protocol.MSG_A_LIST_DEVICES:
+                session.send(header, codec.encodeDevices(home.getDevices(optionalInt(data))));
+                break;
+            case Protocol.MSG_A_SEND_COMMAND:
+            {
+                String[] target = data.split("#", 2);
+                String[] command = target.length > 1 ? target[1].split(";", 2) : new String[0];
+                Home.Device device = command.length > 0
+                        ? home.execute(target[0], Integer.parseInt(command[0]), command.length > 1 ? command[1] : null)
+                        : null;
+
+                if(device != null) {
+                    broadcastState(device);
+                } else {
+                    sendError(session, "Unknown device or command: " + data);
+                }
+                break;
+            }
+            case Protocol.MSG_A_RENAME_DEVICE:
+            {
+                Home.Device device = parameters.length > 1 ? home.rename(parameters[0], parameters[1]) : null;
+                if(device != null) {
+                    broadcastState(device);
+                } else {
+                    sendError(session, "Unknown device: " + data);
+                }
+                break;
+            }
+            case Protocol.MSG_A_LOAD_TYPE_IMAGE:
+            {
+                // conditional requests are in filename:hash form, the contents are not sent if the hash matches,
+                // the responses are in filename:contents form, so the client can match them to its concurrent requests
+                String filename = data;
+                String knownHash = null;
+
+                int separator = data.lastIndexOf(':');
+                if(separator > 0) {
+                    filename = data.substring(0, separator);
+                    knownHash = data.substring(separator + 1);
+                }
+
+                byte[] image = home.getImage(filename);
+                if(image != null && knownHash != null && knownHash.equalsIgnoreCase(md5(image))) {
+                    session.send(header, (filename + ":").getBytes(Protocol.CHARSET));
+                } else if(image != null) {
+                    session.send(header, (filename + ":" + Base64.encode(image)).getBytes(Protocol.CHARSET));
+                } else {
+                    sendError(session, "Unknown image: " + data);
+                }
+                break;
+            }
+            case Protocol.MSG_A_COUNT_HISTORY:
+            {
+                int count = home.countHistory(optionalLong(parameters, 0), optionalLong(parameters, 1), optionalString(parameters, 2));
+                session.send(header, Integer.toString(count).getBytes(Protocol.CHARSET));
+                break;
+            }
+            case Protocol.MSG_A_LIST_HISTORY:
+            {
+                // keyset requests leave the offset empty and continue after the timestamp (ms) and device of the last seen entry
+                List<Home.HistoryEntry> entries;
+                if(parameters.length > 6 && parameters[4].isEmpty()) {
+                    entries = home.listHistoryAfter(
+                            optionalLong(parameters, 0), optionalLong(parameters, 1), optionalString(parameters, 2),
+                            Integer.parseInt(parameters[3]), Long.parseLong(parameters[5]), parameters[6]);
+                } else {
+                    entries = home.listHistory(
+                            optionalLong(parameters, 0), optionalLong(parameters, 1), optionalString(parameters, 2),
+                            Integer.parseInt(parameters[3]), Integer.parseInt(parameters[4]));
+                }
+                session.send(header, codec.encodeHistory(entries));
+                break;
+            }
+            case Protocol.MSG_A_QUERY_HISTORY:
+            {
+                // from;to;deviceId;limit;zoneOffsetMinutes -> the total and per-day counts with the first page
+                Home.HistoryOverview overview = home.queryHistory(
+                        optionalLong(parameters, 0), optionalLong(parameters, 1), optionalString(parameters, 2),
+                        Integer.parseInt(parameters[3]), parameters.length > 4 ? Long.parseLong(parameters[4]) * 60000L : 0L);
+                session.send(header, codec.encodeHistoryOverview(overview));
+                break;
+            }
+            case Protocol.MSG_A_SUBSCRIBE_HISTORY:
+                // 1 to receive the new history entries as they are recorded, 0 to stop (no response)
+                session.setHistorySubscribed("1".equals(data));
+                break;
+            case Protocol.MSG_A_LIST_USERS:
+                session.send(header, usersResponse(home.getUsers()));
+                break;
+            case Protocol.MSG_A_USER_CREATE:
+            case Protocol.MSG_A_USER_EDIT:
+            case Protocol.MSG_A_USER_DELETE:
+            {
+                if(!session.getUser().administrator) {
+                    sendError(session, "Only the administrator can manage users");
+                } else if(handleUserChange(header, parameters)) {
+                    broadcast(Protocol.MSG_A_USERS_CHANGED, new byte[0]);
+                } else {
+                    sendError(session, "Unknown user: " + data);
+                }
+                break;
+            }
+            case Protocol.MSG_A_KEEPALIVE:
+                session.send(header, new byte[0]);
+                break;
+            case Protocol.MSG_A_EXIT:
+                unregister(session);
+                session.close();
+                break;
+            default:
+                LOG.warning("Unknown request " + Protocol.name(header) + " from " + session);
+                sendError(session, "Unknown request: " + Protocol.name(header));
+                break;
+        }
+    }
+
+    /** Applies a user management request and returns true if it succeeded. */
+    private boolean handleUserChange(int header, String[] parameters) {
+        switch (header) {
+            case Protocol.MSG_A_USER_CREATE:
+                home.addUser(parameters[0], parameters[1]);
+                return true;
+            case Protocol.MSG_A_USER_EDIT:
+                return home.editUser(Integer.parseInt(parameters[0]), parameters[1], parameters[2]);
+            default:
+                return home.deleteUser(Integer.parseInt(parameters[0]));
+        }
+    }
+
+    /**
+     * Sends the new state of a device to every session (encoded once per wire format)
+     * and the history entry recorded for the change to the sessions subscribed to the history.
+     */
+    void broadcastState(Home.Device device) {
+        byte[] text = null;
+        byte[] binary = null;
+
+        for(Session session : sessions) {
+            byte[] data;
+            if(session.getCodec() == binaryCodec) {
+                if(binary == null) binary = binaryCodec.encodeDevice(device);
+                data = binary;
+            } else {
+                if(text == null) text = textCodec.encodeDevice(device);
+                data = text;
+            }
+
+            session.send(Protocol.MSG_A_STATE_CHANGED, data);
+        }
+
+        stateChangeCount.incrementAndGet();
+
+        Home.HistoryEntry entry = home.getLatestHistory();
+        if(entry != null && entry.entityId.equals(device.id)) {
+            broadcastHistory(entry);
+        }
+    }
+
+    /** Pushes a new history entry to the sessions subscribed to the history (in the MSG_A_LIST_HISTORY form). */
+    private void broadcastHistory(Home.HistoryEntry entry) {
+        byte[] text = null;
+        byte[] binary = null;
+
+        for(Session session : sessions) {
+            if(!session.isHistorySubscribed()) continue;
+
+            byte[] data;
+            if(session.getCodec() == binaryCodec) {
+                if(binary == null) binary = binaryCodec.encodeHistory(Collections.singletonList(entry));
+                data = binary;
+            } else {
+                if(text == null) text = textCodec.encodeHistory(Collections.singletonList(entry));
+                data = text;
+            }
+
+            session.send(Protocol.MSG_A_HISTORY_APPENDED, data);
+            historyPushCount.incrementAndGet();
+        }
+    }
+
+    /** Sends a message to every session. */
+    private void broadcast(int header, byte[] data) {
+        for(Session session : sessions) {
+            session.send(header, data);
+        }
+    }
+
+    /** Returns the hex representation of the MD5 hash of the given data (like the client computes it). */
+    private static String md5(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for(byte b : digest) {
+                builder.append(String.format("%02x", b & 0xFF));
+            }
+            return builder.toString();
+        } catch(NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not available", ex);
+        }
+    }
+
+    /** Sends an error message to a session. */
+    private static void sendError(Session session, String message) {
+        session.send(Protocol.MSG_A_ERROR, message.getBytes(Protocol.CHARSET));
+    }
+
+    /** Parses an optional integer (null if empty). */
+    private static Integer optionalInt(String value) {
+        return value.isEmpty() ? null : Integer.valueOf(value);
+    }
+
+    /** Parses an optional long parameter (null if missing or empty). */
+    private static Long optionalLong(String[] parameters, int index) {
+        return index < parameters.length && !parameters[index].isEmpty() ? Long.valueOf(parameters[index]) : null;
+    }
+
+    /** Returns an optional string parameter (null if missing or empty). */
+    private static String optionalString(String[] parameters, int index) {
+        return index < parameters.length && !parameters[index].isEmpty() ? parameters[index] : null;
+    }
+
+}
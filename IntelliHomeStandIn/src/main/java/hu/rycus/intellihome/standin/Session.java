@@ -0,0 +1,57 @@
+package hu.rycus.intellihome.standin;
+
+/**
+ * An authenticated client session of the stand-in server.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+abstract class Session {
+
+    /** The identifier of the session. */
+    private final String id;
+    /** The authenticated user. */
+    private final Home.User user;
+    /** The wire format negotiated at login. */
+    private final Codec codec;
+
+    /** True if the new history entries are pushed to the client. */
+    private volatile boolean historySubscribed = false;
+
+    /**
+     * Package-private constructor.
+     * @param id The identifier of the session
+     * @param user The authenticated user
+     * @param codec The wire format negotiated at login
+     */
+    Session(String id, Home.User user, Codec codec) {
+        this.id = id;
+        this.user = user;
+        this.codec = codec;
+    }
+
+    /** Returns the identifier of the session. */
+    String getId() { return id; }
+    /** Returns the authenticated user. */
+    Home.User getUser() { return user; }
+    /** Returns the wire format negotiated at login. */
+    Codec getCodec() { return codec; }
+    /** Returns true if the new history entries are pushed to the client. */
+    boolean isHistorySubscribed() { return historySubscribed; }
+    /** Set this true to push the new history entries to the client. */
+    void setHistorySubscribed(boolean historySubscribed) { this.historySubscribed = historySubscribed; }
+
+    /**
+     * Sends a message to the client of this session.
+     * @return True if the message was sent
+     */
+    abstract boolean send(int header, byte[] data);
+
+    /** Closes the session (and its connection if there is one). */
+    abstract void close();
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + id + ", " + user.name + "]";
+    }
+
+}
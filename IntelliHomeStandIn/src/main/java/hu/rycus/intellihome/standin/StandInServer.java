@@ -0,0 +1,98 @@
+package hu.rycus.intellihome.standin;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Stand-in IntelliHomeControl server for loopback and load testing of the client.
+ * It speaks the header based protocol over TCP and UDP (unicast, broadcast and multicast)
+ * with a generated home whose size, state change rate, reply latency and packet loss are configurable:
+ *
+ * <pre>
+ *   --port 49001           TCP and UDP port
+ *   --tcp true             enable the TCP frontend
+ *   --udp true             enable the UDP frontend
+ *   --group 227.1.1.10     multicast group joined by the UDP frontend (none by default)
+ *   --devices 50           number of simulated devices
+ *   --history 1000         number of initial history entries
+ *   --state-rate 0         random state changes per second
+ *   --latency 0            reply latency in milliseconds
+ *   --loss 0               probability of dropping an outgoing UDP datagram (0..1)
+ *   --image-size 96        size of the generated type images in pixels
+ *   --seed 1               seed of the random generator
+ *   --report 10            seconds between status reports (0 to disable)
+ * </pre>
+ *
+ * Users: admin/admin (administrator) and user/user.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+public class StandInServer {
+
+    /** Logger of the stand-in server. */
+    private static final Logger LOG = Logger.getLogger("IntelliHome.StandIn");
+
+    /** Starts the server with the given command line options. */
+    public static void main(String[] args) throws Exception {
+        Options options = new Options(args);
+
+        int port = options.getInt("port", 49001);
+        Random random = new Random(options.getInt("seed", 1));
+
+        final Home home = new Home(
+                options.getInt("devices", 50),
+                options.getInt("history", 1000),
+                options.getInt("image-size", 96),
+                random);
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final RequestProcessor processor = new RequestProcessor(home, executor, options.getInt("latency", 0));
+
+        TcpFrontend tcp = null;
+        if(options.getBoolean("tcp", true)) {
+            tcp = new TcpFrontend(port, processor);
+            tcp.start();
+        }
+
+        UdpFrontend udp = null;
+        if(options.getBoolean("udp", true)) {
+            udp = new UdpFrontend(port, options.getString("group", null), options.getDouble("loss", 0.0), random, processor);
+            udp.start();
+        }
+
+        new StateSimulator(home, processor, random).start(executor, options.getDouble("state-rate", 0.0));
+
+        LOG.info("Stand-in server started with " + home.getDeviceCount() + " devices");
+
+        int report = options.getInt("report", 10);
+        if(report > 0) {
+            final UdpFrontend udpFrontend = udp;
+            executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    LOG.info("Sessions: " + processor.getSessionCount() +
+                            ", requests: " + processor.getRequestCount() +
+                            ", state changes: " + processor.getStateChangeCount() +
+                            ", history pushes: " + processor.getHistoryPushCount() +
+                            (udpFrontend != null ? ", " + udpFrontend : ""));
+                }
+            }, report, report, TimeUnit.SECONDS);
+        }
+
+        final TcpFrontend tcpFrontend = tcp;
+        final UdpFrontend udpFrontend = udp;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                if(tcpFrontend != null) tcpFrontend.close();
+                if(udpFrontend != null) udpFrontend.close();
+            }
+        });
+
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+}
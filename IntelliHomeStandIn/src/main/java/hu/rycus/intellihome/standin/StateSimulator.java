@@ -0,0 +1,54 @@
+package hu.rycus.intellihome.standin;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Changes the states of random devices at a fixed rate
+ * and sends the changes to the clients like the devices of a real home would.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+class StateSimulator implements Runnable {
+
+    /** The simulated home. */
+    private final Home home;
+    /** The processor sending the state changes to the clients. */
+    private final RequestProcessor processor;
+    /** Random generator selecting the changed devices. */
+    private final Random random;
+
+    /**
+     * Package-private constructor.
+     * @param home The simulated home
+     * @param processor The processor sending the state changes to the clients
+     * @param random Random generator selecting the changed devices
+     */
+    StateSimulator(Home home, RequestProcessor processor, Random random) {
+        this.home = home;
+        this.processor = processor;
+        this.random = random;
+    }
+
+    /**
+     * Schedules the state changes.
+     * @param executor The executor to run the changes on (the one processing the requests)
+     * @param rate The number of state changes per second (nothing is scheduled if not positive)
+     */
+    void start(ScheduledExecutorService executor, double rate) {
+        if(rate > 0) {
+            long period = Math.max(1L, (long) (1000000.0 / rate));
+            executor.scheduleAtFixedRate(this, period, period, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    @Override
+    public void run() {
+        Home.Device device = home.changeRandomDevice(random);
+        if(device != null) {
+            processor.broadcastState(device);
+        }
+    }
+
+}
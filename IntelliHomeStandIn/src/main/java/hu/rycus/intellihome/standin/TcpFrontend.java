@@ -0,0 +1,196 @@
+package hu.rycus.intellihome.standin;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TCP frontend of the stand-in server.
+ * Every connection is served by its own thread reading frames of
+ * [header][length (two bytes)][contents], the first of which has to be a login message.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+class TcpFrontend extends Thread {
+
+    /** Logger of the stand-in server. */
+    private static final Logger LOG = Logger.getLogger("IntelliHome.StandIn");
+
+    /** The processor of the requests. */
+    private final RequestProcessor processor;
+    /** The listening socket. */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Package-private constructor opening the listening socket.
+     * @param port The port to listen on
+     * @param processor The processor of the requests
+     */
+    TcpFrontend(int port, RequestProcessor processor) throws IOException {
+        super("TcpFrontend");
+        setDaemon(true);
+
+        this.processor = processor;
+        this.serverSocket = new ServerSocket(port);
+
+        LOG.info("Listening on TCP port " + port);
+    }
+
+    @Override
+    public void run() {
+        while(!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+
+                Thread thread = new Thread(new Connection(socket), "TcpConnection-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch(IOException ex) {
+                if(!serverSocket.isClosed()) {
+                    LOG.log(Level.WARNING, "Failed to accept TCP connection", ex);
+                }
+            }
+        }
+    }
+
+    /** Stops listening for new connections. */
+    void close() {
+        try {
+            serverSocket.close();
+        } catch(IOException ex) {
+            LOG.log(Level.WARNING, "Failed to close TCP server socket", ex);
+        }
+    }
+
+    /** A connected TCP client. */
+    private class Connection implements Runnable {
+
+        /** The socket of the connection. */
+        private final Socket socket;
+        /** The stream of incoming frames. */
+        private final DataInputStream input;
+        /** The stream of outgoing frames. */
+        private final DataOutputStream output;
+
+        /** Private constructor. */
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        @Override
+        public void run() {
+            TcpSession session = null;
+
+            try {
+                while(!socket.isClosed()) {
+                    int header = input.read();
+                    if(header < 0) break;
+
+                    byte[] data = new byte[input.readUnsignedShort()];
+                    input.readFully(data);
+                    String contents = new String(data, Protocol.CHARSET);
+
+                    if(session == null) {
+                        session = login(header, contents);
+                        if(session == null) break;
+                    } else {
+                        processor.process(session, header, contents);
+                    }
+                }
+            } catch(EOFException ex) {
+                // the client closed the connection
+            } catch(IOException ex) {
+                if(!socket.isClosed()) {
+                    LOG.log(Level.FINE, "TCP connection failed: " + socket.getRemoteSocketAddress(), ex);
+                }
+            } finally {
+                if(session != null) {
+                    processor.unregister(session);
+                }
+                closeSocket();
+            }
+        }
+
+        /** Authenticates the connection and returns its session or null if the login failed. */
+        private TcpSession login(int header, String contents) {
+            if(header != Protocol.MSG_A_LOGIN) {
+                write(Protocol.MSG_A_ERROR_INVALID_SESSION, new byte[0]);
+                return null;
+            }
+
+            Home.User user = processor.authenticate(contents);
+            if(user == null) {
+                LOG.warning("Invalid credentials from " + socket.getRemoteSocketAddress());
+                write(Protocol.MSG_A_ERROR, "Invalid username or password".getBytes(Protocol.CHARSET));
+                return null;
+            }
+
+            TcpSession session = new TcpSession(processor.createSessionId(), user, processor.selectCodec(contents));
+            write(Protocol.MSG_A_LOGIN, RequestProcessor.loginResponse(session));
+            processor.register(session);
+            return session;
+        }
+
+        /** Writes a frame to the connection. */
+        private boolean write(int header, byte[] data) {
+            if(data.length > Protocol.MAX_FRAME_LENGTH) {
+                LOG.warning("Dropping " + Protocol.name(header) + " message of " + data.length +
+                        " bytes, it does not fit in a TCP frame (" + Protocol.MAX_FRAME_LENGTH + " bytes at most)");
+                return false;
+            }
+
+            synchronized (output) {
+                try {
+                    output.write(header);
+                    output.writeShort(data.length);
+                    output.write(data);
+                    output.flush();
+                    return true;
+                } catch(IOException ex) {
+                    LOG.log(Level.FINE, "Failed to write TCP frame", ex);
+                    closeSocket();
+                    return false;
+                }
+            }
+        }
+
+        /** Closes the socket of the connection. */
+        private void closeSocket() {
+            try {
+                socket.close();
+            } catch(IOException ex) { /* NO-OP */ }
+        }
+
+        /** The session of an authenticated connection. */
+        private class TcpSession extends Session {
+
+            /** Private constructor. */
+            private TcpSession(String id, Home.User user, Codec codec) {
+                super(id, user, codec);
+            }
+
+            @Override
+            boolean send(int header, byte[] data) {
+                return write(header, data);
+            }
+
+            @Override
+            void close() {
+                closeSocket();
+            }
+
+        }
+
+    }
+
+}
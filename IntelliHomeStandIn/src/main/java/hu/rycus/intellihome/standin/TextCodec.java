@@ -0,0 +1,128 @@
+package hu.rycus.intellihome.standin;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The original text wire format with ';', ',' and '#' delimited fields
+ * and timestamps in seconds.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+class TextCodec implements Codec {
+
+    @Override
+    public byte[] encodeTypes(List<Home.DeviceType> types) {
+        StringBuilder builder = new StringBuilder("[");
+        for(int idx = 0; idx < types.size(); idx++) {
+            if(idx > 0) builder.append(',');
+
+            Home.DeviceType type = types.get(idx);
+            builder.append(type.id).append(';')
+                    .append(type.name).append(';')
+                    .append(nonNull(type.colorCode)).append(';')
+                    .append(nonNull(type.imageFilename)).append(";[");
+
+            for(int cdx = 0; cdx < type.commands.size(); cdx++) {
+                if(cdx > 0) builder.append(',');
+
+                Home.Command command = type.commands.get(cdx);
+                builder.append(command.id).append(';')
+                        .append(command.name).append(';')
+                        .append(nonNull(command.parameterType));
+            }
+
+            builder.append(']');
+        }
+        builder.append(']');
+
+        return bytes(builder);
+    }
+
+    @Override
+    public byte[] encodeDevices(List<Home.Device> devices) {
+        StringBuilder builder = new StringBuilder(devices.size() * 64 + 2);
+        builder.append('[');
+        for(int idx = 0; idx < devices.size(); idx++) {
+            if(idx > 0) builder.append(',');
+            appendDevice(builder, devices.get(idx));
+        }
+        builder.append(']');
+
+        return bytes(builder);
+    }
+
+    @Override
+    public byte[] encodeDevice(Home.Device device) {
+        StringBuilder builder = new StringBuilder(64);
+        appendDevice(builder, device);
+        return bytes(builder);
+    }
+
+    @Override
+    public byte[] encodeHistory(List<Home.HistoryEntry> entries) {
+        StringBuilder builder = new StringBuilder(entries.size() * 64);
+        appendHistory(builder, entries);
+        return bytes(builder);
+    }
+
+    @Override
+    public byte[] encodeHistoryOverview(Home.HistoryOverview overview) {
+        // count;day:count,day:count followed by the entries in the MSG_A_LIST_HISTORY form
+        StringBuilder builder = new StringBuilder(overview.entries.size() * 64 + overview.days.size() * 12 + 16);
+        builder.append(overview.count).append(';');
+
+        boolean first = true;
+        for(Map.Entry<Long, Integer> day : overview.days.entrySet()) {
+            if(!first) builder.append(',');
+            builder.append(day.getKey()).append(':').append(day.getValue());
+            first = false;
+        }
+
+        appendHistory(builder, overview.entries);
+        return bytes(builder);
+    }
+
+    /** Appends history entries in the #timestamp;entityId;entityName;action;actionType form. */
+    private static void appendHistory(StringBuilder builder, List<Home.HistoryEntry> entries) {
+        for(Home.HistoryEntry entry : entries) {
+            builder.append('#');
+            appendSeconds(builder, entry.timestamp).append(';')
+                    .append(entry.entityId).append(';')
+                    .append(entry.entityName).append(';')
+                    .append(entry.action).append(';')
+                    .append(entry.actionType);
+        }
+    }
+
+    /** Appends a device in the id;type;name;stateId;stateName;stateValue;lastCheckin form. */
+    private static void appendDevice(StringBuilder builder, Home.Device device) {
+        builder.append(device.id).append(';')
+                .append(device.type.id).append(';')
+                .append(device.name).append(';')
+                .append(device.state.id).append(';')
+                .append(device.state.name).append(';')
+                .append(nonNull(device.stateValue)).append(';');
+        appendSeconds(builder, device.lastCheckin);
+    }
+
+    /** Appends a timestamp in seconds with three fractional digits. */
+    private static StringBuilder appendSeconds(StringBuilder builder, long millis) {
+        long fraction = millis % 1000L;
+        builder.append(millis / 1000L).append('.');
+        if(fraction < 100) builder.append('0');
+        if(fraction < 10) builder.append('0');
+        return builder.append(fraction);
+    }
+
+    /** Returns an empty string instead of null. */
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+
+    /** Returns the contents of the builder in the protocol character set. */
+    private static byte[] bytes(StringBuilder builder) {
+        return builder.toString().getBytes(Protocol.CHARSET);
+    }
+
+}
@@ -0,0 +1,302 @@
+package hu.rycus.intellihome.standin;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * UDP frontend of the stand-in server for unicast, broadcast and multicast clients.
+ * Datagrams are [header][flags][contents] where the contents of every message except the login
+ * are prefixed with the session ID. Responses larger than a datagram are split into multipart messages,
+ * or into sequenced fragments if the client requested that framing mode at login.
+ * Outgoing datagrams are dropped with the configured probability to simulate packet loss.
+ *
+ * Created by Viktor Adam on 1/25/14.
+ */
+class UdpFrontend extends Thread {
+
+    /** Logger of the stand-in server. */
+    private static final Logger LOG = Logger.getLogger("IntelliHome.StandIn");
+
+    /** The number of recently sent sequenced messages kept for retransmission. */
+    private static final int RETAINED_MESSAGES = 32;
+
+    /** The processor of the requests. */
+    private final RequestProcessor processor;
+    /** The socket of the frontend. */
+    private final MulticastSocket socket;
+
+    /** The probability of dropping an outgoing datagram. */
+    private final double loss;
+    /** Random generator used for the simulated packet loss. */
+    private final Random random;
+
+    /** The active sessions by session ID. */
+    private final Map<String, UdpSession> sessions = new ConcurrentHashMap<>();
+
+    /** The number of datagrams sent. */
+    private final AtomicLong sentCount = new AtomicLong();
+    /** The number of datagrams dropped by the simulated packet loss. */
+    private final AtomicLong droppedCount = new AtomicLong();
+    /** The number of datagrams sent again on retransmission requests. */
+    private final AtomicLong retransmittedCount = new AtomicLong();
+
+    /**
+     * Package-private constructor opening the socket.
+     * @param port The port to listen on
+     * @param group The multicast group to join (or null)
+     * @param loss The probability of dropping an outgoing datagram
+     * @param random Random generator used for the simulated packet loss
+     * @param processor The processor of the requests
+     */
+    UdpFrontend(int port, String group, double loss, Random random, RequestProcessor processor) throws IOException {
+        super("UdpFrontend");
+        setDaemon(true);
+
+        this.processor = processor;
+        this.loss = loss;
+        this.random = random;
+
+        this.socket = new MulticastSocket(port);
+        if(group != null) {
+            socket.joinGroup(InetAddress.getByName(group));
+        }
+
+        LOG.info("Listening on UDP port " + port + (group != null ? " and multicast group " + group : "") +
+                (loss > 0 ? " with " + (loss * 100) + "% simulated loss" : ""));
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[Protocol.DATAGRAM_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while(!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+
+                if(packet.getLength() >= Protocol.DATAGRAM_HEADER_LENGTH) {
+                    receive(buffer[0] & 0xFF, buffer[1] & 0xFF,
+                            new String(buffer, Protocol.DATAGRAM_HEADER_LENGTH,
+                                    packet.getLength() - Protocol.DATAGRAM_HEADER_LENGTH, Protocol.CHARSET),
+                            packet.getSocketAddress());
+                }
+            } catch(IOException ex) {
+                if(!socket.isClosed()) {
+                    LOG.log(Level.WARNING, "Failed to receive UDP datagram", ex);
+                }
+            } catch(RuntimeException ex) {
+                LOG.log(Level.WARNING, "Failed to process UDP datagram", ex);
+            }
+        }
+    }
+
+    /** Stops the frontend. */
+    void close() {
+        socket.close();
+    }
+
+    /** Processes a received datagram. */
+    private void receive(int header, int flags, String contents, SocketAddress source) {
+        if((flags & Protocol.FLAG_MORE_FOLLOWS) != 0) {
+            LOG.warning("Dropping multipart request " + Protocol.name(header) + " from " + source);
+            return;
+        }
+
+        if((flags & Protocol.FLAG_WITHOUT_SESSION_ID) != 0) {
+            if(header == Protocol.MSG_A_LOGIN) {
+                login(contents, (flags & Protocol.FLAG_SEQUENCED) != 0, source);
+            }
+            return;
+        }
+
+        UdpSession session = contents.length() >= Protocol.SESSION_ID_LENGTH
+                ? sessions.get(contents.substring(0, Protocol.SESSION_ID_LENGTH))
+                : null;
+        if(session == null) {
+            sendDatagram(new byte[] { (byte) Protocol.MSG_A_ERROR_INVALID_SESSION, 0 }, source);
+            return;
+        }
+
+        session.address = source;
+        String data = contents.substring(Protocol.SESSION_ID_LENGTH);
+
+        if(header == Protocol.MSG_A_RETRANSMIT) {
+            session.retransmit(data);
+        } else {
+            if(header == Protocol.MSG_A_EXIT) {
+                sessions.remove(session.getId());
+            }
+            processor.process(session, header, data);
+        }
+    }
+
+    /** Authenticates a client and sends the login response. */
+    private void login(String contents, boolean sequenced, SocketAddress source) {
+        Home.User user = processor.authenticate(contents);
+        if(user == null) {
+            LOG.warning("Invalid credentials from " + source);
+            sendDatagram(message(Protocol.MSG_A_ERROR, 0, "Invalid username or password".getBytes(Protocol.CHARSET)), source);
+            return;
+        }
+
+        UdpSession session = new UdpSession(processor.createSessionId(), user, processor.selectCodec(contents), source, sequenced);
+        sessions.put(session.getId(), session);
+        processor.register(session);
+
+        sendDatagram(message(Protocol.MSG_A_LOGIN, 0, RequestProcessor.loginResponse(session)), source);
+    }
+
+    /** Creates a single datagram message. */
+    private static byte[] message(int header, int flags, byte[] data) {
+        byte[] datagram = new byte[Protocol.DATAGRAM_HEADER_LENGTH + data.length];
+        datagram[0] = (byte) header;
+        datagram[1] = (byte) flags;
+        System.arraycopy(data, 0, datagram, Protocol.DATAGRAM_HEADER_LENGTH, data.length);
+        return datagram;
+    }
+
+    /** Sends a datagram unless it is dropped by the simulated packet loss. */
+    private void sendDatagram(byte[] datagram, SocketAddress target) {
+        if(loss > 0 && random.nextDouble() < loss) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+
+        try {
+            socket.send(new DatagramPacket(datagram, datagram.length, target));
+            sentCount.incrementAndGet();
+        } catch(IOException ex) {
+            LOG.log(Level.WARNING, "Failed to send UDP datagram to " + target, ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UDP sent: " + sentCount + ", dropped: " + droppedCount + ", retransmitted: " + retransmittedCount;
+    }
+
+    /** The session of a UDP client. */
+    private class UdpSession extends Session {
+
+        /** The last known address of the client. */
+        private volatile SocketAddress address;
+        /** True if the client requested the sequenced framing mode. */
+        private final boolean sequenced;
+
+        /** The ID of the next sequenced message. */
+        private int nextMessageId = 0;
+        /** The datagrams of the recently sent sequenced messages by message ID. */
+        private final Map<Integer, byte[][]> retained = new LinkedHashMap<Integer, byte[][]>() {
+            @Override protected boolean removeEldestEntry(Map.Entry<Integer, byte[][]> eldest) {
+                return size() > RETAINED_MESSAGES;
+            }
+        };
+
+        /** Private constructor. */
+        private UdpSession(String id, Home.User user, Codec codec, SocketAddress address, boolean sequenced) {
+            super(id, user, codec);
+            this.address = address;
+            this.sequenced = sequenced;
+        }
+
+        @Override
+        synchronized boolean send(int header, byte[] data) {
+            if(sequenced) {
+                sendSequenced(header, data);
+            } else {
+                sendMultipart(header, data);
+            }
+            return true;
+        }
+
+        /** Sends a message split into multipart datagrams if needed. */
+        private void sendMultipart(int header, byte[] data) {
+            int maxLength = Protocol.DATAGRAM_SIZE - Protocol.DATAGRAM_HEADER_LENGTH;
+
+            int offset = 0;
+            do {
+                int length = Math.min(maxLength, data.length - offset);
+                boolean last = offset + length >= data.length;
+
+                byte[] datagram = new byte[Protocol.DATAGRAM_HEADER_LENGTH + length];
+                datagram[0] = (byte) header;
+                datagram[1] = (byte) (last ? 0 : Protocol.FLAG_MORE_FOLLOWS);
+                System.arraycopy(data, offset, datagram, Protocol.DATAGRAM_HEADER_LENGTH, length);
+
+                sendDatagram(datagram, address);
+                offset += length;
+            } while(offset < data.length);
+        }
+
+        /** Sends a message as sequenced fragments and keeps them for retransmission. */
+        private void sendSequenced(int header, byte[] data) {
+            int maxLength = Protocol.DATAGRAM_SIZE - Protocol.DATAGRAM_HEADER_LENGTH - Protocol.SEQUENCE_HEADER_LENGTH;
+            int count = Math.max(1, (data.length + maxLength - 1) / maxLength);
+            int messageId = nextMessageId;
+            nextMessageId = (nextMessageId + 1) & 0xFFFF;
+
+            byte[][] datagrams = new byte[count][];
+            for(int index = 0; index < count; index++) {
+                int offset = index * maxLength;
+                int length = Math.min(maxLength, data.length - offset);
+
+                byte[] datagram = new byte[Protocol.DATAGRAM_HEADER_LENGTH + Protocol.SEQUENCE_HEADER_LENGTH + length];
+                datagram[0] = (byte) header;
+                datagram[1] = (byte) Protocol.FLAG_SEQUENCED;
+                writeShort(datagram, 2, messageId);
+                writeShort(datagram, 4, index);
+                writeShort(datagram, 6, count);
+                System.arraycopy(data, offset, datagram, Protocol.DATAGRAM_HEADER_LENGTH + Protocol.SEQUENCE_HEADER_LENGTH, length);
+
+                datagrams[index] = datagram;
+                sendDatagram(datagram, address);
+            }
+
+            if(count > 1) {
+                retained.put(messageId, datagrams);
+            }
+        }
+
+        /** Sends the requested fragments of a sequenced message again (messageId;index,index,...). */
+        private synchronized void retransmit(String request) {
+            String[] parts = request.split(";", 2);
+            byte[][] datagrams = retained.get(Integer.parseInt(parts[0]));
+            if(datagrams == null || parts.length < 2) {
+                LOG.fine("Retransmission requested for an unknown message: " + request);
+                return;
+            }
+
+            for(String index : parts[1].split(",")) {
+                int idx = Integer.parseInt(index);
+                if(idx >= 0 && idx < datagrams.length) {
+                    sendDatagram(datagrams[idx], address);
+                    retransmittedCount.incrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        void close() {
+            sessions.remove(getId());
+        }
+
+        /** Writes a big-endian two byte value. */
+        private void writeShort(byte[] buffer, int offset, int value) {
+            buffer[offset]     = (byte) ((value >> 8) & 0xFF);
+            buffer[offset + 1] = (byte) (value & 0xFF);
+        }
+
+    }
+
+}